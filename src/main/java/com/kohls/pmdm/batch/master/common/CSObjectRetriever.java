@@ -1,10 +1,138 @@
 package com.kohls.pmdm.batch.master.common;
 
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves csIds ({@code <entity type>-<id>}) to the entity they reference. The entity type names the reference
+ * collection and the id is the {@code _id} of the entity in it, an object id, a number or a string.
+ */
 @Component
 public class CSObjectRetriever {
+
+    //@Autowired
+    CommonProperties commonProperties = new CommonProperties();
+
+    private MongoDatabase mongoDatabase;
+    private volatile Map<String, String> collectionNames;
+    private volatile long collectionNamesLoadedAt;
+
+    public void setMongoDatabase(MongoDatabase mongoDatabase) {
+        this.mongoDatabase = mongoDatabase;
+        this.collectionNames = null;
+    }
+
     public Object getCSUpdatedEntity(String[] keyValueString) {
-        return null;
+        return getCSUpdatedEntities(Collections.singletonList(keyValueString)).get(String.join("-", keyValueString));
+    }
+
+    /**
+     * Resolves the given csIds with one query per entity type.
+     *
+     * @param keyValueStrings
+     *            csIds split on "-"
+     * @return entities found, keyed by csId; csIds without an entity are left out
+     */
+    public Map<String, Object> getCSUpdatedEntities(Collection<String[]> keyValueStrings) {
+        Map<String, Set<String>> idsByType = new LinkedHashMap<>();
+        for (String[] keyValueString : keyValueStrings) {
+            if (keyValueString.length > 1) {
+                String id = String.join("-", Arrays.copyOfRange(keyValueString, 1, keyValueString.length));
+                idsByType.computeIfAbsent(keyValueString[0], type -> new LinkedHashSet<>()).add(id);
+            }
+        }
+        Map<String, Object> entities = new HashMap<>();
+        if (mongoDatabase == null) {
+            return entities;
+        }
+        idsByType.forEach((type, ids) -> {
+            String collectionName = getCollectionName(type);
+            if (collectionName != null) {
+                // The csId does not tell the type of the _id, so each id is looked up in every form it can take.
+                Map<String, String> idsByNormalized = new HashMap<>();
+                List<Object> values = new ArrayList<>();
+                for (String id : ids) {
+                    for (Object value : getIdValues(id)) {
+                        idsByNormalized.put(normalize(value), id);
+                        values.add(value);
+                    }
+                }
+                for (Document entity : mongoDatabase.getCollection(collectionName).find(Filters.in("_id", values))) {
+                    String id = idsByNormalized.get(normalize(entity.get("_id")));
+                    if (id != null) {
+                        entities.put(type + "-" + id, entity);
+                    }
+                }
+            }
+        });
+        return entities;
+    }
+
+    /**
+     * Returns the values an id of a csId may have in the database, the string itself and the object id or number it
+     * parses to.
+     */
+    static List<Object> getIdValues(String id) {
+        List<Object> values = new ArrayList<>();
+        values.add(id);
+        if (ObjectId.isValid(id)) {
+            values.add(new ObjectId(id));
+        } else if (id.matches("-?\\d{1,18}")) {
+            // Numbers of any type compare equal on the server.
+            values.add(Long.parseLong(id));
+        }
+        return values;
+    }
+
+    /**
+     * Returns a string telling ids of different types apart, numbers of any type alike.
+     */
+    static String normalize(Object id) {
+        if (id instanceof ObjectId) {
+            return "oid:" + ((ObjectId) id).toHexString();
+        }
+        if (id instanceof Number) {
+            Number number = (Number) id;
+            if (number.doubleValue() == Math.rint(number.doubleValue())) {
+                return "num:" + number.longValue();
+            }
+            return "num:" + number;
+        }
+        return "str:" + id;
+    }
+
+    /**
+     * Looks up the collection of an entity type. The collection names are read again on a miss, at most once per
+     * {@code csCollectionNamesRefreshMillis}, so reference collections created after startup are found.
+     */
+    private String getCollectionName(String type) {
+        Map<String, String> names = collectionNames;
+        long sinceLoaded = System.currentTimeMillis() - collectionNamesLoadedAt;
+        if (names == null || (!names.containsKey(type.toLowerCase(Locale.ROOT))
+                && sinceLoaded >= commonProperties.getCsCollectionNamesRefreshMillis())) {
+            names = new HashMap<>();
+            for (String name : mongoDatabase.listCollectionNames()) {
+                names.put(name.toLowerCase(Locale.ROOT), name);
+            }
+            collectionNames = names;
+            collectionNamesLoadedAt = System.currentTimeMillis();
+        }
+        return names.get(type.toLowerCase(Locale.ROOT));
     }
 }
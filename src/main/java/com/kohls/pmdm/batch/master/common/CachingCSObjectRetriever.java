@@ -0,0 +1,258 @@
+package com.kohls.pmdm.batch.master.common;
+
+import com.mongodb.client.MongoDatabase;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the cross reference entities resolved by a {@link CSObjectRetriever}. Entries are evicted least recently
+ * used once the cache is full and expire after a time to live. Concurrent misses on the same csId share one lookup.
+ * <p>
+ * The key of an entry is the csId ({@code <entity type>-<id>}); all entries of an entity type are invalidated when
+ * the change stream of the matching reference collection reports a change.
+ */
+public class CachingCSObjectRetriever extends CSObjectRetriever {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachingCSObjectRetriever.class);
+    private static final Object NULL_ENTITY = new Object();
+
+    private final CSObjectRetriever delegate;
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Long> typeVersions = new HashMap<>();
+    private final Map<String, Set<String>> keysByType = new HashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> loading = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public CachingCSObjectRetriever(CSObjectRetriever delegate, int maxEntries, long ttlMillis) {
+        this.delegate = delegate;
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    @Override
+    public Object getCSUpdatedEntity(String[] keyValueString) {
+        String key = String.join("-", keyValueString);
+        String type = typeOf(keyValueString);
+        Object cached = lookup(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return unwrap(cached);
+        }
+        misses.incrementAndGet();
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = loading.putIfAbsent(key, future);
+        if (existing != null) {
+            return unwrap(join(existing));
+        }
+        try {
+            long typeVersion = getTypeVersion(type);
+            Object entity = delegate.getCSUpdatedEntity(keyValueString);
+            Object value = entity == null ? NULL_ENTITY : entity;
+            store(key, type, typeVersion, value);
+            future.complete(value);
+            return entity;
+        } catch (RuntimeException exc) {
+            future.completeExceptionally(exc);
+            throw exc;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    /**
+     * Returns the cached entities of the given csIds and resolves all the others with one bulk lookup on the delegate.
+     */
+    @Override
+    public Map<String, Object> getCSUpdatedEntities(Collection<String[]> keyValueStrings) {
+        Map<String, Object> entities = new HashMap<>();
+        Map<String, String[]> missing = new LinkedHashMap<>();
+        Map<String, Long> typeVersionsAtLoad = new HashMap<>();
+        for (String[] keyValueString : keyValueStrings) {
+            String key = String.join("-", keyValueString);
+            if (entities.containsKey(key) || missing.containsKey(key)) {
+                continue;
+            }
+            Object cached = lookup(key);
+            if (cached != null) {
+                hits.incrementAndGet();
+                if (cached != NULL_ENTITY) {
+                    entities.put(key, cached);
+                }
+            } else {
+                misses.incrementAndGet();
+                missing.put(key, keyValueString);
+                String type = typeOf(keyValueString);
+                typeVersionsAtLoad.computeIfAbsent(type, this::getTypeVersion);
+            }
+        }
+        if (missing.isEmpty()) {
+            return entities;
+        }
+        Map<String, Object> loaded = delegate.getCSUpdatedEntities(missing.values());
+        synchronized (entries) {
+            missing.forEach((key, keyValueString) -> {
+                String type = typeOf(keyValueString);
+                Object entity = loaded.get(key);
+                if (getTypeVersion(type) == typeVersionsAtLoad.get(type)) {
+                    put(key, type, entity == null ? NULL_ENTITY : entity);
+                }
+                if (entity != null) {
+                    entities.put(key, entity);
+                }
+            });
+        }
+        return entities;
+    }
+
+    @Override
+    public void setMongoDatabase(MongoDatabase mongoDatabase) {
+        delegate.setMongoDatabase(mongoDatabase);
+    }
+
+    /**
+     * Drops the cached entities of the given type, e.g. after a change on the reference collection of that name.
+     */
+    public void invalidateType(String type) {
+        String lowerType = type.toLowerCase(Locale.ROOT);
+        synchronized (entries) {
+            typeVersions.merge(lowerType, 1L, Long::sum);
+            Set<String> keys = keysByType.remove(lowerType);
+            if (keys != null) {
+                for (String key : keys) {
+                    entries.remove(key);
+                }
+                invalidations.addAndGet(keys.size());
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    CSObjectRetriever getDelegate() {
+        return delegate;
+    }
+
+    private Object lookup(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (System.nanoTime() - entry.loadedNanos >= ttlNanos) {
+                remove(key);
+                evictions.incrementAndGet();
+                return null;
+            }
+            return entry.value;
+        }
+    }
+
+    private void store(String key, String type, long typeVersion, Object value) {
+        synchronized (entries) {
+            // A change on the reference collection during the lookup makes the loaded entity stale.
+            if (getTypeVersion(type) == typeVersion) {
+                put(key, type, value);
+            }
+        }
+    }
+
+    private void put(String key, String type, Object value) {
+        entries.put(key, new Entry(type, value, System.nanoTime()));
+        keysByType.computeIfAbsent(type, t -> new HashSet<>()).add(key);
+        if (entries.size() > maxEntries) {
+            remove(entries.keySet().iterator().next());
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            Set<String> keys = keysByType.get(entry.type);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                keysByType.remove(entry.type);
+            }
+        }
+    }
+
+    private long getTypeVersion(String type) {
+        synchronized (entries) {
+            return typeVersions.getOrDefault(type, 0L);
+        }
+    }
+
+    private static Object join(CompletableFuture<Object> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a csId lookup", e);
+        } catch (ExecutionException e) {
+            LOGGER.debug("Shared csId lookup failed", e.getCause());
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static Object unwrap(Object value) {
+        return value == NULL_ENTITY ? null : value;
+    }
+
+    private static String typeOf(String[] keyValueString) {
+        return keyValueString.length > 0 ? keyValueString[0].toLowerCase(Locale.ROOT) : "";
+    }
+
+    private static class Entry {
+        private final String type;
+        private final Object value;
+        private final long loadedNanos;
+
+        Entry(String type, Object value, long loadedNanos) {
+            this.type = type;
+            this.value = value;
+            this.loadedNanos = loadedNanos;
+        }
+    }
+}
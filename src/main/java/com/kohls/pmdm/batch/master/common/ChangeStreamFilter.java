@@ -0,0 +1,251 @@
+package com.kohls.pmdm.batch.master.common;
+
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.changestream.OperationType;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Declarative filter of a collection's change stream, turned into a {@code $match} / {@code $project} pipeline so the
+ * server drops events the application would discard before they are sent.
+ * <p>
+ * Update events can additionally be restricted to those whose updated field names contain a given string (e.g.
+ * {@code csId}) or that update a given field (e.g. {@code skuPackageShippingDimensionList}). Events of other
+ * operation types are not affected by these predicates.
+ * <p>
+ * Update events can also carry the current document, see {@link FullDocumentLookup}, reduced to the given top-level
+ * fields. Insert events always keep their whole document.
+ */
+public class ChangeStreamFilter {
+
+    private static final String UPDATED_FIELDS = "updateDescription.updatedFields";
+    private static final String FULL_DOCUMENT = "fullDocument";
+    private static final List<String> EVENT_FIELDS = Arrays.asList("_id", "operationType", "ns", "documentKey",
+            "updateDescription", "clusterTime");
+
+    /**
+     * How update events get the current version of their document.
+     */
+    public enum FullDocumentLookup {
+        /** Update events only carry their updated and removed fields. */
+        NONE,
+        /** The server looks the document up for every update event, {@code fullDocument: updateLookup}. */
+        STREAM,
+        /** The application looks up the documents of the update events of a round with one query. */
+        BATCH
+    }
+
+    private final Set<OperationType> operationTypes;
+    private final Set<String> updatedFieldsContaining;
+    private final Set<String> updatedFieldsPresent;
+    private final Set<String> projectedFields;
+    private final FullDocumentLookup fullDocumentLookup;
+    private final Set<String> fullDocumentFields;
+
+    private ChangeStreamFilter(Builder builder) {
+        this.operationTypes = Collections.unmodifiableSet(new LinkedHashSet<>(builder.operationTypes));
+        this.updatedFieldsContaining = Collections.unmodifiableSet(new LinkedHashSet<>(builder.updatedFieldsContaining));
+        this.updatedFieldsPresent = Collections.unmodifiableSet(new LinkedHashSet<>(builder.updatedFieldsPresent));
+        this.projectedFields = Collections.unmodifiableSet(new LinkedHashSet<>(builder.projectedFields));
+        this.fullDocumentLookup = builder.fullDocumentLookup;
+        this.fullDocumentFields = Collections.unmodifiableSet(new LinkedHashSet<>(builder.fullDocumentFields));
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public Set<OperationType> getOperationTypes() {
+        return operationTypes;
+    }
+
+    public Set<String> getProjectedFields() {
+        return projectedFields;
+    }
+
+    public FullDocumentLookup getFullDocumentLookup() {
+        return fullDocumentLookup;
+    }
+
+    /**
+     * Returns the fields kept of looked up documents, empty to keep whole documents.
+     */
+    public Set<String> getFullDocumentFields() {
+        return fullDocumentFields;
+    }
+
+    /**
+     * Builds the aggregation pipeline passed to {@code watch()}.
+     */
+    public List<Bson> toPipeline() {
+        List<Bson> pipeline = new ArrayList<>();
+        Bson match = toMatch();
+        if (match != null) {
+            pipeline.add(Aggregates.match(match));
+        }
+        if (fullDocumentLookup == FullDocumentLookup.STREAM && !fullDocumentFields.isEmpty()) {
+            pipeline.add(Aggregates.project(toLookupProjection()));
+        } else if (!projectedFields.isEmpty()) {
+            // The _id holds the resume token and must always be kept.
+            List<String> fields = new ArrayList<>(projectedFields);
+            fields.add("_id");
+            pipeline.add(Aggregates.project(Projections.include(fields)));
+        }
+        return pipeline;
+    }
+
+    /**
+     * Keeps the projected fields, or all fields of the change event, and reduces the looked up document of update
+     * events to the full document fields.
+     */
+    private BsonDocument toLookupProjection() {
+        BsonDocument projection = new BsonDocument();
+        for (String field : projectedFields.isEmpty() ? EVENT_FIELDS : projectedFields) {
+            projection.append(field, new BsonInt32(1));
+        }
+        projection.append("_id", new BsonInt32(1));
+        BsonDocument lookedUp = new BsonDocument("_id", new BsonString("$fullDocument._id"));
+        for (String field : fullDocumentFields) {
+            lookedUp.append(field, new BsonString("$fullDocument." + field));
+        }
+        // A document deleted before the lookup stays null instead of becoming an empty document.
+        BsonDocument isLookedUp = new BsonDocument("$and", new BsonArray(Arrays.asList(
+                new BsonDocument("$eq", new BsonArray(Arrays.asList(new BsonString("$operationType"),
+                        new BsonString(OperationType.UPDATE.getValue())))),
+                new BsonDocument("$eq", new BsonArray(Arrays.asList(new BsonDocument("$type",
+                        new BsonString("$" + FULL_DOCUMENT)), new BsonString("object")))))));
+        projection.put(FULL_DOCUMENT, new BsonDocument("$cond", new BsonArray(Arrays.asList(isLookedUp, lookedUp,
+                new BsonString("$" + FULL_DOCUMENT)))));
+        return projection;
+    }
+
+    /**
+     * Builds the pipeline of a database-level {@code watch()} covering the given collections, each with its own
+     * filter. Fields are only projected when every filter projects, the namespace is then kept for the fan-out.
+     */
+    public static List<Bson> toDatabasePipeline(Map<String, ChangeStreamFilter> filters) {
+        List<Bson> collectionMatches = new ArrayList<>();
+        Set<String> projectedFields = new LinkedHashSet<>();
+        boolean project = true;
+        for (Map.Entry<String, ChangeStreamFilter> filter : filters.entrySet()) {
+            Bson namespace = Filters.eq("ns.coll", filter.getKey());
+            Bson match = filter.getValue().toMatch();
+            collectionMatches.add(match == null ? namespace : Filters.and(namespace, match));
+            project &= !filter.getValue().projectedFields.isEmpty();
+            projectedFields.addAll(filter.getValue().projectedFields);
+        }
+        List<Bson> pipeline = new ArrayList<>();
+        pipeline.add(Aggregates.match(collectionMatches.size() == 1 ? collectionMatches.get(0)
+                : Filters.or(collectionMatches)));
+        if (project) {
+            projectedFields.add("_id");
+            projectedFields.add("ns");
+            pipeline.add(Aggregates.project(Projections.include(new ArrayList<>(projectedFields))));
+        }
+        return pipeline;
+    }
+
+    /**
+     * Returns the {@code $match} predicate of the filter, null when it lets every event through.
+     */
+    private Bson toMatch() {
+        List<Bson> match = new ArrayList<>();
+        if (!operationTypes.isEmpty()) {
+            List<String> values = new ArrayList<>();
+            for (OperationType operationType : operationTypes) {
+                values.add(operationType.getValue());
+            }
+            match.add(Filters.in("operationType", values));
+        }
+        if (!updatedFieldsContaining.isEmpty() || !updatedFieldsPresent.isEmpty()) {
+            List<Bson> updatePredicates = new ArrayList<>();
+            updatePredicates.add(Filters.ne("operationType", OperationType.UPDATE.getValue()));
+            for (String field : updatedFieldsPresent) {
+                updatePredicates.add(Filters.exists(UPDATED_FIELDS + "." + field));
+            }
+            for (String fragment : updatedFieldsContaining) {
+                updatePredicates.add(Filters.expr(updatedFieldNameContains(fragment)));
+            }
+            match.add(Filters.or(updatePredicates));
+        }
+        if (match.isEmpty()) {
+            return null;
+        }
+        return match.size() == 1 ? match.get(0) : Filters.and(match);
+    }
+
+    /**
+     * {@code {$gt: [{$size: {$filter: {input: {$objectToArray: updatedFields}, cond: {$gte: [{$indexOfCP:
+     * ["$$this.k", fragment]}, 0]}}}}, 0]}}
+     */
+    private static BsonDocument updatedFieldNameContains(String fragment) {
+        BsonDocument updatedFields = new BsonDocument("$ifNull",
+                new BsonArray(Arrays.asList(new BsonString("$" + UPDATED_FIELDS), new BsonDocument())));
+        BsonDocument condition = new BsonDocument("$gte", new BsonArray(Arrays.asList(
+                new BsonDocument("$indexOfCP", new BsonArray(Arrays.asList(new BsonString("$$this.k"),
+                        new BsonString(fragment)))),
+                new BsonInt32(0))));
+        BsonDocument matchingFields = new BsonDocument("$filter",
+                new BsonDocument("input", new BsonDocument("$objectToArray", updatedFields))
+                        .append("cond", condition));
+        return new BsonDocument("$gt", new BsonArray(Arrays.asList(new BsonDocument("$size", matchingFields),
+                new BsonInt32(0))));
+    }
+
+    public static class Builder {
+        private final Set<OperationType> operationTypes = new LinkedHashSet<>();
+        private final Set<String> updatedFieldsContaining = new LinkedHashSet<>();
+        private final Set<String> updatedFieldsPresent = new LinkedHashSet<>();
+        private final Set<String> projectedFields = new LinkedHashSet<>();
+        private final Set<String> fullDocumentFields = new LinkedHashSet<>();
+        private FullDocumentLookup fullDocumentLookup = FullDocumentLookup.NONE;
+
+        public Builder operationTypes(OperationType... operationTypes) {
+            this.operationTypes.addAll(Arrays.asList(operationTypes));
+            return this;
+        }
+
+        public Builder updatedFieldsContaining(String... fragments) {
+            this.updatedFieldsContaining.addAll(Arrays.asList(fragments));
+            return this;
+        }
+
+        public Builder updatedFieldsPresent(String... fields) {
+            this.updatedFieldsPresent.addAll(Arrays.asList(fields));
+            return this;
+        }
+
+        public Builder projectedFields(String... fields) {
+            this.projectedFields.addAll(Arrays.asList(fields));
+            return this;
+        }
+
+        /**
+         * Looks up the document of update events, keeping only the given top-level fields, or the whole document
+         * when none are given.
+         */
+        public Builder fullDocumentLookup(FullDocumentLookup fullDocumentLookup, String... fields) {
+            this.fullDocumentLookup = fullDocumentLookup;
+            this.fullDocumentFields.addAll(Arrays.asList(fields));
+            return this;
+        }
+
+        public ChangeStreamFilter build() {
+            return new ChangeStreamFilter(this);
+        }
+    }
+}
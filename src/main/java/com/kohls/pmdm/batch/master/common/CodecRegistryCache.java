@@ -0,0 +1,88 @@
+package com.kohls.pmdm.batch.master.common;
+
+import com.kohls.pmdm.domain.*;
+import com.mongodb.MongoClient;
+
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.codecs.pojo.PojoCodecProvider;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.bson.codecs.configuration.CodecRegistries.fromProviders;
+import static org.bson.codecs.configuration.CodecRegistries.fromRegistries;
+
+/**
+ * Codec registries of the watched collections, one per domain class. A registry is built the first time its
+ * collection is requested and then shared by every watcher and cursor reopen. Collections without a domain class are
+ * rejected instead of silently getting no registry.
+ */
+public class CodecRegistryCache {
+
+    private static final Map<String, Class<?>> DOMAIN_CLASSES;
+
+    static {
+        Map<String, Class<?>> domainClasses = new LinkedHashMap<>();
+        domainClasses.put("sku", SKU.class);
+        domainClasses.put("kohlsstyle", KohlsStyle.class);
+        domainClasses.put("consumerproduct", Product.class);
+        domainClasses.put("product", Product.class);
+        domainClasses.put("attributenamecrossreference", AttributeNameCrossReference.class);
+        domainClasses.put("brand", Brand.class);
+        domainClasses.put("businessgroup", BusinessGroup.class);
+        domainClasses.put("buyingcontact", BuyingContact.class);
+        domainClasses.put("calendar", Calendar.class);
+        domainClasses.put("color", Color.class);
+        domainClasses.put("country", Country.class);
+        domainClasses.put("customerchoicebirthstone", CustomerChoiceBirthStone.class);
+        domainClasses.put("department", Department.class);
+        domainClasses.put("operatingcompany", OperatingCompany.class);
+        domainClasses.put("packagingspecificationgrid", PackagingSpecificationGrid.class);
+        domainClasses.put("referencecode", ReferenceCode.class);
+        domainClasses.put("reportinglabelpurpose", ReportingLabelPurpose.class);
+        domainClasses.put("size", Size.class);
+        domainClasses.put("vendor", Vendor.class);
+        DOMAIN_CLASSES = Collections.unmodifiableMap(domainClasses);
+    }
+
+    private final Map<Class<?>, CodecRegistry> registries = new ConcurrentHashMap<>();
+
+    /**
+     * Builds the registries of the given collections, failing on the first collection without a domain class.
+     */
+    public void init(Collection<String> collectionNames) {
+        collectionNames.forEach(this::get);
+    }
+
+    /**
+     * Returns the codec registry of the given collection.
+     *
+     * @throws IllegalArgumentException
+     *             if the collection has no domain class
+     */
+    public CodecRegistry get(String collectionName) {
+        Class<?> domainClass = getDomainClass(collectionName);
+        return registries.computeIfAbsent(domainClass, CodecRegistryCache::createRegistry);
+    }
+
+    public static Class<?> getDomainClass(String collectionName) {
+        Class<?> domainClass = DOMAIN_CLASSES.get(collectionName.toLowerCase(Locale.ROOT));
+        if (domainClass == null) {
+            throw new IllegalArgumentException("No domain class mapped for collection " + collectionName
+                    + ", known collections: " + DOMAIN_CLASSES.keySet());
+        }
+        return domainClass;
+    }
+
+    private static CodecRegistry createRegistry(Class<?> domainClass) {
+        CodecRegistry registry = fromRegistries(MongoClient.getDefaultCodecRegistry(),
+                fromProviders(PojoCodecProvider.builder().register(domainClass).build()));
+        // Builds the PojoCodec now rather than on the first decode.
+        registry.get(domainClass);
+        return registry;
+    }
+}
@@ -1,8 +1,15 @@
 package com.kohls.pmdm.batch.master.common;
 
+import com.mongodb.client.model.changestream.OperationType;
+
 import org.springframework.context.annotation.Bean;
 import org.springframework.stereotype.Component;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
 
 public class CommonProperties {
     public String getCollectionSuffix() {
@@ -13,7 +20,323 @@ public class CommonProperties {
         return false;
     }
 
-    public int getCsTokenCount() {
-        return 0;
+    public String getKafkaBootstrapServers() {
+        return "localhost:9092";
+    }
+
+    public int getKafkaLingerMillis() {
+        return 20;
+    }
+
+    public int getKafkaBatchSize() {
+        return 64 * 1024;
+    }
+
+    public String getKafkaCompressionType() {
+        return "lz4";
+    }
+
+    public int getVersionBatchMaxDocuments() {
+        return 500;
+    }
+
+    public long getVersionBatchMaxBytes() {
+        return 8 * 1024 * 1024;
+    }
+
+    public long getVersionBatchMaxDelayMillis() {
+        return 1000;
+    }
+
+    public long getHealthMaxLagMillis() {
+        return 5 * 60 * 1000;
+    }
+
+    public int getCsCacheMaxEntries() {
+        return 10000;
+    }
+
+    public long getCsCacheTtlMillis() {
+        return 10 * 60 * 1000;
+    }
+
+    /**
+     * Minimum interval at which a csId of an unknown entity type reads the collection names again.
+     */
+    public long getCsCollectionNamesRefreshMillis() {
+        return 60 * 1000;
+    }
+
+    /**
+     * Whether csIds refer to the documents of the collection, whose changes then invalidate the cached entities of
+     * its type. All collections but the product hierarchy itself are reference data such as brand or color.
+     */
+    public boolean isCsReferenceCollection(String collectionName) {
+        return !Arrays.asList("sku", "kohlsstyle", "consumerproduct", "product")
+                .contains(collectionName.toLowerCase(Locale.ROOT));
+    }
+
+    public int getWatcherPoolSize() {
+        return 4;
+    }
+
+    public int getWatcherMaxEventsPerRound() {
+        return 500;
+    }
+
+    public long getWatcherMaxAwaitMillis() {
+        return 1000;
+    }
+
+    public long getWatcherMaxDrainMillis() {
+        return 20;
+    }
+
+    public long getWatcherBackoffInitialMillis() {
+        return 100;
+    }
+
+    public long getWatcherBackoffMaxMillis() {
+        return 30000;
+    }
+
+    public int getProcessingPoolSize() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    public int getProcessingLanesPerCollection() {
+        return 4;
+    }
+
+    public int getProcessingMaxInFlight() {
+        return 2000;
+    }
+
+    public int getWriterPoolSize() {
+        return 4;
+    }
+
+    public int getWriterQueueCapacity() {
+        return 4;
+    }
+
+    public long getWriterBackpressureDelayMillis() {
+        return 50;
+    }
+
+    public boolean isCheckpointTransactionsEnabled() {
+        return true;
+    }
+
+    /**
+     * Interval at which the support for transactions is checked again, a failover may change it.
+     */
+    public long getCheckpointTransactionsRecheckMillis() {
+        return 5 * 60 * 1000;
+    }
+
+    public int getCheckpointMaxBatches() {
+        return 10;
+    }
+
+    public long getCheckpointMaxDelayMillis() {
+        return 5000;
+    }
+
+    /**
+     * Whether the Kafka sends of successive updates of a document are merged, see UpdateConflator. Every update is
+     * still stored in the version collection.
+     */
+    public boolean isKafkaConflationEnabled(String collectionName) {
+        return false;
+    }
+
+    public long getKafkaConflationWindowMillis() {
+        return 1000;
+    }
+
+    public int getKafkaConflationMaxUpdates() {
+        return 100;
+    }
+
+    /**
+     * Number of versions between the snapshots a point-in-time rebuild stores of a document.
+     */
+    public int getVersionSnapshotInterval() {
+        return 50;
+    }
+
+    /**
+     * Whether the versions of a collection are written to monthly collections, see VersionBuckets.
+     */
+    public boolean isVersionBucketingEnabled(String collectionName) {
+        return false;
+    }
+
+    /**
+     * Number of monthly version collections kept, including the current one. Older ones are archived and dropped.
+     */
+    public int getVersionRetentionMonths() {
+        return 13;
+    }
+
+    /**
+     * Directory the expired version collections are archived to as gzipped BSON, null to drop them without archive.
+     */
+    public String getVersionArchiveDirectory() {
+        return "version-archive";
+    }
+
+    public long getVersionRetentionIntervalMillis() {
+        return 60 * 60 * 1000;
+    }
+
+    /**
+     * Number of dead letters retried at the same time, on threads of their own so the change streams keep their pace.
+     */
+    public int getDeadLetterRetryParallelism() {
+        return 2;
+    }
+
+    public int getDeadLetterRetryBatchSize() {
+        return 100;
+    }
+
+    public long getDeadLetterRetryIntervalMillis() {
+        return 30000;
+    }
+
+    public long getDeadLetterRetryTimeoutMillis() {
+        return 30000;
+    }
+
+    public long getDeadLetterBackoffMaxMillis() {
+        return 60 * 60 * 1000;
+    }
+
+    /**
+     * Attempts after which a dead letter is kept as failed for manual inspection instead of being retried.
+     */
+    public int getDeadLetterMaxAttempts() {
+        return 10;
+    }
+
+    /**
+     * Whether the flattened SKU records are kept in memory and sent whole, see FlattenedSkuStore.
+     */
+    public boolean isFlattenedSkuStoreEnabled() {
+        return false;
+    }
+
+    /**
+     * Numeric business key of the records of a collection in the flattened SKU store, null for collections it does
+     * not keep. A SKU record refers to its style and consumer product by the key fields of theirs.
+     */
+    public String getFlattenedSkuStoreKeyField(String collectionName) {
+        if ("sku".equalsIgnoreCase(collectionName)) {
+            return "skuNumber";
+        } else if ("kohlsstyle".equalsIgnoreCase(collectionName)) {
+            return "styleNumber";
+        } else if ("consumerproduct".equalsIgnoreCase(collectionName)) {
+            return "consumerProductNumber";
+        }
+        return null;
+    }
+
+    /**
+     * Top level fields of a collection kept in the flattened SKU store besides its key fields, empty to keep them all.
+     */
+    public List<String> getFlattenedSkuStoreFields(String collectionName) {
+        return Collections.emptyList();
+    }
+
+    public int getFlattenedSkuStoreExpectedSkus() {
+        return 1 << 20;
+    }
+
+    public int getFlattenedSkuStoreSeedParallelism() {
+        return 8;
+    }
+
+    public int getCatchUpParallelism() {
+        return 4;
+    }
+
+    public int getCatchUpQueueCapacity() {
+        return 1000;
+    }
+
+    /**
+     * Field holding the last modification time of the documents of a collection, used to find the documents changed
+     * while the change stream could not be resumed.
+     */
+    public String getCatchUpTimestampField(String collectionName) {
+        return "modifiedDateTime";
+    }
+
+    /**
+     * How far before the last checkpoint the catch-up scan starts, covering events still in flight at that time and
+     * clock skew between the writers of the documents and the cluster.
+     */
+    public long getCatchUpMarginMillis() {
+        return 5 * 60 * 1000;
+    }
+
+    public int getBootstrapParallelism() {
+        return 8;
+    }
+
+    public boolean isDatabaseChangeStreamEnabled() {
+        return false;
+    }
+
+    public int getDatabaseChangeStreamQueueCapacity() {
+        return 5000;
+    }
+
+    /**
+     * Whether instances claim leases on the watched collections instead of each watching all of them.
+     */
+    public boolean isLeaseCoordinationEnabled() {
+        return false;
+    }
+
+    public long getLeaseTtlMillis() {
+        return 30000;
+    }
+
+    public long getLeaseHeartbeatMillis() {
+        return 10000;
+    }
+
+    /**
+     * Time before the lease expires at which an instance that could not renew it stops watching the collection.
+     */
+    public long getLeaseSafetyMarginMillis() {
+        return 5000;
+    }
+
+    /**
+     * Interval at which the renewal deadlines of the held leases are checked, shorter than the heartbeat.
+     */
+    public long getLeaseCheckMillis() {
+        return 1000;
+    }
+
+    /**
+     * Change stream filter of the given collection. Only inserts and updates are stored in the version collections,
+     * so by default the server drops every other event, except the deletes of csId reference collections, which
+     * invalidate the cached entities, and of the collections kept in the flattened SKU store, which drop their records.
+     * Collections whose Kafka consumers need whole documents can opt in to
+     * {@link ChangeStreamFilter.Builder#fullDocumentLookup} with the fields the flattened SKU is built from.
+     */
+    public ChangeStreamFilter getChangeStreamFilter(String collectionName) {
+        ChangeStreamFilter.Builder builder = ChangeStreamFilter.builder()
+                .operationTypes(OperationType.INSERT, OperationType.UPDATE);
+        if (isCsReferenceCollection(collectionName)
+                || (isFlattenedSkuStoreEnabled() && getFlattenedSkuStoreKeyField(collectionName) != null)) {
+            builder.operationTypes(OperationType.DELETE);
+        }
+        return builder.build();
     }
 }
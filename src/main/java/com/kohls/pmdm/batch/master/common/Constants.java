@@ -4,5 +4,8 @@ package com.kohls.pmdm.batch.master.common;
 public class Constants {
     public static final String SEQUENCE = "sequence";
     public static final String TOKEN = "bsonToken";
+    public static final String CLUSTER_TIME = "clusterTime";
     public static final String ID = "_id";
+    public static final String LEASE = "lease";
+    public static final String LEASE_TOKEN = "leaseToken";
 }
@@ -0,0 +1,49 @@
+package com.kohls.pmdm.batch.master.common;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+
+/**
+ * Preconfigured Jackson writers and date formatters shared by all change stream watchers. ObjectWriter and
+ * DateTimeFormatter are immutable and thread safe, so the serializer caches are built once rather than per event.
+ */
+public final class JsonMappers {
+
+    public static final String DATE_TIME_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
+
+    /**
+     * Formats dates the way the Kafka payloads expect them, in the default time zone like SimpleDateFormat did.
+     */
+    public static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern(DATE_TIME_PATTERN)
+            .withZone(ZoneId.systemDefault());
+
+    /**
+     * Writer skipping null properties, used for cross reference entities.
+     */
+    public static final ObjectWriter NON_NULL_WRITER = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .writer();
+
+    /**
+     * Writer of the Kafka payloads: null properties skipped and dates written with {@link #DATE_TIME_PATTERN}.
+     */
+    public static final ObjectWriter KAFKA_WRITER = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .setDateFormat(new SimpleDateFormat(DATE_TIME_PATTERN))
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .writer();
+
+    private JsonMappers() {
+    }
+
+    public static String formatDate(Date date) {
+        return DATE_TIME_FORMATTER.format(date.toInstant());
+    }
+}
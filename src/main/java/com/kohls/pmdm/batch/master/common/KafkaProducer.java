@@ -1,10 +1,76 @@
 package com.kohls.pmdm.batch.master.common;
 
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.StringSerializer;
+
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import java.util.Properties;
+
+/**
+ * Publishes change stream payloads to Kafka asynchronously. Sends are batched by the Kafka producer (linger, batch
+ * size and compression come from {@link CommonProperties}) and report their acknowledgement through the callback.
+ * Messages are keyed by document key, so all changes of a document land on the same partition in order.
+ * <p>
+ * The producer is created on the first send. Tests can pass an {@link org.apache.kafka.clients.producer.MockProducer}
+ * instead of a broker.
+ */
 @Component
 public class KafkaProducer {
-    public void produce(String fskuTopic, String s) {
 
+    //@Autowired
+    CommonProperties commonProperties = new CommonProperties();
+
+    private volatile Producer<String, String> producer;
+
+    public KafkaProducer() {
+    }
+
+    public KafkaProducer(Producer<String, String> producer) {
+        this.producer = producer;
+    }
+
+    public void produce(String topic, String key, String payload, Callback callback) {
+        getProducer().send(new ProducerRecord<>(topic, key, payload), callback);
+    }
+
+    @PreDestroy
+    public void close() {
+        Producer<String, String> current = producer;
+        if (current != null) {
+            current.flush();
+            current.close();
+        }
+    }
+
+    private Producer<String, String> getProducer() {
+        Producer<String, String> current = producer;
+        if (current == null) {
+            synchronized (this) {
+                current = producer;
+                if (current == null) {
+                    current = new org.apache.kafka.clients.producer.KafkaProducer<>(producerProperties());
+                    producer = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private Properties producerProperties() {
+        Properties properties = new Properties();
+        properties.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, commonProperties.getKafkaBootstrapServers());
+        properties.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        properties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        properties.put(ProducerConfig.ACKS_CONFIG, "all");
+        properties.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true);
+        properties.put(ProducerConfig.LINGER_MS_CONFIG, commonProperties.getKafkaLingerMillis());
+        properties.put(ProducerConfig.BATCH_SIZE_CONFIG, commonProperties.getKafkaBatchSize());
+        properties.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, commonProperties.getKafkaCompressionType());
+        return properties;
     }
 }
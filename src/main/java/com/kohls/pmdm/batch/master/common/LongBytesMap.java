@@ -0,0 +1,137 @@
+package com.kohls.pmdm.batch.master.common;
+
+/**
+ * Open addressing map from primitive long keys to byte arrays, with linear probing. An entry costs its key, one array
+ * slot and the byte array itself, with no boxing or entry objects, so tens of millions of entries stay within a
+ * predictable footprint. Removal shifts the entries probed past the removed one back, so no tombstones are left
+ * behind. Not thread safe.
+ */
+public class LongBytesMap {
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private long[] keys;
+    private byte[][] values;
+    private int size;
+    private long valueBytes;
+
+    /**
+     * Sizes the map for the expected number of entries, so it does not grow while it stays below it.
+     */
+    public LongBytesMap(int expectedSize) {
+        int capacity = tableSizeFor(expectedSize);
+        keys = new long[capacity];
+        values = new byte[capacity][];
+    }
+
+    public byte[] get(long key) {
+        int mask = keys.length - 1;
+        for (int i = mix(key) & mask; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Associates the value with the key, replacing its previous value.
+     */
+    public void put(long key, byte[] value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null value for key " + key);
+        }
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                valueBytes += value.length - values[i].length;
+                values[i] = value;
+                return;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        valueBytes += value.length;
+        if (++size > (keys.length >> 2) * 3) {
+            resize();
+        }
+    }
+
+    /**
+     * Removes the entry of the key, returning its value, or null if there was none.
+     */
+    public byte[] remove(long key) {
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (values[i] != null && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        byte[] removed = values[i];
+        if (removed == null) {
+            return null;
+        }
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            // An entry can fill the hole unless its home slot lies between the hole and the entry.
+            if (((j - mix(keys[j])) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        values[i] = null;
+        size--;
+        valueBytes -= removed.length;
+        return removed;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns an estimate of the heap used by the map, the tables plus the arrays of the values.
+     */
+    public long getMemoryBytes() {
+        // Byte arrays carry a 16 byte header, and object references take 4 bytes with compressed pointers.
+        return keys.length * 12L + size * 16L + valueBytes;
+    }
+
+    private void resize() {
+        if (keys.length == MAX_CAPACITY) {
+            throw new IllegalStateException("LongBytesMap is full at " + size + " entries");
+        }
+        long[] oldKeys = keys;
+        byte[][] oldValues = values;
+        keys = new long[oldKeys.length << 1];
+        values = new byte[oldKeys.length << 1][];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] != null) {
+                int i = mix(oldKeys[j]) & mask;
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    static int tableSizeFor(int expectedSize) {
+        long capacity = Math.max(16, (long) Math.ceil(expectedSize / 0.75));
+        return (int) Math.min(MAX_CAPACITY, Long.highestOneBit(capacity - 1) << 1);
+    }
+
+    /**
+     * Spreads sequential keys such as SKU numbers over the table.
+     */
+    static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
@@ -0,0 +1,113 @@
+package com.kohls.pmdm.batch.master.common;
+
+/**
+ * Open addressing map from primitive long keys to primitive long values, with linear probing. The companion of
+ * {@link LongBytesMap} for secondary keys. Removal shifts entries back like {@link LongBytesMap#remove}. Not thread
+ * safe.
+ */
+public class LongLongMap {
+
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private long[] keys;
+    private long[] values;
+    private boolean[] used;
+    private int size;
+
+    /**
+     * Sizes the map for the expected number of entries, so it does not grow while it stays below it.
+     */
+    public LongLongMap(int expectedSize) {
+        int capacity = LongBytesMap.tableSizeFor(expectedSize);
+        keys = new long[capacity];
+        values = new long[capacity];
+        used = new boolean[capacity];
+    }
+
+    /**
+     * Returns the value of the key, or the given default when the key is not in the map.
+     */
+    public long get(long key, long defaultValue) {
+        int mask = keys.length - 1;
+        for (int i = LongBytesMap.mix(key) & mask; used[i]; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return defaultValue;
+    }
+
+    public void put(long key, long value) {
+        int mask = keys.length - 1;
+        int i = LongBytesMap.mix(key) & mask;
+        for (; used[i]; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        used[i] = true;
+        if (++size > (keys.length >> 2) * 3) {
+            resize();
+        }
+    }
+
+    /**
+     * Removes the key, returning its value or the given default when the key is not in the map.
+     */
+    public long remove(long key, long defaultValue) {
+        int mask = keys.length - 1;
+        int i = LongBytesMap.mix(key) & mask;
+        while (used[i] && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (!used[i]) {
+            return defaultValue;
+        }
+        long removed = values[i];
+        for (int j = (i + 1) & mask; used[j]; j = (j + 1) & mask) {
+            if (((j - LongBytesMap.mix(keys[j])) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        used[i] = false;
+        size--;
+        return removed;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getMemoryBytes() {
+        return keys.length * 17L;
+    }
+
+    private void resize() {
+        if (keys.length == MAX_CAPACITY) {
+            throw new IllegalStateException("LongLongMap is full at " + size + " entries");
+        }
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        boolean[] oldUsed = used;
+        keys = new long[oldKeys.length << 1];
+        values = new long[oldKeys.length << 1];
+        used = new boolean[oldKeys.length << 1];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldUsed[j]) {
+                int i = LongBytesMap.mix(oldKeys[j]) & mask;
+                while (used[i]) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+                used[i] = true;
+            }
+        }
+    }
+}
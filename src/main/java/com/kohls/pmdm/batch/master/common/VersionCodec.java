@@ -0,0 +1,113 @@
+package com.kohls.pmdm.batch.master.common;
+
+import com.kohls.pmdm.domain.Version;
+import com.mongodb.MongoClient;
+
+import org.bson.BsonDocument;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.RawBsonDocumentCodec;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bson.codecs.configuration.CodecRegistries.fromCodecs;
+import static org.bson.codecs.configuration.CodecRegistries.fromRegistries;
+
+/**
+ * Writes {@link Version} documents of the version collections straight to BSON. The change event parts are copied
+ * as they come from the change stream (raw bytes for the full document), so no intermediate JSON is produced. The
+ * {@code _id} of a version is the resume token of its change event, which makes writing an event twice a no-op.
+ */
+public class VersionCodec implements Codec<Version> {
+
+    public static final String ID = "_id";
+    public static final String ID_DOCUMENT = "idDocument";
+    public static final String INSERTED_FIELDS = "insertedFields";
+    public static final String UPDATED_FIELDS = "updatedFields";
+    public static final String REMOVED_FIELDS = "removedFields";
+    public static final String CLUSTER_TIME = "clusterTime";
+
+    public static final CodecRegistry VERSION_CODEC_REGISTRY = fromRegistries(MongoClient.getDefaultCodecRegistry(),
+            fromCodecs(new VersionCodec()));
+
+    private final BsonDocumentCodec documentCodec = new BsonDocumentCodec();
+    private final RawBsonDocumentCodec rawDocumentCodec = new RawBsonDocumentCodec();
+
+    @Override
+    public void encode(BsonWriter writer, Version version, EncoderContext encoderContext) {
+        writer.writeStartDocument();
+        writeDocument(writer, ID, version.getId(), encoderContext);
+        writeDocument(writer, ID_DOCUMENT, version.getIdDocument(), encoderContext);
+        writeDocument(writer, INSERTED_FIELDS, version.getInsertedFields(), encoderContext);
+        writeDocument(writer, UPDATED_FIELDS, version.getUpdatedFields(), encoderContext);
+        if (version.getRemovedFields() != null) {
+            writer.writeStartArray(REMOVED_FIELDS);
+            for (String removedField : version.getRemovedFields()) {
+                writer.writeString(removedField);
+            }
+            writer.writeEndArray();
+        }
+        if (version.getClusterTime() != null) {
+            writer.writeTimestamp(CLUSTER_TIME, version.getClusterTime());
+        }
+        writer.writeEndDocument();
+    }
+
+    @Override
+    public Version decode(BsonReader reader, DecoderContext decoderContext) {
+        Version version = new Version();
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            if (ID.equals(name) && reader.getCurrentBsonType() == BsonType.DOCUMENT) {
+                version.setId(documentCodec.decode(reader, decoderContext));
+            } else if (ID_DOCUMENT.equals(name)) {
+                version.setIdDocument(documentCodec.decode(reader, decoderContext));
+            } else if (INSERTED_FIELDS.equals(name)) {
+                version.setInsertedFields(documentCodec.decode(reader, decoderContext));
+            } else if (UPDATED_FIELDS.equals(name)) {
+                version.setUpdatedFields(documentCodec.decode(reader, decoderContext));
+            } else if (REMOVED_FIELDS.equals(name)) {
+                List<String> removedFields = new ArrayList<>();
+                reader.readStartArray();
+                while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                    removedFields.add(reader.readString());
+                }
+                reader.readEndArray();
+                version.setRemovedFields(removedFields);
+            } else if (CLUSTER_TIME.equals(name) && reader.getCurrentBsonType() == BsonType.TIMESTAMP) {
+                version.setClusterTime(reader.readTimestamp());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+        return version;
+    }
+
+    @Override
+    public Class<Version> getEncoderClass() {
+        return Version.class;
+    }
+
+    private void writeDocument(BsonWriter writer, String name, BsonDocument document,
+                               EncoderContext encoderContext) {
+        if (document != null) {
+            writer.writeName(name);
+            if (document instanceof RawBsonDocument) {
+                // Raw documents are piped byte for byte.
+                encoderContext.encodeWithChildContext(rawDocumentCodec, writer, (RawBsonDocument) document);
+            } else {
+                encoderContext.encodeWithChildContext(documentCodec, writer, document);
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Date;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Recovers a collection whose change stream can no longer be resumed because its resume token and cluster time have
+ * fallen off the oplog. The documents modified since the last checkpoint are read in time slices by a bounded number
+ * of threads and handed out as insert events with their full document, then the cursor switches over to a change
+ * stream started at the cluster time the scan began.
+ * <p>
+ * The scanned events carry a catch-up resume token, which cannot be resumed after, holding the cluster time of the
+ * checkpoint the scan started from. Slices are scanned in parallel, so a checkpoint taken during the scan says nothing
+ * about its progress; it keeps that cluster time until the stream is attached, and a restart before then scans again.
+ * Documents without the timestamp field are not found by the scan.
+ */
+class CatchUpScan implements MongoCursor<ChangeStreamDocument<RawBsonDocument>> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CatchUpScan.class);
+    private static final String CATCH_UP = "catchUp";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final int SLICES_PER_THREAD = 4;
+    private static final long POLL_MILLIS = 100;
+
+    private final String collectionName;
+    private final BsonDocument namespace;
+    private final BsonTimestamp attachAt;
+    private final BsonTimestamp checkpointClusterTime;
+    private final Supplier<MongoCursor<ChangeStreamDocument<RawBsonDocument>>> attach;
+    private final BlockingQueue<ChangeStreamDocument<RawBsonDocument>> queue;
+    private final ExecutorService executor;
+    private final AtomicInteger remainingSlices = new AtomicInteger();
+    private final AtomicInteger scanned = new AtomicInteger();
+    private volatile RuntimeException failure;
+    private MongoCursor<ChangeStreamDocument<RawBsonDocument>> stream;
+
+    /**
+     * Starts scanning the documents of the collection whose timestamp field is at or after {@code from}.
+     *
+     * @param checkpointClusterTime
+     *            BsonTimestamp cluster time of the checkpoint the scan starts from, checkpointed until it completes
+     * @param attachAt
+     *            BsonTimestamp cluster time at the start of the scan, the change stream starts there
+     * @param attach
+     *            opens the change stream at {@code attachAt} once the scan is complete
+     */
+    CatchUpScan(MongoCollection<RawBsonDocument> collection, String timestampField, Date from,
+                BsonTimestamp checkpointClusterTime, BsonTimestamp attachAt,
+                Supplier<MongoCursor<ChangeStreamDocument<RawBsonDocument>>> attach, int parallelism,
+                int queueCapacity) {
+        this.collectionName = collection.getNamespace().getCollectionName();
+        this.namespace = new BsonDocument("db", new BsonString(collection.getNamespace().getDatabaseName()))
+                .append("coll", new BsonString(collectionName));
+        this.attachAt = attachAt;
+        this.checkpointClusterTime = checkpointClusterTime;
+        this.attach = attach;
+        this.queue = new LinkedBlockingQueue<>(queueCapacity);
+        this.executor = Executors.newFixedThreadPool(parallelism,
+                runnable -> new Thread(runnable, "cs-catchup-" + collectionName));
+
+        long to = attachAt.getTime() * 1000L;
+        int slices = parallelism * SLICES_PER_THREAD;
+        long sliceMillis = Math.max(1, (to - from.getTime()) / slices);
+        remainingSlices.set(slices);
+        LOGGER.warn("Catching up collection {} from {} to {} by {} in {} slices", collectionName, from, new Date(to),
+                timestampField, slices);
+        for (int i = 0; i < slices; i++) {
+            Date sliceFrom = new Date(from.getTime() + i * sliceMillis);
+            // The last slice is open ended, documents modified during the scan are also seen by the stream.
+            Bson filter = i == slices - 1 ? Filters.gte(timestampField, sliceFrom)
+                    : Filters.and(Filters.gte(timestampField, sliceFrom),
+                    Filters.lt(timestampField, new Date(sliceFrom.getTime() + sliceMillis)));
+            executor.execute(() -> scan(collection, filter));
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Returns whether the resume token was handed out by a catch-up scan and cannot be resumed after.
+     */
+    static boolean isCatchUpToken(BsonDocument resumeToken) {
+        return resumeToken.containsKey(CATCH_UP);
+    }
+
+    /**
+     * Returns the cluster time to checkpoint with the resume token of an event: the cluster time of the checkpoint
+     * the scan started from for scanned events, the cluster time of the event otherwise.
+     */
+    static BsonTimestamp getCheckpointClusterTime(ChangeStreamDocument<RawBsonDocument> event) {
+        BsonDocument resumeToken = event.getResumeToken();
+        if (resumeToken != null && isCatchUpToken(resumeToken) && resumeToken.isTimestamp(CHECKPOINT)) {
+            return resumeToken.getTimestamp(CHECKPOINT);
+        }
+        return event.getClusterTime();
+    }
+
+    @Override
+    public ChangeStreamDocument<RawBsonDocument> tryNext() {
+        if (stream != null) {
+            return stream.tryNext();
+        }
+        RuntimeException exc = failure;
+        if (exc != null) {
+            throw new IllegalStateException("Catch-up scan of collection " + collectionName + " failed", exc);
+        }
+        boolean complete = remainingSlices.get() == 0;
+        ChangeStreamDocument<RawBsonDocument> event;
+        try {
+            event = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (event == null && complete) {
+            LOGGER.warn("Caught up collection {} with {} documents, attaching the change stream at {}",
+                    collectionName, scanned.get(), attachAt);
+            stream = attach.get();
+        }
+        return event;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return true;
+    }
+
+    @Override
+    public ChangeStreamDocument<RawBsonDocument> next() {
+        ChangeStreamDocument<RawBsonDocument> event;
+        while ((event = tryNext()) == null) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new NoSuchElementException();
+            }
+        }
+        return event;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    @Override
+    public ServerCursor getServerCursor() {
+        return stream == null ? null : stream.getServerCursor();
+    }
+
+    @Override
+    public ServerAddress getServerAddress() {
+        return stream == null ? null : stream.getServerAddress();
+    }
+
+    private void scan(MongoCollection<RawBsonDocument> source, Bson filter) {
+        try (MongoCursor<RawBsonDocument> cursor = source.find(filter).iterator()) {
+            while (cursor.hasNext() && failure == null) {
+                RawBsonDocument document = cursor.next();
+                BsonValue id = document.get("_id");
+                BsonDocument resumeToken = new BsonDocument(CATCH_UP, attachAt)
+                        .append(CHECKPOINT, checkpointClusterTime).append("_id", id);
+                queue.put(new ChangeStreamDocument<>(resumeToken, namespace, document,
+                        new BsonDocument("_id", id), attachAt, OperationType.INSERT, null));
+                scanned.incrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException exc) {
+            failure = exc;
+        } finally {
+            remainingSlices.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+import org.bson.RawBsonDocument;
+
+/**
+ * Opens the change events of a watched collection. The default source is the MongoDB change stream resumed from the
+ * stored resume token; {@link RecordedChangeEventSource} replays events recorded to files instead.
+ */
+public interface ChangeEventSource {
+
+    /**
+     * Opens a cursor over the change events of the given collection. {@link MongoCursor#tryNext()} returns null when
+     * no event is available yet.
+     */
+    MongoCursor<ChangeStreamDocument<RawBsonDocument>> open(String collectionName, ClientSession session);
+}
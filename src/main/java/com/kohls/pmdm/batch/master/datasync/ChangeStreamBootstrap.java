@@ -0,0 +1,139 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.Constants;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoCommandException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertManyOptions;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Prepares the {@value Constants#SEQUENCE} documents and the version collections of the watched collections at
+ * startup. The sequence documents are read with a single {@code $in} query and the missing ones inserted in one batch,
+ * then the current version collections and their indexes are created concurrently, and each collection is handed over
+ * as soon as its own version collection is ready. Every step tolerates the work of another instance starting at the
+ * same time.
+ */
+public class ChangeStreamBootstrap {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChangeStreamBootstrap.class);
+    private static final int NAMESPACE_EXISTS = 48;
+
+    private final MongoDatabase mongoDatabase;
+    private final VersionBuckets versionBuckets;
+    private final int parallelism;
+
+    public ChangeStreamBootstrap(MongoDatabase mongoDatabase, VersionBuckets versionBuckets, int parallelism) {
+        this.mongoDatabase = mongoDatabase;
+        this.versionBuckets = versionBuckets;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Bootstraps the given collections and passes each ready collection with its sequence document to the callback,
+     * from a bootstrap thread.
+     */
+    public void run(List<String> collectionNames, BiConsumer<String, BsonDocument> onReady) {
+        long start = System.currentTimeMillis();
+        Set<String> existing = new HashSet<>();
+        mongoDatabase.listCollectionNames().into(existing);
+        createCollection(Constants.SEQUENCE, existing);
+        Map<String, BsonDocument> sequences = loadSequences(collectionNames);
+
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism,
+                collectionNames.size())), runnable -> new Thread(runnable, "cs-bootstrap-" + count.incrementAndGet()));
+        try {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (String collectionName : collectionNames) {
+                futures.add(CompletableFuture.runAsync(() -> {
+                    versionBuckets.ensureBucket(versionBuckets.getBucket(collectionName, null));
+                    onReady.accept(collectionName, sequences.get(collectionName));
+                }, executor));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        } finally {
+            executor.shutdown();
+        }
+        LOGGER.info("Bootstrapped collections {} in {} ms", collectionNames, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Reads the sequence documents of all collections at once and inserts the missing ones.
+     */
+    private Map<String, BsonDocument> loadSequences(List<String> collectionNames) {
+        MongoCollection<BsonDocument> sequenceCollection = mongoDatabase.getCollection(Constants.SEQUENCE,
+                BsonDocument.class);
+        List<String> tokenIds = new ArrayList<>();
+        for (String collectionName : collectionNames) {
+            tokenIds.add(collectionName + Constants.TOKEN);
+        }
+        Map<String, BsonDocument> documentsById = new HashMap<>();
+        for (BsonDocument document : sequenceCollection.find(Filters.in(Constants.ID, tokenIds))) {
+            documentsById.put(document.getString(Constants.ID).getValue(), document);
+        }
+        List<BsonDocument> missing = new ArrayList<>();
+        for (String tokenId : tokenIds) {
+            if (!documentsById.containsKey(tokenId)) {
+                BsonDocument document = new BsonDocument(Constants.ID, new BsonString(tokenId));
+                missing.add(document);
+                documentsById.put(tokenId, document);
+            }
+        }
+        if (!missing.isEmpty()) {
+            try {
+                sequenceCollection.insertMany(missing, new InsertManyOptions().ordered(false));
+            } catch (MongoBulkWriteException exc) {
+                for (BulkWriteError error : exc.getWriteErrors()) {
+                    if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                        throw exc;
+                    }
+                }
+                // Inserted by another instance in the meantime, its checkpoint is read when the cursor opens.
+                for (BulkWriteError error : exc.getWriteErrors()) {
+                    documentsById.remove(missing.get(error.getIndex()).getString(Constants.ID).getValue());
+                }
+            }
+            LOGGER.info("Created sequence documents {}", missing);
+        }
+        Map<String, BsonDocument> sequences = new HashMap<>();
+        for (String collectionName : collectionNames) {
+            sequences.put(collectionName, documentsById.get(collectionName + Constants.TOKEN));
+        }
+        return sequences;
+    }
+
+    private void createCollection(String collectionName, Set<String> existing) {
+        if (!existing.contains(collectionName)) {
+            try {
+                mongoDatabase.createCollection(collectionName);
+                LOGGER.info("Created a new Collection : {}", collectionName);
+            } catch (MongoCommandException exc) {
+                if (exc.getErrorCode() != NAMESPACE_EXISTS) {
+                    throw exc;
+                }
+            }
+        }
+    }
+}
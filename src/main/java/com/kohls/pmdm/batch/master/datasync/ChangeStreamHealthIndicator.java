@@ -0,0 +1,54 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.CommonProperties;
+
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reports the change stream watchers as down when one of them is stopped, keeps failing or lags behind the cluster
+ * by more than the configured maximum.
+ */
+@Component
+public class ChangeStreamHealthIndicator implements HealthIndicator {
+
+    //@Autowired
+    CommonProperties commonProperties = new CommonProperties();
+
+    private final ChangeStreamScheduler changeStreamScheduler;
+    private final ChangeStreamService changeStreamService;
+
+    public ChangeStreamHealthIndicator(ChangeStreamScheduler changeStreamScheduler,
+                                       ChangeStreamService changeStreamService) {
+        this.changeStreamScheduler = changeStreamScheduler;
+        this.changeStreamService = changeStreamService;
+    }
+
+    @Override
+    public Health health() {
+        boolean up = true;
+        Health.Builder builder = new Health.Builder();
+        for (String collectionName : changeStreamScheduler.getWatchedCollections()) {
+            ChangeStreamWatcher watcher = changeStreamScheduler.getWatcher(collectionName);
+            if (watcher == null) {
+                continue;
+            }
+            long lagMillis = changeStreamService.getMetrics().getReplicationLagMillis(collectionName);
+            Map<String, Object> details = new LinkedHashMap<>();
+            details.put("running", watcher.isRunning());
+            details.put("consecutiveFailures", watcher.getConsecutiveFailures());
+            details.put("lagMillis", lagMillis);
+            details.put("pendingEvents", watcher.tracker.getPendingCount());
+            builder.withDetail(collectionName, details);
+            if (!watcher.isRunning() || watcher.getConsecutiveFailures() > 0
+                    || lagMillis > commonProperties.getHealthMaxLagMillis()) {
+                up = false;
+            }
+        }
+        return (up ? builder.up() : builder.down()).build();
+    }
+}
@@ -0,0 +1,158 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.CachingCSObjectRetriever;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import org.bson.BsonTimestamp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Meters of the change stream pipeline, tagged by collection: events by operation type, transform, version write
+ * and checkpoint latencies, dead letters by outcome, the depth of the lanes, batcher, writer and tracker queues, and
+ * the replication lag of the last event, i.e. the wall clock minus the cluster time of the event. Kafka send
+ * latencies are tagged by topic, and the csId cache reports its hits, misses, evictions, invalidations and size.
+ */
+public class ChangeStreamMetrics {
+
+    private static final String COLLECTION = "collection";
+
+    private final MeterRegistry registry;
+    private final Map<String, CollectionMeters> collections = new ConcurrentHashMap<>();
+    private final Map<String, Timer> kafkaSends = new ConcurrentHashMap<>();
+
+    public ChangeStreamMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    public MeterRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Counts an event read from the change stream and updates the replication lag of its collection.
+     */
+    void recordEvent(String collectionName, String operationType, BsonTimestamp clusterTime) {
+        CollectionMeters meters = get(collectionName);
+        meters.events.computeIfAbsent(operationType == null ? "unknown" : operationType,
+                type -> Counter.builder("changestream.events").tag(COLLECTION, collectionName)
+                        .tag("operation", type).register(registry))
+                .increment();
+        if (clusterTime != null) {
+            meters.lagMillis.set(Math.max(0, System.currentTimeMillis() - clusterTime.getTime() * 1000L));
+        }
+    }
+
+    /**
+     * Resets the replication lag of a collection whose change stream had no event left to read, so the lag of an
+     * earlier burst is not reported for as long as the collection stays quiet.
+     */
+    void recordIdle(String collectionName) {
+        get(collectionName).lagMillis.set(0);
+    }
+
+    /**
+     * Counts a dead letter quarantined, retried successfully or given up on.
+     */
+    void recordDeadLetter(String collectionName, String outcome) {
+        get(collectionName).deadLetters.computeIfAbsent(outcome,
+                name -> Counter.builder("changestream.deadletters").tag(COLLECTION, collectionName)
+                        .tag("outcome", name).register(registry))
+                .increment();
+    }
+
+    Timer.Sample start() {
+        return Timer.start(registry);
+    }
+
+    void recordTransform(String collectionName, Timer.Sample sample) {
+        sample.stop(get(collectionName).transform);
+    }
+
+    void recordVersionWrite(String collectionName, Timer.Sample sample) {
+        sample.stop(get(collectionName).versionWrite);
+    }
+
+    void recordCheckpoint(String collectionName, Timer.Sample sample) {
+        sample.stop(get(collectionName).checkpoint);
+    }
+
+    void recordKafkaSend(String topic, Timer.Sample sample) {
+        sample.stop(kafkaSends.computeIfAbsent(topic, name -> Timer.builder("changestream.kafka.send")
+                .tag("topic", name).publishPercentileHistogram().register(registry)));
+    }
+
+    /**
+     * Registers the meters of the csId cache.
+     */
+    void bindCsCache(CachingCSObjectRetriever cache) {
+        FunctionCounter.builder("changestream.cscache.requests", cache, CachingCSObjectRetriever::getHits)
+                .tag("result", "hit").register(registry);
+        FunctionCounter.builder("changestream.cscache.requests", cache, CachingCSObjectRetriever::getMisses)
+                .tag("result", "miss").register(registry);
+        FunctionCounter.builder("changestream.cscache.evictions", cache, CachingCSObjectRetriever::getEvictions)
+                .register(registry);
+        FunctionCounter.builder("changestream.cscache.invalidations", cache,
+                CachingCSObjectRetriever::getInvalidations).register(registry);
+        Gauge.builder("changestream.cscache.size", cache, CachingCSObjectRetriever::size).register(registry);
+    }
+
+    /**
+     * Points the queue depth gauges of the watcher's collection at the given watcher, replacing a stopped one.
+     */
+    void bind(ChangeStreamWatcher watcher) {
+        get(watcher.getCollectionName()).watcher.set(watcher);
+    }
+
+    public long getReplicationLagMillis(String collectionName) {
+        CollectionMeters meters = collections.get(collectionName);
+        return meters == null ? 0 : meters.lagMillis.get();
+    }
+
+    private CollectionMeters get(String collectionName) {
+        return collections.computeIfAbsent(collectionName, CollectionMeters::new);
+    }
+
+    private class CollectionMeters {
+        final Map<String, Counter> events = new ConcurrentHashMap<>();
+        final Map<String, Counter> deadLetters = new ConcurrentHashMap<>();
+        final AtomicLong lagMillis = new AtomicLong();
+        final AtomicReference<ChangeStreamWatcher> watcher = new AtomicReference<>();
+        final Timer transform;
+        final Timer versionWrite;
+        final Timer checkpoint;
+
+        CollectionMeters(String collectionName) {
+            transform = timer("changestream.transform", collectionName);
+            versionWrite = timer("changestream.versions.write", collectionName);
+            checkpoint = timer("changestream.checkpoint", collectionName);
+            Gauge.builder("changestream.lag", lagMillis, AtomicLong::get).tag(COLLECTION, collectionName)
+                    .baseUnit("milliseconds").register(registry);
+            gauge("changestream.lanes.inflight", collectionName, w -> w.lanes.getInFlight());
+            gauge("changestream.batcher.size", collectionName, w -> w.batcher.size());
+            gauge("changestream.writer.queue", collectionName, w -> w.writer.getQueueSize());
+            gauge("changestream.tracker.pending", collectionName, w -> w.tracker.getPendingCount());
+        }
+
+        private Timer timer(String name, String collectionName) {
+            return Timer.builder(name).tag(COLLECTION, collectionName).publishPercentileHistogram()
+                    .register(registry);
+        }
+
+        private void gauge(String name, String collectionName, ToDoubleFunction<ChangeStreamWatcher> depth) {
+            Gauge.builder(name, watcher, ref -> {
+                ChangeStreamWatcher current = ref.get();
+                return current == null ? 0 : depth.applyAsDouble(current);
+            }).tag(COLLECTION, collectionName).register(registry);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.CommonProperties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owns the thread pool the change stream watchers run on and one {@link ChangeStreamWatcher} per watched collection.
+ */
+@Component
+public class ChangeStreamScheduler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChangeStreamScheduler.class);
+
+    //@Autowired
+    CommonProperties commonProperties = new CommonProperties();
+
+    private final ChangeStreamService changeStreamService;
+    private final ScheduledThreadPoolExecutor executor;
+    private final ExecutorService processingExecutor;
+    private final ExecutorService writerExecutor;
+    private final Map<String, ChangeStreamWatcher> watchers = new ConcurrentHashMap<>();
+
+    public ChangeStreamScheduler(ChangeStreamService changeStreamService) {
+        this.changeStreamService = changeStreamService;
+        this.executor = new ScheduledThreadPoolExecutor(commonProperties.getWatcherPoolSize(),
+                new NamedThreadFactory("cs-watcher-"));
+        this.executor.setRemoveOnCancelPolicy(true);
+        this.processingExecutor = Executors.newFixedThreadPool(commonProperties.getProcessingPoolSize(),
+                new NamedThreadFactory("cs-processor-"));
+        this.writerExecutor = Executors.newFixedThreadPool(commonProperties.getWriterPoolSize(),
+                new NamedThreadFactory("cs-writer-"));
+    }
+
+    /**
+     * Starts watching the given collection, or does nothing if it is already being watched.
+     */
+    public void start(String collectionName) {
+        watchers.computeIfAbsent(collectionName, this::newWatcher).start();
+    }
+
+    /**
+     * Stops watching the given collection and releases its cursor and session.
+     */
+    public void stop(String collectionName) {
+        ChangeStreamWatcher watcher = watchers.remove(collectionName);
+        if (watcher != null) {
+            watcher.stop();
+        }
+    }
+
+    /**
+     * Stops the watcher of the given collection and starts a fresh one, resuming from the stored resume token.
+     */
+    public void restart(String collectionName) {
+        stop(collectionName);
+        start(collectionName);
+    }
+
+    public boolean isRunning(String collectionName) {
+        ChangeStreamWatcher watcher = watchers.get(collectionName);
+        return watcher != null && watcher.isRunning();
+    }
+
+    public Set<String> getWatchedCollections() {
+        return watchers.keySet();
+    }
+
+    ChangeStreamWatcher getWatcher(String collectionName) {
+        return watchers.get(collectionName);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        LOGGER.info("Stopping change stream watchers {}", watchers.keySet());
+        watchers.keySet().forEach(this::stop);
+        shutdown(executor);
+        shutdown(processingExecutor);
+        shutdown(writerExecutor);
+    }
+
+    private void shutdown(ExecutorService executorService) {
+        executorService.shutdown();
+        try {
+            if (!executorService.awaitTermination(commonProperties.getWatcherMaxAwaitMillis() * 2,
+                    TimeUnit.MILLISECONDS)) {
+                executorService.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ChangeStreamWatcher newWatcher(String collectionName) {
+        ExponentialBackoff backoff = new ExponentialBackoff(commonProperties.getWatcherBackoffInitialMillis(),
+                commonProperties.getWatcherBackoffMaxMillis());
+        VersionBatcher batcher = new VersionBatcher(commonProperties.getVersionBatchMaxDocuments(),
+                commonProperties.getVersionBatchMaxBytes(), commonProperties.getVersionBatchMaxDelayMillis());
+        ResumeTokenTracker tracker = new ResumeTokenTracker();
+        ProcessingLanes lanes = new ProcessingLanes(collectionName, processingExecutor,
+                commonProperties.getProcessingLanesPerCollection(), commonProperties.getProcessingMaxInFlight());
+        VersionWriter writer = new VersionWriter(collectionName, changeStreamService, tracker, writerExecutor,
+                commonProperties.getWriterQueueCapacity());
+        ChangeStreamWatcher watcher = new ChangeStreamWatcher(collectionName, changeStreamService, executor, backoff,
+                tracker, lanes, batcher, writer, commonProperties.getWatcherMaxEventsPerRound(),
+                commonProperties.getWriterBackpressureDelayMillis());
+        changeStreamService.getMetrics().bind(watcher);
+        return watcher;
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(false);
+            return thread;
+        }
+    }
+}
@@ -1,51 +1,59 @@
 package com.kohls.pmdm.batch.master.datasync;
 
 
-import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.google.gson.Gson;
 import com.kohls.pmdm.batch.master.common.*;
 import com.kohls.pmdm.domain.*;
 
-import com.mongodb.BasicDBObject;
 import com.mongodb.ClientSessionOptions;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
 import com.mongodb.ReadConcern;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.ClientSession;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
 import com.mongodb.client.model.changestream.ChangeStreamDocument;
-import com.mongodb.session.ClientSession;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.OperationType;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 
-import org.apache.commons.collections4.CollectionUtils;
 
 import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonInt32;
+import org.bson.BsonTimestamp;
 import org.bson.BsonValue;
 import org.bson.Document;
-import org.bson.codecs.configuration.CodecRegistry;
-import org.bson.codecs.pojo.PojoCodecProvider;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.json.JsonParseException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
-import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import javax.annotation.PreDestroy;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
-
-import static org.bson.codecs.configuration.CodecRegistries.fromProviders;
-import static org.bson.codecs.configuration.CodecRegistries.fromRegistries;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 @Service
 public class ChangeStreamService {
@@ -57,18 +65,20 @@ public class ChangeStreamService {
     private static final String FSKU_TOPIC = "flattenedsku_topic";
     private static final String PACKGESHPNG_DIMENSION_TOPIC = "packageshippingdimension_topic";
     private static final String PACKGESHPNG_DIMENSION = "skuPackageShippingDimensionList";
+    private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
 
     //@Autowired
     CommonProperties commonProperties = new CommonProperties();
 
     //@Autowired
-    KafkaProducer kafkaProducer;
+    KafkaProducer kafkaProducer = new KafkaProducer();
 
     //@Autowired
-    FlattenedSkuTypeConvertor flattenedSkuTypeConvertor;
+    FlattenedSkuTypeConvertor flattenedSkuTypeConvertor = new FlattenedSkuTypeConvertor();
 
     //@Autowired
-    CSObjectRetriever cSObjectRetriever;
+    CachingCSObjectRetriever cSObjectRetriever = new CachingCSObjectRetriever(new CSObjectRetriever(),
+            commonProperties.getCsCacheMaxEntries(), commonProperties.getCsCacheTtlMillis());
 
     //@Autowired
     MongoDatabase mongoDatabase;
@@ -76,331 +86,655 @@ public class ChangeStreamService {
     //@Autowired
     MongoClient client;
 
+    ChangeStreamMetrics metrics = new ChangeStreamMetrics(Metrics.globalRegistry);
 
-    public void setClient( MongoClient client) { this.client = client; }
-    public void setMongoDatabase( MongoDatabase db) { this.mongoDatabase = db; }
+    CheckpointManager checkpointManager = new CheckpointManager(metrics);
 
-    /**
-     * This method frequently polls the collection for any document changes.
-     *
-     * @param collectionName
-     *            String Name of the collection to watch for the change streams
-     * @param session
-     *            MongoDatabase mongo database object
-     */
-    @Async
-    public void pollChangeStream(String collectionName, ClientSession session) {
+    CodecRegistryCache codecRegistryCache = new CodecRegistryCache();
 
+    ChangeEventSource changeEventSource = this::watchCollection;
 
-        if (session == null) {
-            LOGGER.error("We should not be here.****************************************");
-            System.exit(1);
-        }
+    FlattenedSkuStore flattenedSkuStore = commonProperties.isFlattenedSkuStoreEnabled() ? new FlattenedSkuStore()
+            : null;
 
-        ObjectMapper mapper = new ObjectMapper();
-        MongoCursor<ChangeStreamDocument<Document>> cursor = null;
+    DeadLetterQueue deadLetterQueue = new DeadLetterQueue(metrics, this::retryDeadLetter);
 
+    UpdateConflator updateConflator = new UpdateConflator(commonProperties.getKafkaConflationWindowMillis(),
+            commonProperties.getKafkaConflationMaxUpdates(), this::publishFlattenedSku);
 
-        while (true) {
-            try {
-                if (session == null) {
-                    LOGGER.error("We should not be here.****************************************");
-                    System.exit(1);
 
-                    ClientSessionOptions sessionOptions = ClientSessionOptions.builder().build();
-                    session = client.startSession(sessionOptions);
-                    LOGGER.info("Initialized session for collection: {}", collectionName);
-                }
-                if (cursor == null) {
-                    cursor = getCursor(collectionName, session, mapper);
-                    LOGGER.info("Initialized cursor for collection: {}", collectionName);
+    public ChangeStreamService() {
+        metrics.bindCsCache(cSObjectRetriever);
+    }
+
+    public void setClient( MongoClient client) { this.client = client; }
+    public void setMongoDatabase( MongoDatabase db) {
+        this.mongoDatabase = db;
+        this.checkpointManager.setMongoDatabase(db);
+        this.deadLetterQueue.setMongoDatabase(db);
+        this.cSObjectRetriever.setMongoDatabase(db);
+    }
+
+    /**
+     * Builds the codec registries of the watched collections, failing fast on collections without a domain class.
+     */
+    public void initCodecRegistries(List<String> collectionNames) {
+        codecRegistryCache.init(collectionNames);
+    }
+
+    public ClientSession startSession() {
+        ClientSessionOptions sessionOptions = ClientSessionOptions.builder().build();
+        return client.startSession(sessionOptions);
+    }
+
+    /**
+     * Drains the events currently available on the watcher's cursor, up to maxEvents, and dispatches them to the
+     * watcher's processing lanes, which hand their versions to the watcher's writer. The csIds referenced by the round
+     * are resolved in bulk before the events are dispatched. Returns without waiting for more
+     * events once the cursor has nothing left or the lanes or the writer queue are full, so that the calling thread
+     * can be handed to another collection.
+     *
+     * @param watcher
+     *            ChangeStreamWatcher holding the cursor, session and pending documents of the collection
+     * @param maxEvents
+     *            int maximum number of events to read in this round
+     * @return number of events read from the cursor
+     */
+    int updateVersionCollection(ChangeStreamWatcher watcher, int maxEvents) {
+        MongoCursor<ChangeStreamDocument<RawBsonDocument>> cursor = watcher.cursor;
+        int eventCount = 0;
+        watcher.writer.checkFailure();
+        watcher.tracker.checkFailure();
+        List<ChangeStreamDocument<RawBsonDocument>> events = new ArrayList<>();
+        List<String[]> csIds = new ArrayList<>();
+        // Events are only dispatched once the round stops reading, so a steady trickle must not hold them back.
+        long drainDeadline = 0;
+        while (eventCount < maxEvents && !watcher.writer.isSaturated() && !watcher.lanes.isSaturated()
+                && (eventCount == 0 || System.nanoTime() - drainDeadline < 0)) {
+            ChangeStreamDocument<RawBsonDocument> changeStreamDocument = cursor.tryNext();
+            if (changeStreamDocument == null) {
+                if (eventCount == 0) {
+                    // Nothing left on the stream, the collection is caught up.
+                    metrics.recordIdle(watcher.getCollectionName());
                 }
-                updateVersionCollection(collectionName, session, cursor);
-                LOGGER.info("Restarting change stream watch for collection: {}", collectionName);
-            } catch (Exception exc) {
-                LOGGER.error("Exception while running change stream {}", exc);
+                break;
             }
+            if (eventCount++ == 0) {
+                drainDeadline = System.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(commonProperties.getWatcherMaxDrainMillis());
+            }
+            metrics.recordEvent(watcher.getCollectionName(), changeStreamDocument.getOperationType().getValue(),
+                    changeStreamDocument.getClusterTime());
+            events.add(changeStreamDocument);
+            if (changeStreamDocument.getUpdateDescription() != null) {
+                csIds.addAll(getCsIds(changeStreamDocument.getUpdateDescription().getUpdatedFields()));
+            }
+        }
+        prefetchCsIds(csIds);
+        if (!events.isEmpty()) {
+            ChangeStreamFilter filter = commonProperties.getChangeStreamFilter(watcher.getCollectionName());
+            if (filter.getFullDocumentLookup() == ChangeStreamFilter.FullDocumentLookup.BATCH) {
+                events = lookupFullDocuments(watcher.getCollectionName(), filter, events);
+            }
+        }
+        for (ChangeStreamDocument<RawBsonDocument> changeStreamDocument : events) {
+            // Tickets are registered in read order, the events may complete in any order across lanes.
+            ResumeTokenTracker.Ticket ticket = watcher.tracker.register(changeStreamDocument.getResumeToken(),
+                    CatchUpScan.getCheckpointClusterTime(changeStreamDocument));
+            BsonDocument laneKey = changeStreamDocument.getDocumentKey() != null
+                    ? changeStreamDocument.getDocumentKey() : changeStreamDocument.getResumeToken();
+            watcher.lanes.dispatch(laneKey, () -> {
+                Timer.Sample sample = metrics.start();
+                try {
+                    processEvent(watcher, changeStreamDocument, ticket);
+                } catch (RuntimeException exc) {
+                    ticket.fail(exc);
+                    throw exc;
+                } finally {
+                    metrics.recordTransform(watcher.getCollectionName(), sample);
+                }
+            });
+        }
+        if (watcher.batcher.isDue() && !watcher.writer.isSaturated()) {
+            flushVersionBatch(watcher);
+        } else if (watcher.batcher.isEmpty() && !watcher.writer.isSaturated()
+                && (watcher.tracker.hasUnclaimedProgress()
+                || checkpointManager.isCheckpointOverdue(watcher.getCollectionName()))) {
+            // Sends acknowledged after their batch was written, or a coalesced checkpoint waiting for too long.
+            watcher.writer.submit(new VersionBatcher.Batch(Collections.<RawBsonDocument>emptyList(),
+                    Collections.<ResumeTokenTracker.Ticket>emptyList()));
         }
+        return eventCount;
     }
 
-    private void updateVersionCollection(String collectionName, ClientSession session,
-                                         MongoCursor<ChangeStreamDocument<Document>> cursor) throws Exception {
-        String newCollection = collectionName + "_coll"; // commonProperties.getCollectionSuffix();
-        ChangeStreamDocument<Document> changeStreamDocument = null;
-        ObjectMapper mapper = new ObjectMapper();
-        boolean skipToken = false;
-        int tokenCount = 0;
-        List<Document> documents = new ArrayList<>();
+    /**
+     * Transforms a change event into its version document and Kafka payloads. Runs on the processing lane of the
+     * event's document key. An event that fails to be transformed is quarantined in the dead letter queue and its
+     * ticket completes once it is stored there, so the stream carries on past it.
+     */
+    void processEvent(ChangeStreamWatcher watcher, ChangeStreamDocument<RawBsonDocument> changeStreamDocument,
+                      ResumeTokenTracker.Ticket ticket) {
+        boolean batchFull;
         try {
-            do {
-                if (cursor != null) {
-                    changeStreamDocument = cursor.next();
-                    LOGGER.debug("Received change stream for collection {}, document {}", collectionName,
-                            changeStreamDocument);
-                    LOGGER.info("Resume token for collection: {} ,  {}", collectionName,
-                            changeStreamDocument.getResumeToken());
-                    if (null != changeStreamDocument && changeStreamDocument.getOperationType().getValue() != null) {
-                        if (changeStreamDocument.getOperationType().getValue().equalsIgnoreCase(INSERT)) {
-                            Document document = null;
-                            Version version = new Version();
-                            version.setIdDocument(Document.parse(changeStreamDocument.getDocumentKey().toJson()));
-                            version.setInsertedFields(changeStreamDocument.getFullDocument());
-                            try {
-                                document = Document.parse(mapper.writeValueAsString(version));
-                                documents.add(document);
-                                LOGGER.debug("Adding document into the Collection: {} ,OT:Insert, IDDocument: {}",
-                                        newCollection, changeStreamDocument.getDocumentKey().toJson());
-                            } catch (Exception exc) {
-                                skipToken = true;
-                                LOGGER.error("Error while parsing the json: {} , Exception:  ", changeStreamDocument,
-                                        exc);
-                            }
-                            if (document != null && !skipToken) {
-                                tokenCount++;
-                                if (commonProperties.isEnableFSKUKafka()) {
-                                    LOGGER.debug("Sending inserted payload to kafka topic {}",
-                                            changeStreamDocument.getFullDocument());
-                                    sendToKafkaTopics(collectionName, changeStreamDocument.getFullDocument(), false);
-                                }
-                            } else {
-                                LOGGER.error("Document is null or skipping token");
-                            }
-                        } else {
-                            if (changeStreamDocument.getUpdateDescription() != null) {
-                                String operationType = changeStreamDocument.getOperationType().getValue();
-                                if (operationType.equalsIgnoreCase(UPDATE)) {
-                                    Document document = null;
-                                    String updateJson = null;
-                                    boolean isPSD = false;
-                                    Version version = new Version();
-                                    version.setIdDocument(
-                                            Document.parse(changeStreamDocument.getDocumentKey().toJson()));
-
-                                    BsonDocument csDoc = changeStreamDocument.getUpdateDescription().getUpdatedFields();
-                                    Set<String> keySet = csDoc.keySet();
-                                    List<String> keyList = keySet.stream().filter(key -> key.contains("csId"))
-                                            .collect(Collectors.<String>toList());
-                                    if (collectionName.equalsIgnoreCase("sku")
-                                            && (null != csDoc && csDoc.keySet().contains(PACKGESHPNG_DIMENSION))) {
-                                        isPSD = true;
-                                    }
-                                    try {
-                                        // TODO check the possibility of having csid as a list.
-                                        keyList.forEach(key -> {
-                                            mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
-                                            BsonValue bsonValue = csDoc.get(key);
-                                            if (null != bsonValue) {
-                                                String keyString = bsonValue.asString().getValue();
-                                                String[] keyValueString = keyString.split("-");
-                                                Object csUpdatedEntity = cSObjectRetriever
-                                                        .getCSUpdatedEntity(keyValueString);
-                                                try {
-                                                    version.setUpdatedFields(
-                                                            Document.parse(mapper.writeValueAsString(csUpdatedEntity)));
-                                                    LOGGER.debug("Converted json : "
-                                                            + mapper.writeValueAsString(csUpdatedEntity));
-                                                } catch (JsonProcessingException e) {
-                                                    LOGGER.error(" Error parsing json: {}", e);
-                                                }
-                                            }
-                                        });
-
-                                        if (version.getUpdatedFields() == null) {
-                                            updateJson = changeStreamDocument.getUpdateDescription().getUpdatedFields()
-                                                    .toJson();
-                                            version.setUpdatedFields(Document.parse(updateJson));
-                                        } else {
-                                            updateJson = version.getUpdatedFields().toJson();
-                                        }
-                                        version.setRemovedFields(
-                                                changeStreamDocument.getUpdateDescription().getRemovedFields());
-                                        document = Document.parse(mapper.writeValueAsString(version));
-                                        LOGGER.debug(
-                                                "Adding document into the Collection: {}, OT: Update, Document: {}",
-                                                newCollection, changeStreamDocument.getDocumentKey().toJson());
-                                        if (checkJsonValidity(changeStreamDocument.getDocumentKey().toJson())) {
-                                            documents.add(document);
-                                        } else {
-                                            LOGGER.error("Error in {} resume token. Skipping it. {}", collectionName,
-                                                    changeStreamDocument.getResumeToken());
-                                            skipToken = true;
-                                        }
-                                    } catch (IllegalArgumentException illExc) {
-                                        try {
-                                            LOGGER.info(
-                                                    "Calling jsonconverter before storing the document in version collection: {} , json: {}",
-                                                    newCollection, updateJson);
-                                            updateJson = JsonFormatter.formatJson(updateJson);
-                                            version.setUpdatedFields(Document.parse(updateJson));
-                                            document = Document.parse(mapper.writeValueAsString(version));
-                                            LOGGER.debug(
-                                                    "Adding document into the Collection: {}, OT: Update, Document: {}",
-                                                    newCollection, changeStreamDocument.getDocumentKey().toJson());
-                                            if (checkJsonValidity(changeStreamDocument.getDocumentKey().toJson())) {
-                                                documents.add(document);
-                                            } else {
-                                                LOGGER.error("Error in {} resume token. Skipping it. {}",
-                                                        collectionName, changeStreamDocument.getResumeToken());
-                                                skipToken = true;
-                                            }
-                                        } catch (Exception e) {
-                                            skipToken = true;
-                                            LOGGER.error("Error while parsing the json: {} , Exception:  ",
-                                                    changeStreamDocument, e);
-                                        }
-                                    } catch (Exception exc) {
-                                        skipToken = true;
-                                        LOGGER.error("Error while parsing the json: {} , Exception:  ",
-                                                changeStreamDocument, exc);
-                                    }
-                                    if (document != null && !skipToken) {
-                                        tokenCount++;
-                                        if (commonProperties.isEnableFSKUKafka()) {
-                                            LOGGER.debug("Sending updated payload to kafka topic: {}",
-                                                    document.toJson());
-                                            sendToKafkaTopics(collectionName, Document.parse(updateJson), isPSD);
-                                        }
-                                    } else {
-                                        LOGGER.error("Document is null or skipping token");
-                                    }
-                                } else if (operationType.equalsIgnoreCase(DELETE)) {
-                                    LOGGER.warn("Delete operation found {}", changeStreamDocument);
-                                } else {
-                                    LOGGER.warn("Operation is not handled by the PMDM Change Stream Application, {}",
-                                            changeStreamDocument);
+            batchFull = transformEvent(watcher.getCollectionName(), watcher.batcher, changeStreamDocument, false,
+                    ticket);
+        } catch (RuntimeException exc) {
+            LOGGER.error("Error while transforming change event of collection {}: {}", watcher.getCollectionName(),
+                    changeStreamDocument, exc);
+            deadLetterQueue.quarantineEvent(watcher.getCollectionName(), changeStreamDocument, exc);
+            watcher.batcher.markPosition(ticket);
+            batchFull = false;
+        }
+        if (batchFull) {
+            flushVersionBatch(watcher);
+        }
+    }
+
+    /**
+     * Hands the Kafka payloads of a change event over and adds its version to the batcher, or marks its position when
+     * it has no version. Adding to the batcher comes last, so the ticket is only handed over once nothing can fail
+     * anymore. Returns whether the batch is full.
+     * <p>
+     * A retried dead letter event leaves the flattened SKU store alone: newer events of the document may have been
+     * applied since it was quarantined, so applying it now would roll the record back, and its sends publish the
+     * record as it stands.
+     */
+    private boolean transformEvent(String collectionName, VersionBatcher batcher,
+                                   ChangeStreamDocument<RawBsonDocument> changeStreamDocument, boolean retried,
+                                   ResumeTokenTracker.Ticket ticket) {
+        String newCollection = collectionName + "_coll"; // commonProperties.getCollectionSuffix();
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Received change stream for collection {}, resume token {}, document {}", collectionName,
+                    changeStreamDocument.getResumeToken(), changeStreamDocument);
+        }
+        if (null != changeStreamDocument && changeStreamDocument.getOperationType().getValue() != null) {
+            if (commonProperties.isCsReferenceCollection(collectionName)) {
+                // Any change on a reference collection makes the cached csId entities of that type stale.
+                cSObjectRetriever.invalidateType(collectionName);
+            }
+            if (changeStreamDocument.getOperationType().getValue().equalsIgnoreCase(DELETE)) {
+                LOGGER.debug("Delete operation found {}", changeStreamDocument);
+                if (flattenedSkuStore != null && !retried) {
+                    flattenedSkuStore.remove(collectionName, changeStreamDocument.getDocumentKey());
+                }
+                batcher.markPosition(ticket);
+            } else if (changeStreamDocument.getOperationType().getValue().equalsIgnoreCase(INSERT)) {
+                Version version = new Version();
+                version.setId(changeStreamDocument.getResumeToken());
+                version.setIdDocument(changeStreamDocument.getDocumentKey());
+                version.setClusterTime(changeStreamDocument.getClusterTime());
+                version.setInsertedFields(changeStreamDocument.getFullDocument());
+                if (flattenedSkuStore != null && !retried) {
+                    flattenedSkuStore.put(collectionName, changeStreamDocument.getDocumentKey(),
+                            changeStreamDocument.getFullDocument());
+                }
+                if (commonProperties.isEnableFSKUKafka()) {
+                    LOGGER.debug("Sending inserted payload to kafka topic {}",
+                            changeStreamDocument.getFullDocument());
+                    if (commonProperties.isKafkaConflationEnabled(collectionName)) {
+                        // Keeps the sends of the document in order.
+                        updateConflator.flush(collectionName, changeStreamDocument.getDocumentKey());
+                    }
+                    sendToKafkaTopics(collectionName, changeStreamDocument.getDocumentKey(),
+                            toDocument(changeStreamDocument.getFullDocument()), false, ticket);
+                }
+                LOGGER.debug("Adding document into the Collection: {} ,OT:Insert, IDDocument: {}",
+                        newCollection, changeStreamDocument.getDocumentKey());
+                return batcher.add(version, ticket);
+            } else {
+                if (changeStreamDocument.getUpdateDescription() != null) {
+                    String operationType = changeStreamDocument.getOperationType().getValue();
+                    if (operationType.equalsIgnoreCase(UPDATE)) {
+                        boolean isPSD = false;
+                        Version version = new Version();
+                        version.setId(changeStreamDocument.getResumeToken());
+                        version.setIdDocument(changeStreamDocument.getDocumentKey());
+                        version.setClusterTime(changeStreamDocument.getClusterTime());
+
+                        BsonDocument csDoc = changeStreamDocument.getUpdateDescription().getUpdatedFields();
+                        if (collectionName.equalsIgnoreCase("sku")
+                                && (null != csDoc && csDoc.keySet().contains(PACKGESHPNG_DIMENSION))) {
+                            isPSD = true;
+                        }
+                        try {
+                            getCsIds(csDoc).forEach(keyValueString -> {
+                                Object csUpdatedEntity = cSObjectRetriever.getCSUpdatedEntity(keyValueString);
+                                try {
+                                    // Cross reference entities are arbitrary POJOs, so they still go through Jackson.
+                                    String entityJson = JsonMappers.NON_NULL_WRITER.writeValueAsString(csUpdatedEntity);
+                                    version.setUpdatedFields(BsonDocument.parse(entityJson));
+                                    LOGGER.debug("Converted json : {}", entityJson);
+                                } catch (JsonProcessingException e) {
+                                    throw new UncheckedIOException(e);
                                 }
+                            });
+                        } catch (UncheckedIOException | JsonParseException exc) {
+                            // An entity that cannot be converted quarantines its event instead of storing it unresolved.
+                            throw exc;
+                        } catch (Exception exc) {
+                            LOGGER.error("Error while resolving the csId of: {} , Exception:  ",
+                                    changeStreamDocument, exc);
+                        }
+                        if (version.getUpdatedFields() == null) {
+                            version.setUpdatedFields(csDoc);
+                        }
+                        version.setRemovedFields(changeStreamDocument.getUpdateDescription().getRemovedFields());
+                        if (flattenedSkuStore != null && !retried) {
+                            // Updated before the send, so the record sent includes this update.
+                            if (changeStreamDocument.getFullDocument() != null) {
+                                flattenedSkuStore.put(collectionName, changeStreamDocument.getDocumentKey(),
+                                        changeStreamDocument.getFullDocument());
                             } else {
-                                LOGGER.error("Updated fields is null: {}", changeStreamDocument);
+                                flattenedSkuStore.update(collectionName, changeStreamDocument.getDocumentKey(), csDoc,
+                                        version.getRemovedFields());
                             }
                         }
-                        if (tokenCount == commonProperties.getCsTokenCount()) {
-                            storeResumeToken(changeStreamDocument.getResumeToken(), collectionName, session);
-                            if (CollectionUtils.isNotEmpty(documents)) {
-                                mongoDatabase.getCollection(newCollection).insertMany(session, documents);
+                        if (commonProperties.isEnableFSKUKafka()) {
+                            BsonDocument kafkaPayload = version.getUpdatedFields();
+                            if (!isPSD && kafkaPayload == csDoc && changeStreamDocument.getFullDocument() != null) {
+                                // A looked up document lets the flattened SKU be built from the whole document.
+                                kafkaPayload = changeStreamDocument.getFullDocument();
+                            }
+                            LOGGER.debug("Sending updated payload to kafka topic: {}", kafkaPayload);
+                            if (!isPSD && commonProperties.isKafkaConflationEnabled(collectionName)) {
+                                updateConflator.add(collectionName, changeStreamDocument.getDocumentKey(),
+                                        toDocument(kafkaPayload), version.getRemovedFields(), ticket);
                             } else {
-                                LOGGER.error("No document to store");
+                                sendToKafkaTopics(collectionName, changeStreamDocument.getDocumentKey(),
+                                        toDocument(kafkaPayload), isPSD, ticket);
                             }
-                            tokenCount = 0;
-                            documents = new ArrayList<>();
                         }
+                        LOGGER.debug("Adding document into the Collection: {}, OT: Update, Document: {}",
+                                newCollection, changeStreamDocument.getDocumentKey());
+                        return batcher.add(version, ticket);
                     } else {
-                        LOGGER.error("Cursor is null {}", changeStreamDocument);
+                        LOGGER.warn("Operation is not handled by the PMDM Change Stream Application, {}",
+                                changeStreamDocument);
+                        batcher.markPosition(ticket);
                     }
                 } else {
-                    // This should not happen but adding to check for any errors.
-                    LOGGER.error("Operation Type is null: {}", changeStreamDocument);
+                    LOGGER.error("Updated fields is null: {}", changeStreamDocument);
+                    batcher.markPosition(ticket);
                 }
-            } while (cursor != null);
-            LOGGER.error("Cursor is null.");
-        } catch (Exception exc) {
-            LOGGER.error("Exception in change stream {}", exc);
-        } finally {
-            if (cursor != null) {
-                LOGGER.info("Closing cursor explicitly for {}", collectionName);
-                cursor.close();
-                cursor = null;
             }
-            if (session != null) {
-                LOGGER.info("Closing session explicitly for {}", collectionName);
-                session.close();
-                session = null;
+        } else {
+            // This should not happen but adding to check for any errors.
+            LOGGER.error("Operation Type is null: {}", changeStreamDocument);
+            batcher.markPosition(ticket);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the csIds referenced by the updated fields of a change event, split on "-".
+     */
+    static List<String[]> getCsIds(BsonDocument updatedFields) {
+        List<String[]> csIds = new ArrayList<>();
+        if (updatedFields == null) {
+            return csIds;
+        }
+        // TODO check the possibility of having csid as a list.
+        for (String key : updatedFields.keySet()) {
+            if (key.contains("csId")) {
+                BsonValue bsonValue = updatedFields.get(key);
+                if (null != bsonValue && bsonValue.isString()) {
+                    csIds.add(bsonValue.asString().getValue().split("-"));
+                }
             }
         }
+        return csIds;
     }
 
-    private boolean checkJsonValidity(String jsonString) {
-        Gson gson = new Gson();
+    /**
+     * Looks up the current documents of the update events of a round with one query, fetching each document once
+     * however many of its updates the round holds. Events whose document is gone keep their updated fields only.
+     */
+    List<ChangeStreamDocument<RawBsonDocument>> lookupFullDocuments(
+            String collectionName, ChangeStreamFilter filter, List<ChangeStreamDocument<RawBsonDocument>> events) {
+        Set<BsonValue> ids = new LinkedHashSet<>();
+        for (ChangeStreamDocument<RawBsonDocument> event : events) {
+            if (isLookedUp(event)) {
+                ids.add(event.getDocumentKey().get(Constants.ID));
+            }
+        }
+        if (ids.isEmpty()) {
+            return events;
+        }
+        Map<BsonValue, RawBsonDocument> documents = new HashMap<>();
         try {
-            gson.fromJson(jsonString, Document.class);
-            return true;
-        } catch (Exception ex) {
-            LOGGER.error("Error in json Document: {} ", jsonString);
-            return false;
-        }
-    }
-
-    private void storeResumeToken(BsonDocument resumeToken, String collectionName, ClientSession session) {
-        Sequence sequence = new Sequence();
-        sequence.set_id(collectionName + Constants.TOKEN);
-        sequence.setBsonToken(resumeToken.toJson());
-        ObjectMapper mapper = new ObjectMapper();
-        LOGGER.info("Writing resume token of collection {} into DB: {}", collectionName, resumeToken.toJson());
-        BasicDBObject whereQuery = new BasicDBObject();
-        whereQuery.put(Constants.ID, collectionName + Constants.TOKEN);
+            FindIterable<RawBsonDocument> found = mongoDatabase.getCollection(collectionName, RawBsonDocument.class)
+                    .find(Filters.in(Constants.ID, ids));
+            if (!filter.getFullDocumentFields().isEmpty()) {
+                found = found.projection(Projections.include(new ArrayList<>(filter.getFullDocumentFields())));
+            }
+            for (RawBsonDocument document : found) {
+                documents.put(document.get(Constants.ID), document);
+            }
+        } catch (MongoException exc) {
+            LOGGER.warn("Lookup of {} documents of collection {} failed, sending their updated fields", ids.size(),
+                    collectionName, exc);
+            return events;
+        }
+        List<ChangeStreamDocument<RawBsonDocument>> lookedUp = new ArrayList<>(events.size());
+        for (ChangeStreamDocument<RawBsonDocument> event : events) {
+            RawBsonDocument document = isLookedUp(event) ? documents.get(event.getDocumentKey().get(Constants.ID))
+                    : null;
+            lookedUp.add(document == null ? event : new ChangeStreamDocument<>(event.getResumeToken(),
+                    event.getNamespaceDocument(), document, event.getDocumentKey(), event.getClusterTime(),
+                    event.getOperationType(), event.getUpdateDescription()));
+        }
+        return lookedUp;
+    }
+
+    private static boolean isLookedUp(ChangeStreamDocument<RawBsonDocument> event) {
+        return event.getOperationType() == OperationType.UPDATE && event.getFullDocument() == null
+                && event.getDocumentKey() != null;
+    }
+
+    /**
+     * Resolves the csIds of a whole round with one lookup per entity type, so that the lanes find them cached.
+     */
+    private void prefetchCsIds(List<String[]> csIds) {
+        if (csIds.isEmpty()) {
+            return;
+        }
         try {
-            mongoDatabase.getCollection("sequence").findOneAndReplace(session, whereQuery,
-                    Document.parse(mapper.writeValueAsString(sequence)));
-        } catch (JsonProcessingException e) {
-            LOGGER.error("JSON parsing error {}", e);
+            cSObjectRetriever.getCSUpdatedEntities(csIds);
+        } catch (RuntimeException exc) {
+            // The lanes fall back to resolving the csIds one at a time.
+            LOGGER.warn("Bulk csId lookup of {} ids failed", csIds.size(), exc);
+        }
+    }
+
+    /**
+     * Hands the pending version documents of the watcher over to its writer.
+     */
+    private void flushVersionBatch(ChangeStreamWatcher watcher) {
+        // Lanes flush concurrently, draining and queueing under one lock keeps the batches in order.
+        synchronized (watcher.batcher) {
+            watcher.writer.submit(watcher.batcher.drain());
+        }
+    }
+
+    /**
+     * Writes a batch of version documents and checkpoints its resume token when due. Runs on the writer pool.
+     */
+    void writeVersionBatch(String collectionName, VersionBatcher.Batch batch, ResumeTokenTracker tracker,
+                           ClientSession session) {
+        checkpointManager.checkLease(collectionName);
+        for (ResumeTokenTracker.Ticket ticket : batch.getTickets()) {
+            ticket.release();
+        }
+        // Only the events whose Kafka sends are acknowledged as well may be checkpointed.
+        BsonDocument resumeToken;
+        BsonTimestamp clusterTime;
+        synchronized (tracker) {
+            resumeToken = tracker.claimCompletedResumeToken();
+            clusterTime = tracker.getClaimedClusterTime();
         }
+        checkpointManager.commit(collectionName, batch.getDocuments(), resumeToken, clusterTime, session);
+        LOGGER.debug("Stored {} version documents for collection {}", batch.getDocuments().size(), collectionName);
     }
 
-    private MongoCursor<ChangeStreamDocument<Document>> getCursor(String collectionName, ClientSession session,
-                                                                  ObjectMapper mapper) throws Exception {
+    public ChangeStreamMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setLeaseToken(String collectionName, Long leaseToken) {
+        checkpointManager.setLeaseToken(collectionName, leaseToken);
+    }
+
+    public void setLeaseDeadline(String collectionName, long deadline) {
+        checkpointManager.setLeaseDeadline(collectionName, deadline);
+    }
+
+    public void setCheckpointListener(BiConsumer<String, BsonDocument> checkpointListener) {
+        checkpointManager.setCheckpointListener(checkpointListener);
+    }
+
+    /**
+     * Starts retrying the quarantined events and payloads of the given collections in the background.
+     */
+    public void startDeadLetterRetrier(List<String> collectionNames) {
+        deadLetterQueue.start(collectionNames);
+    }
+
+    /**
+     * Loads the flattened SKU store, when it is enabled, before the change streams start.
+     */
+    public void seedFlattenedSkuStore() {
+        if (flattenedSkuStore != null) {
+            flattenedSkuStore.seed(mongoDatabase);
+        }
+    }
+
+    public void preloadSequence(String collectionName, BsonDocument sequence) {
+        if (sequence != null) {
+            checkpointManager.preloadSequence(collectionName, sequence);
+        }
+    }
+
+    void resetCheckpoint(String collectionName) {
+        checkpointManager.reset(collectionName);
+    }
+
+    /**
+     * Drops the conflated payloads of a collection whose change stream is reopened, its events are merged again.
+     */
+    void discardConflatedUpdates(String collectionName) {
+        updateConflator.discard(collectionName);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // No retried dead letter sends after the conflator is gone.
+        deadLetterQueue.shutdown();
+        updateConflator.shutdown();
+    }
+
+    static Document toDocument(BsonDocument bsonDocument) {
+        return DOCUMENT_CODEC.decode(new BsonDocumentReader(bsonDocument), DecoderContext.builder().build());
+    }
+
+    MongoCursor<ChangeStreamDocument<RawBsonDocument>> getCursor(String collectionName, ClientSession session) {
+        return changeEventSource.open(collectionName, session);
+    }
+
+    public void setChangeEventSource(ChangeEventSource changeEventSource) {
+        this.changeEventSource = changeEventSource;
+    }
+
+    /**
+     * Opens the change stream of a collection, resuming after the stored resume token. When the token has fallen off
+     * the oplog the stream starts at the stored cluster time of the token instead, and when that is gone as well the
+     * documents modified since the last checkpoint are scanned before the stream attaches again.
+     */
+    private MongoCursor<ChangeStreamDocument<RawBsonDocument>> watchCollection(String collectionName,
+                                                                               ClientSession session) {
         LOGGER.info("Initializing cursor");
-        MongoCollection<Document> collection = mongoDatabase.withCodecRegistry(getPojoCodecRegistry(collectionName))
+        ChangeStreamFilter filter = commonProperties.getChangeStreamFilter(collectionName);
+        LOGGER.info("Change stream pipeline of collection {}: {}", collectionName, filter.toPipeline());
+        MongoCollection<Document> collection = mongoDatabase.withCodecRegistry(codecRegistryCache.get(collectionName))
                 .getCollection(collectionName).withReadConcern(ReadConcern.MAJORITY);
-        MongoCursor<ChangeStreamDocument<Document>> cursor = null;
-        BsonDocument resumeToken;
         // During app restart this will be called first to poll the change stream with
         // resume token.
-        BasicDBObject whereQuery = new BasicDBObject();
-        whereQuery.put(Constants.ID, collectionName + Constants.TOKEN);
-        FindIterable<Document> docItr = mongoDatabase.getCollection("sequence").find(session, whereQuery);
-        Document seqDocument = docItr.first();
-        if (seqDocument != null) {
-            Sequence sequence = new Sequence();
+        Sequence sequence = checkpointManager.loadSequence(collectionName, session);
+        if (sequence == null || (sequence.getBsonToken() == null && sequence.getClusterTime() == null)) {
+            LOGGER.info("No resume token stored for collection {}, initializing cursor", collectionName);
+            return watch(collection, session, filter).iterator();
+        }
+        BsonDocument resumeToken = sequence.getBsonToken();
+        if (resumeToken != null && !CatchUpScan.isCatchUpToken(resumeToken)) {
             try {
-                sequence = mapper.readValue(seqDocument.toJson(), Sequence.class);
-            } catch (IOException e) {
-                LOGGER.error("Exception while retrieving the object from DB: {}", e);
+                return watch(collection, session, filter).resumeAfter(resumeToken).iterator();
+            } catch (MongoException exc) {
+                LOGGER.warn("Cannot resume the change stream of collection {} after {}, trying its cluster time {}",
+                        collectionName, resumeToken, sequence.getClusterTime(), exc);
             }
-            if (sequence.getBsonToken() != null) {
-                resumeToken = BsonDocument.parse(sequence.getBsonToken());
-                try {
-                    cursor = collection.watch(session).resumeAfter(resumeToken).iterator();
-                } catch (Exception mce) {
-                    LOGGER.error("Resume token error so clearing the resume token to proceed further, exception: {}",
-                            mce);
-                    mongoDatabase.getCollection("sequence").findOneAndReplace(session, whereQuery, new Document());
-                    cursor.next();
-                }
-            } else {
-                cursor = collection.watch(session).iterator();
-                LOGGER.info("Sequence resume token is null initializing cursor");
+        }
+        if (sequence.getClusterTime() != null) {
+            try {
+                return watch(collection, session, filter).startAtOperationTime(sequence.getClusterTime()).iterator();
+            } catch (MongoException exc) {
+                LOGGER.warn("Cannot start the change stream of collection {} at {}", collectionName,
+                        sequence.getClusterTime(), exc);
             }
-        } else {
-            cursor = collection.watch(session).iterator();
-            LOGGER.info("Sequence document is null initializing cursor");
         }
-        return cursor;
+        return catchUp(collection, session, filter, sequence);
     }
 
-    private void sendToKafkaTopics(String collectionName, Document updateJsonDoc, boolean isPSD) {
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
-        final DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-        mapper.setDateFormat(df);
-        mapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
-        // Converting updated json to FlattenedSkuType.
+    /**
+     * Scans the documents of a collection modified since its last checkpoint and attaches the change stream at the
+     * current cluster time afterwards.
+     */
+    private MongoCursor<ChangeStreamDocument<RawBsonDocument>> catchUp(MongoCollection<Document> collection,
+                                                                       ClientSession session,
+                                                                       ChangeStreamFilter filter, Sequence sequence) {
+        String collectionName = collection.getNamespace().getCollectionName();
+        long checkpointMillis = sequence.getClusterTime() != null ? sequence.getClusterTime().getTime() * 1000L
+                : sequence.getModifiedDateTime() != null ? sequence.getModifiedDateTime().getTime()
+                : System.currentTimeMillis();
+        // Checkpointed until the scan completes, so a restart during the scan scans again from the same point.
+        BsonTimestamp checkpointClusterTime = sequence.getClusterTime() != null ? sequence.getClusterTime()
+                : new BsonTimestamp((int) (checkpointMillis / 1000), 0);
+        BsonTimestamp attachAt = mongoDatabase.runCommand(session, new BsonDocument("isMaster", new BsonInt32(1)),
+                BsonDocument.class).getTimestamp("operationTime", null);
+        if (attachAt == null) {
+            LOGGER.error("No operation time from the cluster, watching collection {} from now on without catching up",
+                    collectionName);
+            return watch(collection, session, filter).iterator();
+        }
+        return new CatchUpScan(collection.withDocumentClass(RawBsonDocument.class),
+                commonProperties.getCatchUpTimestampField(collectionName),
+                new Date(checkpointMillis - commonProperties.getCatchUpMarginMillis()), checkpointClusterTime, attachAt,
+                () -> watch(collection, session, filter).startAtOperationTime(attachAt).iterator(),
+                commonProperties.getCatchUpParallelism(), commonProperties.getCatchUpQueueCapacity());
+    }
+
+    private ChangeStreamIterable<RawBsonDocument> watch(MongoCollection<Document> collection, ClientSession session,
+                                                        ChangeStreamFilter filter) {
+        ChangeStreamIterable<RawBsonDocument> changeStream = collection.watch(session, filter.toPipeline(),
+                RawBsonDocument.class).maxAwaitTime(commonProperties.getWatcherMaxAwaitMillis(), TimeUnit.MILLISECONDS);
+        if (filter.getFullDocumentLookup() == ChangeStreamFilter.FullDocumentLookup.STREAM) {
+            changeStream.fullDocument(FullDocument.UPDATE_LOOKUP);
+        }
+        return changeStream;
+    }
+
+    void sendToKafkaTopics(String collectionName, BsonDocument documentKey, Document updateJsonDoc,
+                           boolean isPSD, ResumeTokenTracker.Ticket ticket) {
+        sendToKafkaTopics(collectionName, documentKey, updateJsonDoc, isPSD, Collections.singletonList(ticket));
+    }
+
+    /**
+     * Converts a payload, possibly merged from several updates, to a FlattenedSkuType and sends it.
+     */
+    private void publishFlattenedSku(String collectionName, BsonDocument documentKey, Document updateJsonDoc,
+                                     List<ResumeTokenTracker.Ticket> tickets) {
+        sendToKafkaTopics(collectionName, documentKey, updateJsonDoc, false, tickets);
+    }
+
+    /**
+     * Sends a payload to its topics. A payload that cannot be converted is quarantined in the dead letter queue, the
+     * tickets fail only if that is not possible either.
+     */
+    private void sendToKafkaTopics(String collectionName, BsonDocument documentKey, Document updateJsonDoc,
+                                   boolean isPSD, List<ResumeTokenTracker.Ticket> tickets) {
         try {
-            if (!isPSD) {
-                // No need to send FSKU incase of PSD changes.
-                FlattenedSKUType flattenedSKUType = flattenedSkuTypeConvertor.convertToFlattenedSkuType(collectionName,
-                        mapper.writeValueAsString(updateJsonDoc));
-                kafkaProducer.produce(FSKU_TOPIC, mapper.writeValueAsString(flattenedSKUType));
-            } else {
-                if (null != updateJsonDoc.get("skuPackageShippingDimensionList")) {
-                    Document skuPckgDoc = getFormattedSkuPkg(updateJsonDoc);
-                    kafkaProducer.produce(PACKGESHPNG_DIMENSION_TOPIC, new Document("sku", skuPckgDoc).toJson());
-                }
-            }
+            convertAndPublish(collectionName, documentKey, updateJsonDoc, isPSD, tickets);
         } catch (Exception e) {
             LOGGER.error("Error while converting into Flattened sku type, continuing change stream. ", e);
+            try {
+                deadLetterQueue.quarantinePayload(collectionName, documentKey,
+                        updateJsonDoc.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry()),
+                        isPSD, e);
+            } catch (RuntimeException exc) {
+                LOGGER.error("Error while quarantining payload of document {}", documentKey, exc);
+                tickets.forEach(ticket -> ticket.fail(exc));
+            }
+        }
+    }
+
+    private void convertAndPublish(String collectionName, BsonDocument documentKey, Document updateJsonDoc,
+                                   boolean isPSD, List<ResumeTokenTracker.Ticket> tickets) throws Exception {
+        // Converting updated json to FlattenedSkuType.
+        if (!isPSD) {
+            BsonDocument record = flattenedSkuStore == null ? null
+                    : flattenedSkuStore.getFlattenedRecord(collectionName, documentKey);
+            if (record != null) {
+                // The whole record as of this event, instead of its updated fields only.
+                updateJsonDoc = toDocument(record);
+            }
+            // No need to send FSKU incase of PSD changes.
+            FlattenedSKUType flattenedSKUType = flattenedSkuTypeConvertor.convertToFlattenedSkuType(collectionName,
+                    JsonMappers.KAFKA_WRITER.writeValueAsString(updateJsonDoc));
+            publish(FSKU_TOPIC, documentKey, JsonMappers.KAFKA_WRITER.writeValueAsString(flattenedSKUType), tickets);
+        } else {
+            if (null != updateJsonDoc.get("skuPackageShippingDimensionList")) {
+                Document skuPckgDoc = getFormattedSkuPkg(updateJsonDoc);
+                publish(PACKGESHPNG_DIMENSION_TOPIC, documentKey, new Document("sku", skuPckgDoc).toJson(), tickets);
+            }
+        }
+    }
+
+    /**
+     * Processes a dead letter again outside of the change stream, on the retrier of the dead letter queue. Its
+     * version is written on its own and its sends are awaited, the resume token of the collection is not involved.
+     */
+    void retryDeadLetter(String collectionName, BsonDocument deadLetter) throws Exception {
+        ResumeTokenTracker tracker = new ResumeTokenTracker();
+        ResumeTokenTracker.Ticket ticket = tracker.register(null);
+        if (DeadLetterQueue.STAGE_EVENT.equals(deadLetter.getString(DeadLetterQueue.STAGE).getValue())) {
+            VersionBatcher batcher = new VersionBatcher(1, Long.MAX_VALUE, 0);
+            transformEvent(collectionName, batcher, DeadLetterQueue.getEvent(deadLetter), true, ticket);
+            VersionBatcher.Batch batch = batcher.drain();
+            checkpointManager.writeVersions(collectionName, batch.getDocuments());
+            batch.getTickets().forEach(ResumeTokenTracker.Ticket::release);
+        } else {
+            convertAndPublish(collectionName, deadLetter.getDocument(DeadLetterQueue.DOCUMENT_KEY),
+                    toDocument(deadLetter.getDocument(DeadLetterQueue.PAYLOAD)),
+                    deadLetter.getBoolean(DeadLetterQueue.PSD).getValue(), Collections.singletonList(ticket));
+            ticket.release();
+        }
+        boolean completed = ticket.awaitCompletion(commonProperties.getDeadLetterRetryTimeoutMillis(),
+                TimeUnit.MILLISECONDS);
+        tracker.checkFailure();
+        if (!completed) {
+            throw new IllegalStateException("Sends of dead letter " + deadLetter.get(Constants.ID)
+                    + " not acknowledged in time");
         }
     }
 
-    private Document getFormattedSkuPkg(Document updateJsonDoc) {
+    private void publish(String topic, BsonDocument documentKey, String payload, ResumeTokenTracker.Ticket ticket) {
+        publish(topic, documentKey, payload, Collections.singletonList(ticket));
+    }
+
+    /**
+     * Sends a payload keyed by document key. The tickets of its events stay pending until Kafka acknowledges the
+     * send, a failed send makes the watcher reopen the stream from the last checkpoint.
+     */
+    private void publish(String topic, BsonDocument documentKey, String payload,
+                         List<ResumeTokenTracker.Ticket> tickets) {
+        tickets.forEach(ResumeTokenTracker.Ticket::retain);
+        Timer.Sample sample = metrics.start();
+        try {
+            kafkaProducer.produce(topic, documentKey.toJson(), payload, (metadata, exc) -> {
+                metrics.recordKafkaSend(topic, sample);
+                if (exc == null) {
+                    tickets.forEach(ResumeTokenTracker.Ticket::release);
+                } else {
+                    LOGGER.error("Error while sending to kafka topic {}, document {}", topic, documentKey, exc);
+                    IllegalStateException failure = new IllegalStateException("Sending to " + topic + " failed", exc);
+                    tickets.forEach(ticket -> ticket.fail(failure));
+                }
+            });
+        } catch (RuntimeException exc) {
+            LOGGER.error("Error while sending to kafka topic {}, document {}", topic, documentKey, exc);
+            tickets.forEach(ticket -> ticket.fail(exc));
+        }
+    }
+
+    Document getFormattedSkuPkg(Document updateJsonDoc) {
 
         List<Document> updatedSkuPkgList = (List<Document>) updateJsonDoc.get("skuPackageShippingDimensionList");
         List<Document> formattedSkupkgList = new ArrayList<>();
@@ -420,8 +754,7 @@ public class ChangeStreamService {
             try {
 
                 Date modifiedDate = (Date) updatedSkuPkgList.get(0).get("modifiedDateTime");
-                DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-                String formatted = format.format(modifiedDate);
+                String formatted = JsonMappers.formatDate(modifiedDate);
 
                 packageDimensionDoc.append("modifiedDateTime", formatted);
             } catch (Exception e) {
@@ -431,8 +764,7 @@ public class ChangeStreamService {
                     modifiedDate = modifiedDate.replace("}", "");
 
                     Date date = new Date(Long.parseLong(modifiedDate));
-                    DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-                    String formatted = format.format(date);
+                    String formatted = JsonMappers.formatDate(date);
 
                     packageDimensionDoc.append("modifiedDateTime", formatted);
                 } catch (Exception exc) {
@@ -451,66 +783,4 @@ public class ChangeStreamService {
 
         return skuPckgDoc;
     }
-
-    private CodecRegistry getPojoCodecRegistry(String collectionName) {
-        CodecRegistry pojoCodecRegistry = null;
-        if (collectionName.equalsIgnoreCase("sku")) {
-            pojoCodecRegistry = fromRegistries(MongoClient.getDefaultCodecRegistry(),
-                    fromProviders(PojoCodecProvider.builder().register(SKU.class).build()));
-        } else if (collectionName.equalsIgnoreCase("kohlsstyle")) {
-            pojoCodecRegistry = fromRegistries(MongoClient.getDefaultCodecRegistry(),
-                    fromProviders(PojoCodecProvider.builder().register(KohlsStyle.class).build()));
-        } else if (collectionName.equalsIgnoreCase("consumerproduct")) {
-            pojoCodecRegistry = fromRegistries(MongoClient.getDefaultCodecRegistry(),
-                    fromProviders(PojoCodecProvider.builder().register(Product.class).build()));
-        } else if (collectionName.equalsIgnoreCase("attributenamecrossreference")) {
-            pojoCodecRegistry = fromRegistries(MongoClient.getDefaultCodecRegistry(),
-                    fromProviders(PojoCodecProvider.builder().register(AttributeNameCrossReference.class).build()));
-        } else if (collectionName.equalsIgnoreCase("brand")) {
-            pojoCodecRegistry = fromRegistries(MongoClient.getDefaultCodecRegistry(),
-                    fromProviders(PojoCodecProvider.builder().register(Brand.class).build()));
-        } else if (collectionName.equalsIgnoreCase("businessgroup")) {
-            pojoCodecRegistry = fromRegistries(MongoClient.getDefaultCodecRegistry(),
-                    fromProviders(PojoCodecProvider.builder().register(BusinessGroup.class).build()));
-        } else if (collectionName.equalsIgnoreCase("buyingcontact")) {
-            pojoCodecRegistry = fromRegistries(MongoClient.getDefaultCodecRegistry(),
-                    fromProviders(PojoCodecProvider.builder().register(BuyingContact.class).build()));
-        } else if (collectionName.equalsIgnoreCase("calendar")) {
-            pojoCodecRegistry = fromRegistries(MongoClient.getDefaultCodecRegistry(),
-                    fromProviders(PojoCodecProvider.builder().register(Calendar.class).build()));
-        } else if (collectionName.equalsIgnoreCase("color")) {
-            pojoCodecRegistry = fromRegistries(MongoClient.getDefaultCodecRegistry(),
-                    fromProviders(PojoCodecProvider.builder().register(Color.class).build()));
-        } else if (collectionName.equalsIgnoreCase("country")) {
-            pojoCodecRegistry = fromRegistries(MongoClient.getDefaultCodecRegistry(),
-                    fromProviders(PojoCodecProvider.builder().register(Country.class).build()));
-        } else if (collectionName.equalsIgnoreCase("customerchoicebirthstone")) {
-            pojoCodecRegistry = fromRegistries(MongoClient.getDefaultCodecRegistry(),
-                    fromProviders(PojoCodecProvider.builder().register(CustomerChoiceBirthStone.class).build()));
-        } else if (collectionName.equalsIgnoreCase("department")) {
-            pojoCodecRegistry = fromRegistries(MongoClient.getDefaultCodecRegistry(),
-                    fromProviders(PojoCodecProvider.builder().register(Department.class).build()));
-        } else if (collectionName.equalsIgnoreCase("operatingcompany")) {
-            pojoCodecRegistry = fromRegistries(MongoClient.getDefaultCodecRegistry(),
-                    fromProviders(PojoCodecProvider.builder().register(OperatingCompany.class).build()));
-        } else if (collectionName.equalsIgnoreCase("packagingspecificationgrid")) {
-            pojoCodecRegistry = fromRegistries(MongoClient.getDefaultCodecRegistry(),
-                    fromProviders(PojoCodecProvider.builder().register(PackagingSpecificationGrid.class).build()));
-        } else if (collectionName.equalsIgnoreCase("referencecode")) {
-            pojoCodecRegistry = fromRegistries(MongoClient.getDefaultCodecRegistry(),
-                    fromProviders(PojoCodecProvider.builder().register(ReferenceCode.class).build()));
-        } else if (collectionName.equalsIgnoreCase("reportinglabelpurpose")) {
-            pojoCodecRegistry = fromRegistries(MongoClient.getDefaultCodecRegistry(),
-                    fromProviders(PojoCodecProvider.builder().register(ReportingLabelPurpose.class).build()));
-        } else if (collectionName.equalsIgnoreCase("size")) {
-            pojoCodecRegistry = fromRegistries(MongoClient.getDefaultCodecRegistry(),
-                    fromProviders(PojoCodecProvider.builder().register(Size.class).build()));
-        } else if (collectionName.equalsIgnoreCase("vendor")) {
-            pojoCodecRegistry = fromRegistries(MongoClient.getDefaultCodecRegistry(),
-                    fromProviders(PojoCodecProvider.builder().register(Vendor.class).build()));
-        }
-
-
-            return pojoCodecRegistry;
-    }
 }
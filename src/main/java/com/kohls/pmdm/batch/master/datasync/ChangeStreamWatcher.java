@@ -0,0 +1,155 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+import org.bson.RawBsonDocument;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the change stream of a single collection. Instead of blocking a thread forever, each run drains at most a
+ * bounded number of events and then reschedules itself on the shared {@link ChangeStreamScheduler} pool, so a busy
+ * collection cannot starve the others. Runs of the same watcher never overlap.
+ */
+public class ChangeStreamWatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChangeStreamWatcher.class);
+
+    private final String collectionName;
+    private final ChangeStreamService changeStreamService;
+    private final ScheduledExecutorService executor;
+    private final ExponentialBackoff backoff;
+    private final int maxEventsPerRound;
+    private final long backpressureDelayMillis;
+
+    private volatile boolean running;
+    private ScheduledFuture<?> future;
+
+    ClientSession session;
+    MongoCursor<ChangeStreamDocument<RawBsonDocument>> cursor;
+    final ResumeTokenTracker tracker;
+    final ProcessingLanes lanes;
+    final VersionBatcher batcher;
+    final VersionWriter writer;
+
+    ChangeStreamWatcher(String collectionName, ChangeStreamService changeStreamService,
+                        ScheduledExecutorService executor, ExponentialBackoff backoff, ResumeTokenTracker tracker,
+                        ProcessingLanes lanes, VersionBatcher batcher, VersionWriter writer, int maxEventsPerRound,
+                        long backpressureDelayMillis) {
+        this.collectionName = collectionName;
+        this.changeStreamService = changeStreamService;
+        this.executor = executor;
+        this.backoff = backoff;
+        this.tracker = tracker;
+        this.lanes = lanes;
+        this.batcher = batcher;
+        this.writer = writer;
+        this.maxEventsPerRound = maxEventsPerRound;
+        this.backpressureDelayMillis = backpressureDelayMillis;
+    }
+
+    public String getCollectionName() {
+        return collectionName;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Returns the number of rounds that failed in a row, zero once a round succeeds again.
+     */
+    public int getConsecutiveFailures() {
+        return backoff.getAttempts();
+    }
+
+    synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        schedule(0);
+        LOGGER.info("Started change stream watcher for collection: {}", collectionName);
+    }
+
+    synchronized void stop() {
+        running = false;
+        if (future != null) {
+            future.cancel(false);
+            future = null;
+        }
+        close();
+        LOGGER.info("Stopped change stream watcher for collection: {}", collectionName);
+    }
+
+    private synchronized void runRound() {
+        if (!running) {
+            return;
+        }
+        long delay = 0;
+        try {
+            if (session == null) {
+                session = changeStreamService.startSession();
+                LOGGER.info("Initialized session for collection: {}, causally consistent: {}", collectionName,
+                        session.isCausallyConsistent());
+            }
+            if (cursor == null) {
+                cursor = changeStreamService.getCursor(collectionName, session);
+                LOGGER.info("Initialized cursor for collection: {}", collectionName);
+            }
+            changeStreamService.updateVersionCollection(this, maxEventsPerRound);
+            backoff.reset();
+            if (writer.isSaturated() || lanes.isSaturated()) {
+                // Let the lanes and the writer catch up before reading more events.
+                delay = backpressureDelayMillis;
+            }
+        } catch (Exception exc) {
+            delay = backoff.nextDelayMillis();
+            LOGGER.error("Exception while running change stream for collection {}, retry {} in {} ms", collectionName,
+                    backoff.getAttempts(), delay, exc);
+            close();
+        }
+        schedule(delay);
+    }
+
+    private void schedule(long delayMillis) {
+        if (running) {
+            future = executor.schedule(this::runRound, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void close() {
+        if (cursor != null) {
+            LOGGER.info("Closing cursor explicitly for {}", collectionName);
+            try {
+                cursor.close();
+            } catch (Exception exc) {
+                LOGGER.warn("Error closing cursor for {}", collectionName, exc);
+            }
+            cursor = null;
+        }
+        if (session != null) {
+            LOGGER.info("Closing session explicitly for {}", collectionName);
+            session.close();
+            session = null;
+        }
+        // Pending events and versions are dropped, the events are read again from the stored resume token.
+        try {
+            lanes.reset();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        batcher.clear();
+        writer.reset();
+        changeStreamService.discardConflatedUpdates(collectionName);
+        tracker.reset();
+        changeStreamService.resetCheckpoint(collectionName);
+    }
+}
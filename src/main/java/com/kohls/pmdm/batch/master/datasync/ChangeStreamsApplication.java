@@ -1,16 +1,9 @@
 package com.kohls.pmdm.batch.master.datasync;
 
-import com.kohls.pmdm.batch.master.common.Constants;
+import com.kohls.pmdm.batch.master.common.CommonProperties;
 import com.kohls.pmdm.batch.master.common.MongoClientHolder;
-import com.mongodb.BasicDBObject;
-import com.mongodb.ClientSessionOptions;
 import com.mongodb.MongoClient;
-import com.mongodb.client.FindIterable;
-import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.MongoIterable;
-import com.mongodb.session.ClientSession;
-import org.bson.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.CommandLineRunner;
@@ -19,7 +12,6 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -30,8 +22,9 @@ public class ChangeStreamsApplication {
 
     private boolean changeStreamEnable = true;
     private String collectionList = "Brand,Color,Department,Product,Size";
-    private String collectionSuffix = "_coll";
 
+    //@Autowired
+    CommonProperties commonProperties = new CommonProperties();
     //@Autowired
     MongoClientHolder mongoClientHolder = new MongoClientHolder();
     //@Autowired
@@ -41,65 +34,71 @@ public class ChangeStreamsApplication {
 
 
     private final ChangeStreamService changeStreamService;
+    private final ChangeStreamScheduler changeStreamScheduler;
+    private final LeaseCoordinator leaseCoordinator;
+    private final VersionRetention versionRetention;
 
-    public ChangeStreamsApplication(ChangeStreamService changeStreamService) {
+    public ChangeStreamsApplication(ChangeStreamService changeStreamService,
+                                    ChangeStreamScheduler changeStreamScheduler, LeaseCoordinator leaseCoordinator,
+                                    VersionRetention versionRetention) {
         this.changeStreamService = changeStreamService;
+        this.changeStreamScheduler = changeStreamScheduler;
+        this.leaseCoordinator = leaseCoordinator;
+        this.versionRetention = versionRetention;
     }
 
     public static void main(String[] args) { SpringApplication.run(ChangeStreamsApplication.class, args);}
 
     @Bean
     public CommandLineRunner commandLineRunner(ApplicationContext ctx) {
-
-        LOGGER.info("Starting ChangeStreamAppRunner run method");
-
-        changeStreamService.setClient(client);
-        changeStreamService.setMongoDatabase(  mongoClientHolder.mongoDatabase());
-
-        if (changeStreamEnable) {
-            MongoDatabase database = mongoClientHolder.mongoDatabase();
-            List<String> collections = new ArrayList<>();
-            MongoIterable<String> dbCollectionList = database.listCollectionNames();
-            List<String> collectionNames = Arrays.asList(collectionList.split(","));
-            for (String collectionValue : dbCollectionList) {
-                collections.add(collectionValue);
-            }
-            // Create Sequence collection to keep the change stream tokens for the above
-            // collections.
-            if (!collections.contains(Constants.SEQUENCE)) {
-                database.createCollection(Constants.SEQUENCE);
-            }
-            MongoCollection<Document> collection = database.getCollection(Constants.SEQUENCE);
-            LOGGER.info("Checking the change streams of collections {}", collectionNames);
-            collectionNames.forEach(collectionName -> {
-                String newCollection = collectionName + collectionSuffix;
-                ClientSessionOptions sessionOptions = ClientSessionOptions.builder().build();
-                ClientSession session = client.startSession(sessionOptions);
-                LOGGER.info("Session casually consistent value: {} ", session.isCausallyConsistent());
-                if (!collections.contains(newCollection)) {
-                    database.createCollection(newCollection);
-                    LOGGER.info("Created a new Collection : " + newCollection);
+        return args -> {
+            LOGGER.info("Starting ChangeStreamAppRunner run method");
+
+            changeStreamService.setClient(client);
+            changeStreamService.setMongoDatabase(mongoClientHolder.mongoDatabase());
+
+            if (changeStreamEnable) {
+                MongoDatabase database = mongoClientHolder.mongoDatabase();
+                List<String> collectionNames = Arrays.asList(collectionList.split(","));
+                LOGGER.info("Checking the change streams of collections {}", collectionNames);
+                changeStreamService.initCodecRegistries(collectionNames);
+                if (commonProperties.isDatabaseChangeStreamEnabled()) {
+                    if (commonProperties.isLeaseCoordinationEnabled()) {
+                        // A single database-level stream cannot be split over instances.
+                        LOGGER.warn("Database change stream is not available with lease coordination, "
+                                + "watching the collections one by one");
+                    } else {
+                        DatabaseChangeEventSource databaseSource = new DatabaseChangeEventSource(database,
+                                collectionNames, commonProperties);
+                        changeStreamService.setChangeEventSource(databaseSource);
+                        changeStreamService.setCheckpointListener(databaseSource::checkpointed);
+                    }
                 }
-                // Check whether the Id documents are present for the above collections else
-                // create it.
-                BasicDBObject whereQuery = new BasicDBObject();
-                whereQuery.put(Constants.ID, collectionName + Constants.TOKEN);
-                FindIterable<Document> sequenceIter = collection.find(whereQuery);
-                Document document = sequenceIter.first();
-                if (document == null) {
-                    collection.insertOne(new Document(Constants.ID, collectionName + Constants.TOKEN));
+                // Seeded before any stream starts, the events since the checkpoints then apply on top of it.
+                changeStreamService.seedFlattenedSkuStore();
+                VersionBuckets versionBuckets = new VersionBuckets(database);
+                // Create the sequence documents keeping the change stream tokens and the version collections, and
+                // start watching each collection once it is ready.
+                new ChangeStreamBootstrap(database, versionBuckets, commonProperties.getBootstrapParallelism())
+                        .run(collectionNames, (collectionName, sequence) -> {
+                            if (!commonProperties.isLeaseCoordinationEnabled()) {
+                                changeStreamService.preloadSequence(collectionName, sequence);
+                                changeStreamScheduler.start(collectionName);
+                            }
+                        });
+                changeStreamService.startDeadLetterRetrier(collectionNames);
+                // Expired buckets of the bucketed collections are archived and dropped in the background.
+                versionRetention.setMongoDatabase(database, versionBuckets);
+                versionRetention.start(collectionNames);
+                if (commonProperties.isLeaseCoordinationEnabled()) {
+                    // The collections are spread over the running instances instead.
+                    leaseCoordinator.setMongoDatabase(database);
+                    leaseCoordinator.start(collectionNames);
                 }
-
-                changeStreamService.pollChangeStream(collectionName, session);
-            });
-        } else {
-            LOGGER.info("Change Stream operations are not enabled");
-        }
-        LOGGER.info("Ending ChangeStreamAppRunner run method");
-
-        return args -> {
-            System.out.println("returning...");
-
+            } else {
+                LOGGER.info("Change Stream operations are not enabled");
+            }
+            LOGGER.info("Ending ChangeStreamAppRunner run method");
         };
     }
 
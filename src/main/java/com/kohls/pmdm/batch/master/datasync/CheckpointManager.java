@@ -0,0 +1,433 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.CommonProperties;
+import com.kohls.pmdm.batch.master.common.Constants;
+import com.kohls.pmdm.batch.master.common.VersionCodec;
+import com.kohls.pmdm.domain.Sequence;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+
+import io.micrometer.core.instrument.Timer;
+
+import org.apache.commons.collections4.CollectionUtils;
+
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Stores the version documents of a batch together with the resume token of the collection in the
+ * {@value Constants#SEQUENCE} collection.
+ * <p>
+ * Resume tokens are checkpointed once every {@code checkpointMaxBatches} batches or {@code checkpointMaxDelayMillis},
+ * whichever comes first, so bursts do not turn into a token write per batch. A checkpoint and the batch it covers are
+ * committed in one transaction when the deployment supports it, otherwise the batch is written first. Version
+ * documents are keyed by the resume token of their event, so events replayed after a restart are skipped as
+ * duplicates.
+ */
+public class CheckpointManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CheckpointManager.class);
+    private static final String MODIFIED_DATE_TIME = "modifiedDateTime";
+
+    //@Autowired
+    CommonProperties commonProperties = new CommonProperties();
+
+    private final ChangeStreamMetrics metrics;
+    private final Map<String, PendingCheckpoint> pendingCheckpoints = new ConcurrentHashMap<>();
+    private final Map<String, Long> leaseTokens = new ConcurrentHashMap<>();
+    private final Map<String, Long> leaseDeadlines = new ConcurrentHashMap<>();
+    private final Map<String, BsonDocument> preloadedSequences = new ConcurrentHashMap<>();
+    private MongoDatabase mongoDatabase;
+    private VersionBuckets versionBuckets;
+    private volatile Boolean transactionsSupported;
+    private volatile long transactionsCheckedAt;
+    private volatile BiConsumer<String, BsonDocument> checkpointListener;
+
+    public CheckpointManager(ChangeStreamMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setMongoDatabase(MongoDatabase mongoDatabase) {
+        this.mongoDatabase = mongoDatabase;
+        this.versionBuckets = new VersionBuckets(mongoDatabase);
+    }
+
+    /**
+     * Writes the version documents of a batch and checkpoints the resume token when a checkpoint is due.
+     *
+     * @param collectionName
+     *            String name of the watched collection
+     * @param documents
+     *            List of encoded version documents, may be empty
+     * @param resumeToken
+     *            BsonDocument resume token of the last event of the batch, null to only flush an overdue checkpoint
+     * @param clusterTime
+     *            BsonTimestamp cluster time of the event of the resume token, null if not known
+     * @param session
+     *            ClientSession of the writer
+     */
+    public void commit(String collectionName, List<RawBsonDocument> documents, BsonDocument resumeToken,
+                       BsonTimestamp clusterTime, ClientSession session) {
+        PendingCheckpoint pending = pendingCheckpoints.computeIfAbsent(collectionName, name -> new PendingCheckpoint());
+        if (resumeToken != null) {
+            pending.add(resumeToken, clusterTime);
+        }
+        boolean checkpointDue = pending.isDue(commonProperties.getCheckpointMaxBatches(),
+                commonProperties.getCheckpointMaxDelayMillis());
+        if (CollectionUtils.isEmpty(documents)) {
+            if (checkpointDue) {
+                checkpointed(collectionName, pending, storeResumeToken(collectionName, pending, session));
+            }
+            return;
+        }
+        ensureBuckets(collectionName, documents);
+        if (checkpointDue && isTransactionsSupported()) {
+            try {
+                session.startTransaction();
+                insertVersions(collectionName, documents, session);
+                BsonDocument checkpointToken = storeResumeToken(collectionName, pending, session);
+                session.commitTransaction();
+                // Only a committed checkpoint lets the pending batches go, a rolled back one is stored again.
+                checkpointed(collectionName, pending, checkpointToken);
+                return;
+            } catch (MongoException exc) {
+                if (session.hasActiveTransaction()) {
+                    session.abortTransaction();
+                }
+                if (!isOnlyDuplicateKeys(exc)) {
+                    // The deployment may no longer support transactions, e.g. after a failover.
+                    transactionsSupported = null;
+                    throw exc;
+                }
+                // Replayed events abort the transaction, store them without one.
+                LOGGER.debug("Replayed versions in batch of {}, committing without transaction", collectionName);
+            } catch (RuntimeException exc) {
+                if (session.hasActiveTransaction()) {
+                    session.abortTransaction();
+                }
+                throw exc;
+            }
+        }
+        insertVersionsIgnoringDuplicates(collectionName, documents, session);
+        if (checkpointDue) {
+            checkpointed(collectionName, pending, storeResumeToken(collectionName, pending, session));
+        }
+    }
+
+    /**
+     * Writes version documents outside of a batch and without a checkpoint, skipping the ones already stored.
+     */
+    public void writeVersions(String collectionName, List<RawBsonDocument> documents) {
+        if (CollectionUtils.isEmpty(documents)) {
+            return;
+        }
+        ensureBuckets(collectionName, documents);
+        insertVersionsIgnoringDuplicates(collectionName, documents, null);
+    }
+
+    /**
+     * Registers a listener told about every resume token stored, once its checkpoint is committed.
+     */
+    public void setCheckpointListener(BiConsumer<String, BsonDocument> checkpointListener) {
+        this.checkpointListener = checkpointListener;
+    }
+
+    /**
+     * Fences the checkpoints of a collection with the token of the lease this instance holds on it, null when
+     * collections are not leased.
+     */
+    public void setLeaseToken(String collectionName, Long leaseToken) {
+        if (leaseToken == null) {
+            leaseTokens.remove(collectionName);
+            leaseDeadlines.remove(collectionName);
+        } else {
+            leaseTokens.put(collectionName, leaseToken);
+        }
+    }
+
+    /**
+     * Sets the time by which the lease of a collection must be renewed before this instance stops writing it.
+     */
+    public void setLeaseDeadline(String collectionName, long deadline) {
+        leaseDeadlines.put(collectionName, deadline);
+    }
+
+    /**
+     * Throws when the lease of a collection was not renewed in time, another instance may take it over any moment.
+     */
+    public void checkLease(String collectionName) {
+        Long deadline = leaseDeadlines.get(collectionName);
+        if (deadline != null && System.currentTimeMillis() >= deadline) {
+            throw new IllegalStateException("Lease of collection " + collectionName + " was not renewed in time");
+        }
+    }
+
+    /**
+     * Returns whether a resume token has been pending for longer than the checkpoint delay.
+     */
+    public boolean isCheckpointOverdue(String collectionName) {
+        PendingCheckpoint pending = pendingCheckpoints.get(collectionName);
+        return pending != null && pending.isDue(Integer.MAX_VALUE, commonProperties.getCheckpointMaxDelayMillis());
+    }
+
+    /**
+     * Forgets the pending checkpoint of a collection whose change stream is reopened from the stored token.
+     */
+    public void reset(String collectionName) {
+        pendingCheckpoints.remove(collectionName);
+    }
+
+    /**
+     * Loads the stored resume token of a collection. Tokens stored as JSON strings by earlier versions are parsed.
+     */
+    public Sequence loadSequence(String collectionName, ClientSession session) {
+        BsonDocument document = preloadedSequences.remove(collectionName);
+        if (document == null) {
+            document = getSequenceCollection()
+                    .find(session, Filters.eq(Constants.ID, collectionName + Constants.TOKEN)).first();
+        }
+        if (document == null) {
+            return null;
+        }
+        Sequence sequence = new Sequence();
+        sequence.set_id(collectionName + Constants.TOKEN);
+        BsonValue token = document.get(Constants.TOKEN);
+        if (token != null && token.isDocument()) {
+            sequence.setBsonToken(token.asDocument());
+        } else if (token != null && token.isString()) {
+            sequence.setBsonToken(BsonDocument.parse(token.asString().getValue()));
+        }
+        if (document.isTimestamp(Constants.CLUSTER_TIME)) {
+            sequence.setClusterTime(document.getTimestamp(Constants.CLUSTER_TIME));
+        }
+        if (document.isDateTime(MODIFIED_DATE_TIME)) {
+            sequence.setModifiedDateTime(new Date(document.getDateTime(MODIFIED_DATE_TIME).getValue()));
+        }
+        return sequence;
+    }
+
+    /**
+     * Hands over a sequence document read at startup, the first {@link #loadSequence} of the collection uses it
+     * instead of reading it again.
+     */
+    public void preloadSequence(String collectionName, BsonDocument document) {
+        preloadedSequences.put(collectionName, document);
+    }
+
+    public void clearResumeToken(String collectionName, ClientSession session) {
+        pendingCheckpoints.remove(collectionName);
+        preloadedSequences.remove(collectionName);
+        getSequenceCollection().replaceOne(session, Filters.eq(Constants.ID, collectionName + Constants.TOKEN),
+                new BsonDocument(Constants.ID, new BsonString(collectionName + Constants.TOKEN)));
+    }
+
+    /**
+     * Writes the pending resume token of a collection and returns it. It only counts as checkpointed once the write
+     * is committed, see {@link #checkpointed}.
+     */
+    private BsonDocument storeResumeToken(String collectionName, PendingCheckpoint pending, ClientSession session) {
+        BsonDocument resumeToken = pending.getResumeToken();
+        BsonDocument sequence = new BsonDocument(Constants.ID, new BsonString(collectionName + Constants.TOKEN))
+                .append(Constants.TOKEN, resumeToken)
+                .append(MODIFIED_DATE_TIME, new BsonDateTime(System.currentTimeMillis()));
+        BsonTimestamp clusterTime = pending.getClusterTime();
+        if (clusterTime != null) {
+            // Lets the stream restart from startAtOperationTime once the token itself can no longer be resumed.
+            sequence.append(Constants.CLUSTER_TIME, clusterTime);
+        }
+        Bson filter = Filters.eq(Constants.ID, sequence.get(Constants.ID));
+        Long leaseToken = leaseTokens.get(collectionName);
+        if (leaseToken != null) {
+            // A checkpoint of a newer lease owner no longer matches, the upsert then fails on the duplicate _id.
+            sequence.append(Constants.LEASE_TOKEN, new BsonInt64(leaseToken));
+            filter = Filters.and(filter, Filters.or(Filters.exists(Constants.LEASE_TOKEN, false),
+                    Filters.lte(Constants.LEASE_TOKEN, leaseToken)));
+        }
+        Timer.Sample sample = metrics.start();
+        try {
+            getSequenceCollection().replaceOne(session, filter, sequence, new ReplaceOptions().upsert(true));
+        } catch (MongoException exc) {
+            if (leaseToken != null && ErrorCategory.fromErrorCode(exc.getCode()) == ErrorCategory.DUPLICATE_KEY) {
+                throw new IllegalStateException("Lease " + leaseToken + " of collection " + collectionName
+                        + " was taken over, resume token not stored", exc);
+            }
+            throw exc;
+        }
+        metrics.recordCheckpoint(collectionName, sample);
+        return resumeToken;
+    }
+
+    private void checkpointed(String collectionName, PendingCheckpoint pending, BsonDocument resumeToken) {
+        pending.checkpointed(resumeToken);
+        LOGGER.debug("Stored resume token of collection {}: {}", collectionName, resumeToken);
+        notifyCheckpoint(collectionName, resumeToken);
+    }
+
+    private void notifyCheckpoint(String collectionName, BsonDocument resumeToken) {
+        BiConsumer<String, BsonDocument> listener = checkpointListener;
+        if (listener != null && resumeToken != null) {
+            listener.accept(collectionName, resumeToken);
+        }
+    }
+
+    private void insertVersions(String collectionName, List<RawBsonDocument> documents, ClientSession session) {
+        Map<String, List<InsertOneModel<RawBsonDocument>>> requestsByBucket = new LinkedHashMap<>();
+        for (RawBsonDocument document : documents) {
+            requestsByBucket.computeIfAbsent(getBucket(collectionName, document), name -> new ArrayList<>()).add(new InsertOneModel<>(document));
+        }
+        Timer.Sample sample = metrics.start();
+        try {
+            // A batch spans two buckets at most, around the turn of a month.
+            for (Map.Entry<String, List<InsertOneModel<RawBsonDocument>>> requests : requestsByBucket.entrySet()) {
+                MongoCollection<RawBsonDocument> versions = mongoDatabase.getCollection(requests.getKey(),
+                        RawBsonDocument.class);
+                if (session == null) {
+                    versions.bulkWrite(requests.getValue(), new BulkWriteOptions().ordered(false));
+                } else {
+                    versions.bulkWrite(session, requests.getValue(), new BulkWriteOptions().ordered(false));
+                }
+            }
+        } finally {
+            metrics.recordVersionWrite(collectionName, sample);
+        }
+    }
+
+    /**
+     * Creates the buckets of a batch up front, they cannot be created inside its transaction.
+     */
+    private void ensureBuckets(String collectionName, List<RawBsonDocument> documents) {
+        if (!commonProperties.isVersionBucketingEnabled(collectionName)) {
+            return;
+        }
+        for (RawBsonDocument document : documents) {
+            versionBuckets.ensureBucket(getBucket(collectionName, document));
+        }
+    }
+
+    private String getBucket(String collectionName, RawBsonDocument document) {
+        BsonValue clusterTime = document.get(VersionCodec.CLUSTER_TIME);
+        return versionBuckets.getBucket(collectionName,
+                clusterTime != null && clusterTime.isTimestamp() ? clusterTime.asTimestamp() : null);
+    }
+
+    private void insertVersionsIgnoringDuplicates(String collectionName, List<RawBsonDocument> documents,
+                                                  ClientSession session) {
+        try {
+            insertVersions(collectionName, documents, session);
+        } catch (MongoBulkWriteException exc) {
+            if (!isOnlyDuplicateKeys(exc)) {
+                throw exc;
+            }
+            LOGGER.info("Skipped {} replayed versions of collection {}", exc.getWriteErrors().size(),
+                    collectionName);
+        }
+    }
+
+    private boolean isOnlyDuplicateKeys(MongoException exc) {
+        if (!(exc instanceof MongoBulkWriteException)) {
+            return ErrorCategory.fromErrorCode(exc.getCode()) == ErrorCategory.DUPLICATE_KEY;
+        }
+        MongoBulkWriteException bulkExc = (MongoBulkWriteException) exc;
+        if (bulkExc.getWriteConcernError() != null) {
+            return false;
+        }
+        for (BulkWriteError error : bulkExc.getWriteErrors()) {
+            if (error.getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Multi-document transactions need a replica set on wire version 7 (MongoDB 4.0) or later. Checked again every
+     * {@code checkpointTransactionsRecheckMillis} and after a failed transaction.
+     */
+    private boolean isTransactionsSupported() {
+        if (!commonProperties.isCheckpointTransactionsEnabled()) {
+            return false;
+        }
+        Boolean supported = transactionsSupported;
+        if (supported == null || System.currentTimeMillis() - transactionsCheckedAt
+                >= commonProperties.getCheckpointTransactionsRecheckMillis()) {
+            Document isMaster = mongoDatabase.runCommand(new Document("isMaster", 1));
+            Number maxWireVersion = (Number) isMaster.get("maxWireVersion");
+            boolean checked = isMaster.get("setName") != null && maxWireVersion != null
+                    && maxWireVersion.intValue() >= 7;
+            if (!Boolean.valueOf(checked).equals(supported)) {
+                LOGGER.info("Checkpoint transactions supported: {}", checked);
+            }
+            supported = checked;
+            transactionsSupported = supported;
+            transactionsCheckedAt = System.currentTimeMillis();
+        }
+        return supported;
+    }
+
+    private MongoCollection<BsonDocument> getSequenceCollection() {
+        return mongoDatabase.getCollection(Constants.SEQUENCE, BsonDocument.class);
+    }
+
+    private static class PendingCheckpoint {
+        private BsonDocument resumeToken;
+        private BsonTimestamp clusterTime;
+        private int batches;
+        private long firstPendingNanos;
+
+        synchronized void add(BsonDocument resumeToken, BsonTimestamp clusterTime) {
+            if (batches == 0) {
+                firstPendingNanos = System.nanoTime();
+            }
+            this.resumeToken = resumeToken;
+            this.clusterTime = clusterTime;
+            batches++;
+        }
+
+        synchronized boolean isDue(int maxBatches, long maxDelayMillis) {
+            return batches > 0 && (batches >= maxBatches
+                    || System.nanoTime() - firstPendingNanos >= TimeUnit.MILLISECONDS.toNanos(maxDelayMillis));
+        }
+
+        synchronized BsonDocument getResumeToken() {
+            return resumeToken;
+        }
+
+        synchronized BsonTimestamp getClusterTime() {
+            return clusterTime;
+        }
+
+        synchronized void checkpointed(BsonDocument storedToken) {
+            if (storedToken == resumeToken) {
+                batches = 0;
+            }
+        }
+    }
+}
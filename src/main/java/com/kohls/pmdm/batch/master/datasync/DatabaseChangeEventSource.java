@@ -0,0 +1,483 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.ChangeStreamFilter;
+import com.kohls.pmdm.batch.master.common.CommonProperties;
+import com.kohls.pmdm.batch.master.common.Constants;
+import com.mongodb.MongoException;
+import com.mongodb.ReadConcern;
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watches all collections with a single database-level change stream filtered by {@code ns.coll} and hands each
+ * event to the cursor of its collection, so the watchers keep writing their own {@code _coll} version documents.
+ * <p>
+ * The stream has one global resume token in the {@value Constants#SEQUENCE} collection. It only moves past an event
+ * once the collection of that event has checkpointed it, see {@link #checkpointed(String, BsonDocument)}, so every
+ * event up to the global token is stored in its version collection.
+ * <p>
+ * Every event read since the global token is remembered by its resume token until the stream moves past it, so a
+ * restarted stream hands out only the events not delivered yet. A failure of the stream itself reopens it once from
+ * the global token, with backoff, without disturbing the watchers. Reopening the cursor of a collection, e.g. after a
+ * failure of its watcher, restarts the stream as well and replays the events that collection has not checkpointed;
+ * the other collections see no event twice.
+ * <p>
+ * The cluster time of the event is stored with the global token. When the token can no longer be resumed the stream
+ * starts at that cluster time instead, and when that is gone as well the documents of each collection modified since
+ * then are scanned by a {@link CatchUpScan} before the stream attaches at the cluster time the scans began.
+ */
+public class DatabaseChangeEventSource implements ChangeEventSource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DatabaseChangeEventSource.class);
+    private static final String MODIFIED_DATE_TIME = "modifiedDateTime";
+
+    private final MongoDatabase mongoDatabase;
+    private final CommonProperties commonProperties;
+    private final List<Bson> pipeline;
+    private final long maxAwaitMillis;
+    private final String tokenId;
+    private final Map<String, BlockingQueue<ChangeStreamDocument<RawBsonDocument>>> queues = new HashMap<>();
+    private final Map<String, Deque<Entry>> entriesByCollection = new HashMap<>();
+    private final Deque<Entry> entries = new ArrayDeque<>();
+    private final Map<BsonDocument, Entry> entriesByToken = new HashMap<>();
+    private final Set<String> openedCollections = ConcurrentHashMap.newKeySet();
+    private final AtomicLong generation = new AtomicLong();
+    private final ExponentialBackoff backoff;
+    private Thread pump;
+
+    public DatabaseChangeEventSource(MongoDatabase mongoDatabase, Collection<String> collectionNames,
+                                     CommonProperties commonProperties) {
+        this.mongoDatabase = mongoDatabase;
+        this.commonProperties = commonProperties;
+        this.maxAwaitMillis = commonProperties.getWatcherMaxAwaitMillis();
+        this.backoff = new ExponentialBackoff(commonProperties.getWatcherBackoffInitialMillis(),
+                commonProperties.getWatcherBackoffMaxMillis());
+        this.tokenId = "database:" + mongoDatabase.getName() + Constants.TOKEN;
+        Map<String, ChangeStreamFilter> filters = new LinkedHashMap<>();
+        for (String collectionName : collectionNames) {
+            filters.put(collectionName, commonProperties.getChangeStreamFilter(collectionName));
+            queues.put(collectionName,
+                    new LinkedBlockingQueue<>(commonProperties.getDatabaseChangeStreamQueueCapacity()));
+            entriesByCollection.put(collectionName, new ArrayDeque<>());
+        }
+        this.pipeline = ChangeStreamFilter.toDatabasePipeline(filters);
+        LOGGER.info("Database change stream pipeline of collections {}: {}", collectionNames, pipeline);
+    }
+
+    @Override
+    public MongoCursor<ChangeStreamDocument<RawBsonDocument>> open(String collectionName, ClientSession session) {
+        BlockingQueue<ChangeStreamDocument<RawBsonDocument>> queue = queues.get(collectionName);
+        if (queue == null) {
+            throw new IllegalArgumentException("Collection " + collectionName
+                    + " is not covered by the database change stream");
+        }
+        if (!openedCollections.add(collectionName)) {
+            LOGGER.info("Cursor of collection {} reopened, replaying its events from the database change stream",
+                    collectionName);
+            replay(collectionName);
+        }
+        synchronized (this) {
+            if (pump == null) {
+                pump = new Thread(this::pump, "cs-database");
+                pump.setDaemon(true);
+                pump.start();
+            }
+        }
+        return new CollectionCursor(queue);
+    }
+
+    /**
+     * Called once the resume token of a collection is stored: every event of the collection up to that token is in
+     * its version collection, and the global resume token moves past the events checkpointed by all collections.
+     */
+    public synchronized void checkpointed(String collectionName, BsonDocument resumeToken) {
+        Deque<Entry> collectionEntries = entriesByCollection.get(collectionName);
+        if (collectionEntries == null || !containsToken(collectionEntries, resumeToken)) {
+            // Delivered before the stream was restarted, the replayed event gets checkpointed instead.
+            return;
+        }
+        Entry entry;
+        do {
+            entry = collectionEntries.poll();
+            entry.checkpointed = true;
+        } while (!entry.resumeToken.equals(resumeToken));
+
+        Entry advancedTo = null;
+        while (!entries.isEmpty() && entries.peek().checkpointed) {
+            advancedTo = entries.poll();
+            entriesByToken.remove(advancedTo.resumeToken);
+        }
+        if (advancedTo != null) {
+            storeGlobalResumeToken(advancedTo.resumeToken, advancedTo.clusterTime);
+        }
+    }
+
+    /**
+     * Hands the events of a collection it has not checkpointed to its new cursor again. The stream restarts from the
+     * global token and skips the events delivered to the other collections.
+     */
+    private void replay(String collectionName) {
+        synchronized (this) {
+            for (Entry entry : entriesByCollection.get(collectionName)) {
+                entry.delivered = false;
+            }
+            entriesByCollection.get(collectionName).clear();
+            queues.get(collectionName).clear();
+            // Bumped under the lock, so the pump never delivers an event to the cleared queue in between.
+            generation.incrementAndGet();
+        }
+    }
+
+    private void pump() {
+        MongoCursor<ChangeStreamDocument<RawBsonDocument>> cursor = null;
+        long cursorGeneration = -1;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                if (cursor == null || cursorGeneration != generation.get()) {
+                    closeQuietly(cursor);
+                    cursor = null;
+                    cursorGeneration = generation.get();
+                    cursor = openCursor();
+                }
+                ChangeStreamDocument<RawBsonDocument> event = cursor.tryNext();
+                backoff.reset();
+                if (event != null) {
+                    route(event, cursorGeneration);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException exc) {
+                closeQuietly(cursor);
+                cursor = null;
+                long delay = backoff.nextDelayMillis();
+                LOGGER.error("Database change stream failed, reopening it from the global resume token, retry {} in "
+                        + "{} ms", backoff.getAttempts(), delay, exc);
+                try {
+                    TimeUnit.MILLISECONDS.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        closeQuietly(cursor);
+    }
+
+    private void route(ChangeStreamDocument<RawBsonDocument> event, long cursorGeneration)
+            throws InterruptedException {
+        String collectionName = event.getNamespaceDocument().getString("coll").getValue();
+        BlockingQueue<ChangeStreamDocument<RawBsonDocument>> queue = queues.get(collectionName);
+        Entry entry;
+        synchronized (this) {
+            if (cursorGeneration != generation.get()) {
+                return;
+            }
+            entry = entriesByToken.get(event.getResumeToken());
+            if (entry == null) {
+                entry = new Entry(event.getResumeToken(), CatchUpScan.getCheckpointClusterTime(event));
+                entries.add(entry);
+                entriesByToken.put(entry.resumeToken, entry);
+                if (queue == null) {
+                    entry.checkpointed = true;
+                    return;
+                }
+            } else if (entry.delivered || entry.checkpointed) {
+                // Read again by a restarted stream, its collection already has it.
+                return;
+            }
+            entry.delivered = true;
+            entriesByCollection.get(collectionName).add(entry);
+        }
+        // A full queue holds the whole stream back until its watcher catches up.
+        while (!queue.offer(event, maxAwaitMillis, TimeUnit.MILLISECONDS)) {
+            if (cursorGeneration != generation.get()) {
+                synchronized (this) {
+                    // Not handed out, the restarted stream delivers it again.
+                    entry.delivered = false;
+                    entriesByCollection.get(collectionName).remove(entry);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Opens the stream after the global resume token, or at its cluster time when the token can no longer be
+     * resumed, or scans the collections for the documents modified since when that is gone as well.
+     */
+    private MongoCursor<ChangeStreamDocument<RawBsonDocument>> openCursor() {
+        BsonDocument sequence = getSequenceCollection().find(Filters.eq(Constants.ID, tokenId)).first();
+        BsonValue token = sequence == null ? null : sequence.get(Constants.TOKEN);
+        BsonTimestamp clusterTime = sequence != null && sequence.isTimestamp(Constants.CLUSTER_TIME)
+                ? sequence.getTimestamp(Constants.CLUSTER_TIME) : null;
+        MongoDatabase database = mongoDatabase.withReadConcern(ReadConcern.MAJORITY);
+        if ((token == null || !token.isDocument()) && clusterTime == null) {
+            LOGGER.info("Database change stream opened without a resume token");
+            return watch(database).iterator();
+        }
+        if (token != null && token.isDocument() && !CatchUpScan.isCatchUpToken(token.asDocument())) {
+            try {
+                return watch(database).resumeAfter(token.asDocument()).iterator();
+            } catch (MongoException exc) {
+                LOGGER.warn("Cannot resume the database change stream after {}, trying its cluster time {}", token,
+                        clusterTime, exc);
+            }
+        }
+        if (clusterTime != null) {
+            try {
+                return watch(database).startAtOperationTime(clusterTime).iterator();
+            } catch (MongoException exc) {
+                LOGGER.warn("Cannot start the database change stream at {}", clusterTime, exc);
+            }
+        }
+        return catchUp(database, sequence, clusterTime);
+    }
+
+    /**
+     * Scans the documents of the collections modified since the global checkpoint one collection after the other,
+     * then attaches the stream at the cluster time the scans began.
+     */
+    private MongoCursor<ChangeStreamDocument<RawBsonDocument>> catchUp(MongoDatabase database, BsonDocument sequence,
+                                                                       BsonTimestamp clusterTime) {
+        long checkpointMillis = clusterTime != null ? clusterTime.getTime() * 1000L
+                : sequence.isDateTime(MODIFIED_DATE_TIME) ? sequence.getDateTime(MODIFIED_DATE_TIME).getValue()
+                : System.currentTimeMillis();
+        // Checkpointed until the scans complete, so a restart during them scans again from the same point.
+        BsonTimestamp checkpointClusterTime = clusterTime != null ? clusterTime
+                : new BsonTimestamp((int) (checkpointMillis / 1000), 0);
+        BsonTimestamp attachAt = mongoDatabase.runCommand(new BsonDocument("isMaster", new BsonInt32(1)),
+                BsonDocument.class).getTimestamp("operationTime", null);
+        if (attachAt == null) {
+            throw new IllegalStateException("No operation time from the cluster to catch up the database change "
+                    + "stream from " + checkpointClusterTime);
+        }
+        return new CatchUpCursor(database, new ArrayDeque<>(queues.keySet()),
+                new Date(checkpointMillis - commonProperties.getCatchUpMarginMillis()), checkpointClusterTime,
+                attachAt);
+    }
+
+    private ChangeStreamIterable<RawBsonDocument> watch(MongoDatabase database) {
+        return database.watch(pipeline, RawBsonDocument.class).maxAwaitTime(maxAwaitMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void storeGlobalResumeToken(BsonDocument resumeToken, BsonTimestamp clusterTime) {
+        BsonDocument sequence = new BsonDocument(Constants.ID, new BsonString(tokenId))
+                .append(Constants.TOKEN, resumeToken)
+                .append(MODIFIED_DATE_TIME, new BsonDateTime(System.currentTimeMillis()));
+        if (clusterTime != null) {
+            sequence.append(Constants.CLUSTER_TIME, clusterTime);
+        }
+        getSequenceCollection().replaceOne(Filters.eq(Constants.ID, tokenId), sequence,
+                new ReplaceOptions().upsert(true));
+        LOGGER.debug("Stored global resume token {}", resumeToken);
+    }
+
+    private MongoCollection<BsonDocument> getSequenceCollection() {
+        return mongoDatabase.getCollection(Constants.SEQUENCE, BsonDocument.class);
+    }
+
+    private static boolean containsToken(Deque<Entry> collectionEntries, BsonDocument resumeToken) {
+        for (Entry entry : collectionEntries) {
+            if (entry.resumeToken.equals(resumeToken)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void closeQuietly(MongoCursor<?> cursor) {
+        if (cursor != null) {
+            try {
+                cursor.close();
+            } catch (Exception exc) {
+                LOGGER.warn("Error closing the database change stream", exc);
+            }
+        }
+    }
+
+    private static class Entry {
+        private final BsonDocument resumeToken;
+        private final BsonTimestamp clusterTime;
+        private boolean delivered;
+        private boolean checkpointed;
+
+        Entry(BsonDocument resumeToken, BsonTimestamp clusterTime) {
+            this.resumeToken = resumeToken;
+            this.clusterTime = clusterTime;
+        }
+    }
+
+    /**
+     * Scans the collections one after the other and attaches the database stream once all of them are scanned.
+     */
+    private class CatchUpCursor implements MongoCursor<ChangeStreamDocument<RawBsonDocument>> {
+        private final MongoDatabase database;
+        private final Deque<String> remaining;
+        private final Date from;
+        private final BsonTimestamp checkpointClusterTime;
+        private final BsonTimestamp attachAt;
+        private final AtomicBoolean scanned = new AtomicBoolean();
+        private CatchUpScan scan;
+        private MongoCursor<ChangeStreamDocument<RawBsonDocument>> stream;
+
+        CatchUpCursor(MongoDatabase database, Deque<String> remaining, Date from, BsonTimestamp checkpointClusterTime,
+                      BsonTimestamp attachAt) {
+            this.database = database;
+            this.remaining = remaining;
+            this.from = from;
+            this.checkpointClusterTime = checkpointClusterTime;
+            this.attachAt = attachAt;
+        }
+
+        @Override
+        public ChangeStreamDocument<RawBsonDocument> tryNext() {
+            if (stream != null) {
+                return stream.tryNext();
+            }
+            if (scan == null) {
+                String collectionName = remaining.poll();
+                if (collectionName == null) {
+                    stream = watch(database).startAtOperationTime(attachAt).iterator();
+                    return null;
+                }
+                scanned.set(false);
+                scan = new CatchUpScan(mongoDatabase.getCollection(collectionName, RawBsonDocument.class),
+                        commonProperties.getCatchUpTimestampField(collectionName), from, checkpointClusterTime,
+                        attachAt, () -> {
+                            // Only marks the scan as complete, the database stream attaches after the last one.
+                            scanned.set(true);
+                            return null;
+                        }, commonProperties.getCatchUpParallelism(), commonProperties.getCatchUpQueueCapacity());
+            }
+            ChangeStreamDocument<RawBsonDocument> event = scan.tryNext();
+            if (event == null && scanned.get()) {
+                scan.close();
+                scan = null;
+            }
+            return event;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return true;
+        }
+
+        @Override
+        public ChangeStreamDocument<RawBsonDocument> next() {
+            ChangeStreamDocument<RawBsonDocument> event;
+            while ((event = tryNext()) == null) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new NoSuchElementException();
+                }
+            }
+            return event;
+        }
+
+        @Override
+        public void close() {
+            if (scan != null) {
+                scan.close();
+            }
+            if (stream != null) {
+                stream.close();
+            }
+        }
+
+        @Override
+        public ServerCursor getServerCursor() {
+            return stream == null ? null : stream.getServerCursor();
+        }
+
+        @Override
+        public ServerAddress getServerAddress() {
+            return stream == null ? null : stream.getServerAddress();
+        }
+    }
+
+    /**
+     * The events of one collection. Closing it leaves the shared stream open for the other collections.
+     */
+    private class CollectionCursor implements MongoCursor<ChangeStreamDocument<RawBsonDocument>> {
+        private final BlockingQueue<ChangeStreamDocument<RawBsonDocument>> queue;
+
+        CollectionCursor(BlockingQueue<ChangeStreamDocument<RawBsonDocument>> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public ChangeStreamDocument<RawBsonDocument> tryNext() {
+            try {
+                return queue.poll(maxAwaitMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return true;
+        }
+
+        @Override
+        public ChangeStreamDocument<RawBsonDocument> next() {
+            ChangeStreamDocument<RawBsonDocument> event;
+            while ((event = tryNext()) == null) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new NoSuchElementException();
+                }
+            }
+            return event;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public ServerCursor getServerCursor() {
+            return null;
+        }
+
+        @Override
+        public ServerAddress getServerAddress() {
+            return null;
+        }
+    }
+}
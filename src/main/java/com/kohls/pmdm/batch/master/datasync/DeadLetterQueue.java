@@ -0,0 +1,256 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.CommonProperties;
+import com.kohls.pmdm.batch.master.common.Constants;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+import org.bson.BsonBoolean;
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonInt32;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Quarantines the change events that fail to be transformed, and the Kafka payloads that fail to be converted, in a
+ * {@code <collection>_dlq} collection together with the error, so the change stream moves on and checkpoints past
+ * them instead of reopening on the same event over and over. Events are stored as the raw BSON of the change event.
+ * <p>
+ * A background retrier hands the due dead letters back to the {@link Handler} on a bounded pool of its own, deletes
+ * the ones that succeed and backs off exponentially on the others, until {@code deadLetterMaxAttempts} marks them as
+ * failed for manual inspection.
+ */
+public class DeadLetterQueue {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeadLetterQueue.class);
+    private static final String SUFFIX = "_dlq";
+    private static final Codec<ChangeStreamDocument<RawBsonDocument>> EVENT_CODEC =
+            ChangeStreamDocument.createCodec(RawBsonDocument.class, MongoClient.getDefaultCodecRegistry());
+
+    static final String STAGE = "stage";
+    static final String STAGE_EVENT = "event";
+    static final String STAGE_KAFKA = "kafka";
+    static final String EVENT = "event";
+    static final String PAYLOAD = "payload";
+    static final String DOCUMENT_KEY = "documentKey";
+    static final String PSD = "psd";
+    private static final String ERROR = "error";
+    static final String ATTEMPTS = "attempts";
+    private static final String FAILED_AT = "failedAt";
+    static final String NEXT_ATTEMPT_AT = "nextAttemptAt";
+    static final String STATUS = "status";
+    static final String PENDING = "PENDING";
+    static final String FAILED = "FAILED";
+
+    /**
+     * Processes a dead letter again, throwing if it still fails.
+     */
+    public interface Handler {
+        void retry(String collectionName, BsonDocument deadLetter) throws Exception;
+    }
+
+    //@Autowired
+    CommonProperties commonProperties = new CommonProperties();
+
+    private final ChangeStreamMetrics metrics;
+    private final Handler handler;
+    private final Set<String> indexedCollections = ConcurrentHashMap.newKeySet();
+    private MongoDatabase mongoDatabase;
+    private ScheduledExecutorService scheduler;
+    private ExecutorService retryExecutor;
+
+    public DeadLetterQueue(ChangeStreamMetrics metrics, Handler handler) {
+        this.metrics = metrics;
+        this.handler = handler;
+    }
+
+    public void setMongoDatabase(MongoDatabase mongoDatabase) {
+        this.mongoDatabase = mongoDatabase;
+    }
+
+    /**
+     * Stores a change event that failed to be transformed. An event quarantined before, e.g. replayed after a
+     * restart, is stored once.
+     */
+    public void quarantineEvent(String collectionName, ChangeStreamDocument<RawBsonDocument> event, Exception exc) {
+        store(collectionName, newDeadLetter(event.getResumeToken(), STAGE_EVENT, exc).append(EVENT, encode(event)));
+    }
+
+    /**
+     * Stores a Kafka payload that failed to be converted or sent.
+     */
+    public void quarantinePayload(String collectionName, BsonDocument documentKey, BsonDocument payload,
+                                  boolean isPSD, Exception exc) {
+        store(collectionName, newDeadLetter(new BsonObjectId(), STAGE_KAFKA, exc)
+                .append(DOCUMENT_KEY, documentKey)
+                .append(PAYLOAD, payload)
+                .append(PSD, BsonBoolean.valueOf(isPSD)));
+    }
+
+    static BsonDocument encode(ChangeStreamDocument<RawBsonDocument> event) {
+        BsonDocument rawEvent = new BsonDocument();
+        EVENT_CODEC.encode(new BsonDocumentWriter(rawEvent), event, EncoderContext.builder().build());
+        return rawEvent;
+    }
+
+    /**
+     * Decodes the change event of a dead letter of the event stage.
+     */
+    static ChangeStreamDocument<RawBsonDocument> getEvent(BsonDocument deadLetter) {
+        return EVENT_CODEC.decode(new BsonDocumentReader(deadLetter.getDocument(EVENT)),
+                DecoderContext.builder().build());
+    }
+
+    /**
+     * Retries the due dead letters of the given collections now and then every
+     * {@code deadLetterRetryIntervalMillis}.
+     */
+    public synchronized void start(List<String> collectionNames) {
+        if (scheduler != null) {
+            return;
+        }
+        AtomicInteger count = new AtomicInteger();
+        retryExecutor = Executors.newFixedThreadPool(commonProperties.getDeadLetterRetryParallelism(), runnable -> {
+            Thread thread = new Thread(runnable, "cs-dlq-retry-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cs-dlq");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            for (String collectionName : collectionNames) {
+                try {
+                    retryDue(collectionName);
+                } catch (RuntimeException exc) {
+                    LOGGER.error("Error while retrying the dead letters of collection {}", collectionName, exc);
+                }
+            }
+        }, 0, commonProperties.getDeadLetterRetryIntervalMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            retryExecutor.shutdownNow();
+            scheduler = null;
+            retryExecutor = null;
+        }
+    }
+
+    /**
+     * Retries one batch of due dead letters of a collection and waits for it, so rounds never overlap.
+     */
+    void retryDue(String collectionName) {
+        MongoCollection<BsonDocument> deadLetters = getCollection(collectionName);
+        if (indexedCollections.add(collectionName)) {
+            deadLetters.createIndex(Indexes.ascending(STATUS, NEXT_ATTEMPT_AT));
+        }
+        List<CompletableFuture<Void>> retries = new ArrayList<>();
+        for (BsonDocument deadLetter : deadLetters.find(Filters.and(Filters.eq(STATUS, PENDING),
+                Filters.lte(NEXT_ATTEMPT_AT, new BsonDateTime(System.currentTimeMillis()))))
+                .sort(Sorts.ascending(NEXT_ATTEMPT_AT)).limit(commonProperties.getDeadLetterRetryBatchSize())) {
+            retries.add(CompletableFuture.runAsync(() -> retry(collectionName, deadLetters, deadLetter),
+                    retryExecutor));
+        }
+        CompletableFuture.allOf(retries.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    private void retry(String collectionName, MongoCollection<BsonDocument> deadLetters, BsonDocument deadLetter) {
+        try {
+            handler.retry(collectionName, deadLetter);
+            deadLetters.deleteOne(Filters.eq(Constants.ID, deadLetter.get(Constants.ID)));
+            metrics.recordDeadLetter(collectionName, "retried");
+            LOGGER.info("Retried dead letter {} of collection {}", deadLetter.get(Constants.ID), collectionName);
+        } catch (Exception exc) {
+            int attempts = deadLetter.getInt32(ATTEMPTS, new BsonInt32(0)).getValue() + 1;
+            boolean failed = attempts >= commonProperties.getDeadLetterMaxAttempts();
+            long delay = Math.min(commonProperties.getDeadLetterBackoffMaxMillis(),
+                    commonProperties.getDeadLetterRetryIntervalMillis() << Math.min(attempts, 20));
+            deadLetters.updateOne(Filters.eq(Constants.ID, deadLetter.get(Constants.ID)), Updates.combine(
+                    Updates.set(ATTEMPTS, attempts),
+                    Updates.set(ERROR, describe(exc)),
+                    Updates.set(NEXT_ATTEMPT_AT, new BsonDateTime(System.currentTimeMillis() + delay)),
+                    Updates.set(STATUS, failed ? FAILED : PENDING)));
+            if (failed) {
+                metrics.recordDeadLetter(collectionName, "failed");
+                LOGGER.error("Giving up on dead letter {} of collection {} after {} attempts",
+                        deadLetter.get(Constants.ID), collectionName, attempts, exc);
+            } else {
+                LOGGER.warn("Retry {} of dead letter {} of collection {} failed", attempts,
+                        deadLetter.get(Constants.ID), collectionName, exc);
+            }
+        }
+    }
+
+    private BsonDocument newDeadLetter(BsonValue id, String stage, Exception exc) {
+        long now = System.currentTimeMillis();
+        return new BsonDocument(Constants.ID, id)
+                .append(STAGE, new BsonString(stage))
+                .append(ERROR, describe(exc))
+                .append(ATTEMPTS, new BsonInt32(0))
+                .append(FAILED_AT, new BsonDateTime(now))
+                .append(NEXT_ATTEMPT_AT, new BsonDateTime(now + commonProperties.getDeadLetterRetryIntervalMillis()))
+                .append(STATUS, new BsonString(PENDING));
+    }
+
+    private void store(String collectionName, BsonDocument deadLetter) {
+        try {
+            getCollection(collectionName).insertOne(deadLetter);
+        } catch (MongoWriteException exc) {
+            if (exc.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                throw exc;
+            }
+            LOGGER.debug("Dead letter {} of collection {} already stored", deadLetter.get(Constants.ID),
+                    collectionName);
+            return;
+        }
+        metrics.recordDeadLetter(collectionName, "quarantined");
+        LOGGER.warn("Quarantined {} {} of collection {}: {}", deadLetter.getString(STAGE).getValue(),
+                deadLetter.get(Constants.ID), collectionName, deadLetter.getString(ERROR).getValue());
+    }
+
+    private MongoCollection<BsonDocument> getCollection(String collectionName) {
+        return mongoDatabase.getCollection(collectionName + SUFFIX, BsonDocument.class);
+    }
+
+    private static BsonString describe(Exception exc) {
+        StringBuilder description = new StringBuilder(exc.toString());
+        for (Throwable cause = exc.getCause(); cause != null && cause != cause.getCause(); cause = cause.getCause()) {
+            description.append("; caused by ").append(cause);
+        }
+        return new BsonString(description.toString());
+    }
+}
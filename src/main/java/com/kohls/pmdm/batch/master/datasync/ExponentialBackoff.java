@@ -0,0 +1,44 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter used when a change stream cursor fails. The delay doubles on every consecutive
+ * failure up to the configured maximum and a random jitter of up to half the delay is applied so that watchers
+ * failing together (e.g. on a primary step down) do not reconnect in lock step.
+ */
+public class ExponentialBackoff {
+
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private volatile int attempts;
+
+    public ExponentialBackoff(long initialDelayMillis, long maxDelayMillis) {
+        if (initialDelayMillis <= 0 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("Invalid backoff range: " + initialDelayMillis + " - " + maxDelayMillis);
+        }
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Returns the delay to wait before the next attempt and records the failure.
+     */
+    public long nextDelayMillis() {
+        long delay = initialDelayMillis << Math.min(attempts, 30);
+        if (delay <= 0 || delay > maxDelayMillis) {
+            delay = maxDelayMillis;
+        }
+        attempts++;
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void reset() {
+        attempts = 0;
+    }
+}
@@ -0,0 +1,444 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.CommonProperties;
+import com.kohls.pmdm.batch.master.common.Constants;
+import com.kohls.pmdm.batch.master.common.LongBytesMap;
+import com.kohls.pmdm.batch.master.common.LongLongMap;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonObjectId;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the current state of the {@code sku}, {@code kohlsstyle} and {@code consumerproduct} records in memory, so the
+ * flattened SKU sent for an event is built from the whole record instead of the updated fields of the event, without
+ * reading the database. The store is seeded by a parallel scan of the collections before their change streams start
+ * and then kept up to date by their events. Events replayed from the checkpoint after the scan apply again on top of
+ * it, so the store converges on the current state.
+ * <p>
+ * Records are kept as encoded BSON in primitive long keyed maps, by their numeric business key such as
+ * {@code skuNumber}, with a second map from a 64 bit hash of the {@code _id} to the key for the updates, which only
+ * carry the {@code _id}. A key belongs to the last document stored under it, the record is only dropped for its owner,
+ * and a document losing its key to another one loses its record. A SKU record is joined with its style and consumer
+ * product when it is read. Records whose key is not numeric are not kept, their events are sent as before.
+ */
+public class FlattenedSkuStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FlattenedSkuStore.class);
+    private static final String SKU = "sku";
+    private static final List<String> REFERENCED = Arrays.asList("kohlsstyle", "consumerproduct");
+    private static final BsonDocumentCodec DOCUMENT_CODEC = new BsonDocumentCodec();
+    private static final long MISSING = Long.MIN_VALUE;
+    private static final int SLICES_PER_THREAD = 4;
+
+    //@Autowired
+    CommonProperties commonProperties = new CommonProperties();
+
+    private final Map<String, Table> tables = new LinkedHashMap<>();
+
+    public FlattenedSkuStore() {
+        int expectedSkus = commonProperties.getFlattenedSkuStoreExpectedSkus();
+        tables.put(SKU, new Table(SKU, expectedSkus, REFERENCED));
+        for (String collectionName : REFERENCED) {
+            tables.put(collectionName, new Table(collectionName, Math.max(1024, expectedSkus / 8),
+                    new ArrayList<>()));
+        }
+    }
+
+    /**
+     * Returns whether the records of the collection are kept in the store.
+     */
+    public boolean isStored(String collectionName) {
+        return tables.containsKey(collectionName.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Loads the kept collections with {@code flattenedSkuStoreSeedParallelism} threads, each collection split into
+     * ranges of its {@code _id}. Returns once all of them are loaded.
+     */
+    public void seed(MongoDatabase mongoDatabase) {
+        long start = System.currentTimeMillis();
+        int parallelism = commonProperties.getFlattenedSkuStoreSeedParallelism();
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+                runnable -> new Thread(runnable, "cs-skustore-seed-" + count.incrementAndGet()));
+        try {
+            List<CompletableFuture<Void>> scans = new ArrayList<>();
+            for (Table table : tables.values()) {
+                MongoCollection<RawBsonDocument> collection = mongoDatabase.getCollection(table.collectionName,
+                        RawBsonDocument.class);
+                for (Bson slice : getSlices(collection, parallelism * SLICES_PER_THREAD)) {
+                    scans.add(CompletableFuture.runAsync(() -> scan(collection, slice, table), executor));
+                }
+            }
+            CompletableFuture.allOf(scans.toArray(new CompletableFuture<?>[0])).join();
+        } finally {
+            executor.shutdown();
+        }
+        for (Table table : tables.values()) {
+            LOGGER.info("Seeded {} {} records in the flattened SKU store, {} MB", table.size(), table.collectionName,
+                    table.getMemoryBytes() / (1024 * 1024));
+        }
+        LOGGER.info("Seeded the flattened SKU store in {} ms", System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Stores the whole document of an insert, or of an update whose document was looked up.
+     */
+    public void put(String collectionName, BsonDocument documentKey, BsonDocument document) {
+        Table table = tables.get(collectionName.toLowerCase(Locale.ROOT));
+        if (table != null && document != null) {
+            table.put(documentKey.get(Constants.ID), document);
+        }
+    }
+
+    /**
+     * Applies the updated and removed fields of an update to the stored record of its document.
+     */
+    public void update(String collectionName, BsonDocument documentKey, BsonDocument updatedFields,
+                       List<String> removedFields) {
+        Table table = tables.get(collectionName.toLowerCase(Locale.ROOT));
+        if (table != null) {
+            table.update(documentKey.get(Constants.ID), updatedFields, removedFields);
+        }
+    }
+
+    /**
+     * Drops the record of a deleted document.
+     */
+    public void remove(String collectionName, BsonDocument documentKey) {
+        Table table = tables.get(collectionName.toLowerCase(Locale.ROOT));
+        if (table != null) {
+            table.remove(documentKey.get(Constants.ID));
+        }
+    }
+
+    /**
+     * Returns the whole record of a document, a SKU joined with its style and consumer product under their collection
+     * names, or null when the document is not in the store.
+     */
+    public BsonDocument getFlattenedRecord(String collectionName, BsonDocument documentKey) {
+        Table table = tables.get(collectionName.toLowerCase(Locale.ROOT));
+        if (table == null) {
+            return null;
+        }
+        BsonDocument record = table.getById(documentKey.get(Constants.ID));
+        if (record == null) {
+            return null;
+        }
+        for (String referenced : table.references) {
+            Table referencedTable = tables.get(referenced);
+            long key = toKey(record.get(referencedTable.keyField));
+            BsonDocument referencedRecord = key == MISSING ? null : referencedTable.get(key);
+            if (referencedRecord != null) {
+                record.put(referenced, referencedRecord);
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Returns the number of records kept of a collection.
+     */
+    int size(String collectionName) {
+        Table table = tables.get(collectionName.toLowerCase(Locale.ROOT));
+        return table == null ? 0 : table.size();
+    }
+
+    public long getMemoryBytes() {
+        long bytes = 0;
+        for (Table table : tables.values()) {
+            bytes += table.getMemoryBytes();
+        }
+        return bytes;
+    }
+
+    private void scan(MongoCollection<RawBsonDocument> collection, Bson slice, Table table) {
+        FindIterable<RawBsonDocument> documents = collection.find(slice).batchSize(1000);
+        if (!table.fields.isEmpty()) {
+            documents = documents.projection(Projections.include(new ArrayList<>(table.fields)));
+        }
+        for (RawBsonDocument document : documents) {
+            table.put(document.get(Constants.ID), document);
+        }
+    }
+
+    /**
+     * Splits a collection into ranges of its {@code _id}, evenly between the lowest and the highest one when they are
+     * both numbers or both object ids, in a single range otherwise.
+     */
+    static List<Bson> getSlices(MongoCollection<RawBsonDocument> collection, int slices) {
+        RawBsonDocument first = collection.find().projection(Projections.include(Constants.ID))
+                .sort(Sorts.ascending(Constants.ID)).first();
+        RawBsonDocument last = collection.find().projection(Projections.include(Constants.ID))
+                .sort(Sorts.descending(Constants.ID)).first();
+        if (first == null || last == null) {
+            return new ArrayList<>();
+        }
+        List<BsonValue> bounds = getBounds(first.get(Constants.ID), last.get(Constants.ID), slices);
+        List<Bson> filters = new ArrayList<>();
+        if (bounds.isEmpty()) {
+            filters.add(new BsonDocument());
+            return filters;
+        }
+        // The first and last ranges are open ended, the bounds only need to be increasing.
+        filters.add(Filters.lt(Constants.ID, bounds.get(0)));
+        for (int i = 1; i < bounds.size(); i++) {
+            filters.add(Filters.and(Filters.gte(Constants.ID, bounds.get(i - 1)),
+                    Filters.lt(Constants.ID, bounds.get(i))));
+        }
+        filters.add(Filters.gte(Constants.ID, bounds.get(bounds.size() - 1)));
+        return filters;
+    }
+
+    private static List<BsonValue> getBounds(BsonValue min, BsonValue max, int slices) {
+        Set<BsonValue> bounds = new LinkedHashSet<>();
+        if (min.isObjectId() && max.isObjectId()) {
+            long from = min.asObjectId().getValue().getTimestamp();
+            long to = max.asObjectId().getValue().getTimestamp();
+            for (int i = 1; i < slices && to > from; i++) {
+                bounds.add(new BsonObjectId(new ObjectId(new Date((from + (to - from) * i / slices) * 1000L))));
+            }
+        } else if (min.isNumber() && max.isNumber()) {
+            long from = min.asNumber().longValue();
+            long to = max.asNumber().longValue();
+            for (int i = 1; i < slices && to > from; i++) {
+                bounds.add(new BsonInt64(from + (to - from) / slices * i));
+            }
+        }
+        return new ArrayList<>(bounds);
+    }
+
+    /**
+     * Returns the numeric business key held by a field, or {@link #MISSING}.
+     */
+    static long toKey(BsonValue value) {
+        if (value == null) {
+            return MISSING;
+        }
+        if (value.isInt32() || value.isInt64()) {
+            return value.asNumber().longValue();
+        }
+        if (value.isDouble() && value.asDouble().getValue() == Math.rint(value.asDouble().getValue())) {
+            return (long) value.asDouble().getValue();
+        }
+        if (value.isString()) {
+            String text = value.asString().getValue();
+            if (!text.isEmpty() && text.length() <= 18 && text.chars().allMatch(Character::isDigit)) {
+                return Long.parseLong(text);
+            }
+        }
+        return MISSING;
+    }
+
+    /**
+     * Hashes an {@code _id} to 64 bits. Object ids and numbers, the usual ids, map without collisions in practice.
+     */
+    static long hashId(BsonValue id) {
+        if (id.isObjectId()) {
+            ByteBuffer bytes = ByteBuffer.wrap(id.asObjectId().getValue().toByteArray());
+            return bytes.getLong() * 0x9e3779b97f4a7c15L + bytes.getInt();
+        }
+        if (id.isInt32() || id.isInt64()) {
+            return id.asNumber().longValue();
+        }
+        byte[] bytes = id.isString() ? id.asString().getValue().getBytes(StandardCharsets.UTF_8)
+                : encode(new BsonDocument(Constants.ID, id));
+        // FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static byte[] encode(BsonDocument document) {
+        // Scanned documents are stored as read when all their fields are kept.
+        RawBsonDocument raw = document instanceof RawBsonDocument ? (RawBsonDocument) document
+                : new RawBsonDocument(document, DOCUMENT_CODEC);
+        ByteBuffer buffer = raw.getByteBuffer().asNIO();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static BsonDocument decode(byte[] bytes) {
+        return new RawBsonDocument(bytes).decode(DOCUMENT_CODEC);
+    }
+
+    private class Table {
+        private final String collectionName;
+        private final String keyField;
+        private final List<String> references;
+        private final Set<String> fields = new LinkedHashSet<>();
+        private final LongBytesMap records;
+        private final LongLongMap ids;
+        private final LongLongMap owners;
+
+        Table(String collectionName, int expectedSize, List<String> references) {
+            this.collectionName = collectionName;
+            this.keyField = commonProperties.getFlattenedSkuStoreKeyField(collectionName);
+            this.references = references;
+            List<String> storedFields = commonProperties.getFlattenedSkuStoreFields(collectionName);
+            if (!storedFields.isEmpty()) {
+                fields.add(Constants.ID);
+                fields.add(keyField);
+                for (String referenced : references) {
+                    fields.add(commonProperties.getFlattenedSkuStoreKeyField(referenced));
+                }
+                fields.addAll(storedFields);
+            }
+            this.records = new LongBytesMap(expectedSize);
+            this.ids = new LongLongMap(expectedSize);
+            this.owners = new LongLongMap(expectedSize);
+        }
+
+        void put(BsonValue id, BsonDocument document) {
+            if (id == null) {
+                return;
+            }
+            long key = toKey(document.get(keyField));
+            byte[] bytes = key == MISSING ? null : encode(project(document));
+            long idHash = hashId(id);
+            synchronized (this) {
+                move(idHash, ids.get(idHash, MISSING), key);
+                if (bytes != null) {
+                    records.put(key, bytes);
+                }
+            }
+        }
+
+        void update(BsonValue id, BsonDocument updatedFields, List<String> removedFields) {
+            if (id == null) {
+                return;
+            }
+            long idHash = hashId(id);
+            // Lanes keep the events of a document in order, the lock only guards the maps.
+            long key;
+            byte[] bytes;
+            synchronized (this) {
+                key = ids.get(idHash, MISSING);
+                bytes = key == MISSING ? null : records.get(key);
+            }
+            if (bytes == null) {
+                // Not seeded yet, e.g. inserted while the store was not kept; the update alone is not a record.
+                return;
+            }
+            BsonDocument record = VersionHistory.applyUpdate(decode(bytes), project(updatedFields), removedFields);
+            long newKey = toKey(record.get(keyField));
+            bytes = newKey == MISSING ? null : encode(record);
+            synchronized (this) {
+                move(idHash, key, newKey);
+                if (bytes != null) {
+                    records.put(newKey, bytes);
+                }
+            }
+        }
+
+        void remove(BsonValue id) {
+            if (id == null) {
+                return;
+            }
+            long idHash = hashId(id);
+            synchronized (this) {
+                move(idHash, ids.get(idHash, MISSING), MISSING);
+            }
+        }
+
+        /**
+         * Points the id of a document at its new key and makes it the owner of the key. The record under the old key
+         * is dropped when the key changed and the document still owned it, and the previous owner of the new key
+         * loses its record. A document that lost its key keeps no record.
+         */
+        private void move(long idHash, long oldKey, long newKey) {
+            if (oldKey != MISSING && oldKey != newKey && owners.get(oldKey, MISSING) == idHash) {
+                records.remove(oldKey);
+                owners.remove(oldKey, MISSING);
+            }
+            if (newKey == MISSING) {
+                ids.remove(idHash, MISSING);
+                return;
+            }
+            long previousOwner = owners.get(newKey, MISSING);
+            if (previousOwner != MISSING && previousOwner != idHash) {
+                ids.remove(previousOwner, MISSING);
+            }
+            ids.put(idHash, newKey);
+            owners.put(newKey, idHash);
+        }
+
+        BsonDocument getById(BsonValue id) {
+            if (id == null) {
+                return null;
+            }
+            long idHash = hashId(id);
+            byte[] bytes;
+            synchronized (this) {
+                long key = ids.get(idHash, MISSING);
+                bytes = key == MISSING ? null : records.get(key);
+            }
+            return bytes == null ? null : decode(bytes);
+        }
+
+        BsonDocument get(long key) {
+            byte[] bytes;
+            synchronized (this) {
+                bytes = records.get(key);
+            }
+            return bytes == null ? null : decode(bytes);
+        }
+
+        synchronized int size() {
+            return records.size();
+        }
+
+        synchronized long getMemoryBytes() {
+            return records.getMemoryBytes() + ids.getMemoryBytes() + owners.getMemoryBytes();
+        }
+
+        private BsonDocument project(BsonDocument document) {
+            if (fields.isEmpty() || document == null) {
+                return document;
+            }
+            BsonDocument projected = new BsonDocument();
+            for (Map.Entry<String, BsonValue> field : document.entrySet()) {
+                int dot = field.getKey().indexOf('.');
+                if (fields.contains(dot < 0 ? field.getKey() : field.getKey().substring(0, dot))) {
+                    projected.put(field.getKey(), field.getValue());
+                }
+            }
+            return projected;
+        }
+    }
+}
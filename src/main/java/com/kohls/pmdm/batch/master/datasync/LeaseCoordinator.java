@@ -0,0 +1,283 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.CommonProperties;
+import com.kohls.pmdm.batch.master.common.Constants;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOptions;
+
+import org.bson.Document;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.inc;
+import static com.mongodb.client.model.Updates.set;
+import static com.mongodb.client.model.Updates.unset;
+
+/**
+ * Spreads the watched collections over the running instances with leases stored in the {@value Constants#LEASE}
+ * collection, next to the {@value Constants#SEQUENCE} checkpoints.
+ * <p>
+ * Every heartbeat an instance renews its own presence and the leases it holds, gives back leases above its fair share
+ * of the collections and claims free or expired leases up to that share. A lease that is taken over gets a higher
+ * fencing token; checkpoints are only stored with the current token of their collection, so an instance that lost
+ * its lease cannot move the resume token of the new owner.
+ * <p>
+ * Each held lease has a local deadline, a safety margin before the expiry written with its last renewal. The deadlines
+ * are checked on a tick shorter than the heartbeat, so an instance that cannot renew a lease stops watching its
+ * collection before another instance can take it over, and the writer refuses batches once the deadline has passed.
+ */
+@Component
+public class LeaseCoordinator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LeaseCoordinator.class);
+    private static final String KIND = "kind";
+    private static final String KIND_COLLECTION = "collection";
+    private static final String KIND_INSTANCE = "instance";
+    private static final String INSTANCE_PREFIX = "instance:";
+    private static final String OWNER = "owner";
+    private static final String EXPIRES_AT = "expiresAt";
+
+    //@Autowired
+    CommonProperties commonProperties = new CommonProperties();
+
+    private final ChangeStreamScheduler changeStreamScheduler;
+    private final ChangeStreamService changeStreamService;
+    private final String instanceId = ManagementFactory.getRuntimeMXBean().getName() + "-"
+            + UUID.randomUUID().toString().substring(0, 8);
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+    private final List<String> collectionNames = new ArrayList<>();
+    private MongoDatabase mongoDatabase;
+    private ScheduledExecutorService executor;
+
+    public LeaseCoordinator(ChangeStreamScheduler changeStreamScheduler, ChangeStreamService changeStreamService) {
+        this.changeStreamScheduler = changeStreamScheduler;
+        this.changeStreamService = changeStreamService;
+    }
+
+    public void setMongoDatabase(MongoDatabase mongoDatabase) {
+        this.mongoDatabase = mongoDatabase;
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * Returns whether this instance holds the lease of a collection and its renewal deadline has not passed.
+     */
+    public boolean holdsLease(String collectionName) {
+        Lease lease = leases.get(collectionName);
+        return lease != null && lease.deadline > System.currentTimeMillis();
+    }
+
+    /**
+     * Starts competing for the leases of the given collections.
+     */
+    public synchronized void start(List<String> collectionNames) {
+        if (executor != null) {
+            return;
+        }
+        this.collectionNames.addAll(collectionNames);
+        AtomicInteger count = new AtomicInteger();
+        // A heartbeat stuck on an unreachable server must not hold up the deadline checks.
+        executor = Executors.newScheduledThreadPool(2,
+                runnable -> new Thread(runnable, "cs-lease-" + count.incrementAndGet()));
+        executor.scheduleWithFixedDelay(this::heartbeat, 0, commonProperties.getLeaseHeartbeatMillis(),
+                TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::stopExpiredLeases, commonProperties.getLeaseCheckMillis(),
+                commonProperties.getLeaseCheckMillis(), TimeUnit.MILLISECONDS);
+        LOGGER.info("Instance {} coordinating collections {}", instanceId, collectionNames);
+    }
+
+    /**
+     * Stops the watchers of this instance and hands its leases over to the other instances right away.
+     */
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(commonProperties.getLeaseHeartbeatMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+        for (String collectionName : new ArrayList<>(leases.keySet())) {
+            release(collectionName, new Date());
+        }
+        try {
+            getLeaseCollection().deleteOne(eq(Constants.ID, INSTANCE_PREFIX + instanceId));
+        } catch (MongoException exc) {
+            LOGGER.warn("Could not remove instance {}", instanceId, exc);
+        }
+    }
+
+    private void heartbeat() {
+        try {
+            stopExpiredLeases();
+            rebalance();
+        } catch (Exception exc) {
+            LOGGER.error("Lease heartbeat of instance {} failed", instanceId, exc);
+            stopExpiredLeases();
+        }
+    }
+
+    private void rebalance() {
+        // Taken before the requests, the lease may be renewed on the server only just before the reply arrives.
+        Date now = new Date();
+        Date expiresAt = new Date(now.getTime() + commonProperties.getLeaseTtlMillis());
+        long deadline = expiresAt.getTime() - commonProperties.getLeaseSafetyMarginMillis();
+        MongoCollection<Document> leaseCollection = getLeaseCollection();
+        leaseCollection.updateOne(eq(Constants.ID, INSTANCE_PREFIX + instanceId),
+                combine(set(KIND, KIND_INSTANCE), set(EXPIRES_AT, expiresAt)), new UpdateOptions().upsert(true));
+        long liveInstances = Math.max(1, leaseCollection.countDocuments(and(eq(KIND, KIND_INSTANCE),
+                gt(EXPIRES_AT, now))));
+        int fairShare = (int) ((collectionNames.size() + liveInstances - 1) / liveInstances);
+
+        for (Iterator<Map.Entry<String, Lease>> it = leases.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Lease> entry = it.next();
+            if (renew(entry.getKey(), entry.getValue(), expiresAt)) {
+                if (leases.get(entry.getKey()) == entry.getValue()) {
+                    // Renewed in time, unless the deadline check gave the lease up meanwhile.
+                    entry.getValue().deadline = deadline;
+                    changeStreamService.setLeaseDeadline(entry.getKey(), deadline);
+                }
+            } else {
+                LOGGER.warn("Instance {} lost the lease of collection {}", instanceId, entry.getKey());
+                it.remove();
+                stopWatching(entry.getKey());
+            }
+        }
+        List<String> owned = new ArrayList<>(leases.keySet());
+        while (owned.size() > fairShare) {
+            String collectionName = owned.remove(owned.size() - 1);
+            LOGGER.info("Instance {} hands over collection {}, fair share is {}", instanceId, collectionName,
+                    fairShare);
+            release(collectionName, now);
+        }
+        List<String> candidates = new ArrayList<>(collectionNames);
+        // Instances starting together should not all race for the same leases.
+        Collections.shuffle(candidates);
+        for (String collectionName : candidates) {
+            if (leases.size() >= fairShare) {
+                break;
+            }
+            if (!leases.containsKey(collectionName)) {
+                Long leaseToken = acquire(collectionName, now, expiresAt);
+                if (leaseToken != null) {
+                    LOGGER.info("Instance {} acquired collection {} with lease token {}", instanceId,
+                            collectionName, leaseToken);
+                    leases.put(collectionName, new Lease(leaseToken, deadline));
+                    changeStreamService.setLeaseToken(collectionName, leaseToken);
+                    changeStreamService.setLeaseDeadline(collectionName, deadline);
+                    changeStreamScheduler.start(collectionName);
+                }
+            }
+        }
+    }
+
+    private Long acquire(String collectionName, Date now, Date expiresAt) {
+        try {
+            Document lease = getLeaseCollection().findOneAndUpdate(
+                    // Includes a lease of this instance whose watcher was stopped on a late renewal.
+                    and(eq(Constants.ID, collectionName), or(eq(OWNER, null), eq(OWNER, instanceId),
+                            lt(EXPIRES_AT, now))),
+                    combine(set(KIND, KIND_COLLECTION), set(OWNER, instanceId), set(EXPIRES_AT, expiresAt),
+                            inc(Constants.LEASE_TOKEN, 1L)),
+                    new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+            return lease == null ? null : ((Number) lease.get(Constants.LEASE_TOKEN)).longValue();
+        } catch (MongoException exc) {
+            if (ErrorCategory.fromErrorCode(exc.getCode()) == ErrorCategory.DUPLICATE_KEY) {
+                // Held by another instance, the upsert collided with its lease document.
+                return null;
+            }
+            throw exc;
+        }
+    }
+
+    private boolean renew(String collectionName, Lease lease, Date expiresAt) {
+        return getLeaseCollection().updateOne(
+                and(eq(Constants.ID, collectionName), eq(OWNER, instanceId), eq(Constants.LEASE_TOKEN, lease.token)),
+                set(EXPIRES_AT, expiresAt)).getMatchedCount() == 1;
+    }
+
+    private void release(String collectionName, Date now) {
+        Lease lease = leases.remove(collectionName);
+        stopWatching(collectionName);
+        if (lease != null) {
+            try {
+                getLeaseCollection().updateOne(and(eq(Constants.ID, collectionName), eq(OWNER, instanceId),
+                        eq(Constants.LEASE_TOKEN, lease.token)), combine(unset(OWNER), set(EXPIRES_AT, now)));
+            } catch (MongoException exc) {
+                LOGGER.warn("Could not release the lease of collection {}, it expires on its own", collectionName,
+                        exc);
+            }
+        }
+    }
+
+    /**
+     * Stops watching the collections whose leases were not renewed by their deadline, before another instance may
+     * take them over.
+     */
+    private void stopExpiredLeases() {
+        long now = System.currentTimeMillis();
+        leases.entrySet().removeIf(entry -> {
+            if (entry.getValue().deadline <= now) {
+                LOGGER.warn("Lease of collection {} was not renewed in time", entry.getKey());
+                stopWatching(entry.getKey());
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private void stopWatching(String collectionName) {
+        changeStreamScheduler.stop(collectionName);
+        changeStreamService.setLeaseToken(collectionName, null);
+    }
+
+    private MongoCollection<Document> getLeaseCollection() {
+        return mongoDatabase.getCollection(Constants.LEASE);
+    }
+
+    private static class Lease {
+        private final long token;
+        private volatile long deadline;
+
+        Lease(long token, long deadline) {
+            this.token = token;
+            this.deadline = deadline;
+        }
+    }
+}
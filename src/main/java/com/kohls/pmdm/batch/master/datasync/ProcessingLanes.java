@@ -0,0 +1,118 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import org.bson.BsonDocument;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Processes the change events of one collection on a fixed number of lanes. Events are assigned to a lane by the
+ * hash of their document key, so changes of different documents are transformed concurrently on the shared
+ * processing pool while changes of the same document are handled one after the other in read order.
+ * <p>
+ * The number of events waiting in or running on the lanes is bounded; the watcher stops reading when it is reached.
+ */
+public class ProcessingLanes {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProcessingLanes.class);
+
+    private final String collectionName;
+    private final Lane[] lanes;
+    private final int maxInFlight;
+    private int inFlight;
+
+    ProcessingLanes(String collectionName, ExecutorService executor, int laneCount, int maxInFlight) {
+        this.collectionName = collectionName;
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(executor);
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Queues the handling of an event on the lane of its document key.
+     */
+    public void dispatch(BsonDocument documentKey, Runnable task) {
+        synchronized (this) {
+            inFlight++;
+        }
+        int hash = documentKey.hashCode();
+        lanes[Math.floorMod(hash ^ (hash >>> 16), lanes.length)].execute(task);
+    }
+
+    public synchronized boolean isSaturated() {
+        return inFlight >= maxInFlight;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Drops the queued events and waits until the running ones are finished.
+     */
+    public synchronized void reset() throws InterruptedException {
+        for (Lane lane : lanes) {
+            inFlight -= lane.clear();
+        }
+        while (inFlight > 0) {
+            wait();
+        }
+    }
+
+    private synchronized void completed() {
+        inFlight--;
+        if (inFlight == 0) {
+            notifyAll();
+        }
+    }
+
+    private class Lane {
+        private final ExecutorService executor;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        Lane(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (draining.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+
+        int clear() {
+            int cleared = 0;
+            while (tasks.poll() != null) {
+                cleared++;
+            }
+            return cleared;
+        }
+
+        private void drain() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException exc) {
+                    LOGGER.error("Unexpected error while processing an event of collection {}", collectionName, exc);
+                } finally {
+                    completed();
+                }
+            }
+            draining.set(false);
+            // A task may have been queued after the last poll but before draining was reset.
+            if (!tasks.isEmpty() && draining.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.json.JsonReader;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.NoSuchElementException;
+
+/**
+ * Replays change events recorded to {@code <directory>/<collection>.json}, one change event per line in MongoDB
+ * extended JSON, e.g. as printed by {@code db.<collection>.watch()} in the mongo shell. The cursor reports no further
+ * events once the file is exhausted, like an idle change stream.
+ */
+public class RecordedChangeEventSource implements ChangeEventSource {
+
+    private static final Codec<ChangeStreamDocument<RawBsonDocument>> CHANGE_EVENT_CODEC = ChangeStreamDocument
+            .createCodec(RawBsonDocument.class, MongoClient.getDefaultCodecRegistry());
+
+    private final Path directory;
+
+    public RecordedChangeEventSource(Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public MongoCursor<ChangeStreamDocument<RawBsonDocument>> open(String collectionName, ClientSession session) {
+        try {
+            return new RecordedCursor(Files.newBufferedReader(directory.resolve(collectionName + ".json"),
+                    StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open the recorded change events of " + collectionName, e);
+        }
+    }
+
+    /**
+     * Decodes a change event from its extended JSON form.
+     */
+    public static ChangeStreamDocument<RawBsonDocument> decode(String json) {
+        return CHANGE_EVENT_CODEC.decode(new JsonReader(json), DecoderContext.builder().build());
+    }
+
+    private static class RecordedCursor implements MongoCursor<ChangeStreamDocument<RawBsonDocument>> {
+        private final BufferedReader reader;
+        private ChangeStreamDocument<RawBsonDocument> next;
+
+        RecordedCursor(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public ChangeStreamDocument<RawBsonDocument> tryNext() {
+            if (next == null) {
+                next = readNext();
+            }
+            ChangeStreamDocument<RawBsonDocument> event = next;
+            next = null;
+            return event;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                next = readNext();
+            }
+            return next != null;
+        }
+
+        @Override
+        public ChangeStreamDocument<RawBsonDocument> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return tryNext();
+        }
+
+        @Override
+        public void close() {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public ServerCursor getServerCursor() {
+            return null;
+        }
+
+        @Override
+        public ServerAddress getServerAddress() {
+            return null;
+        }
+
+        private ChangeStreamDocument<RawBsonDocument> readNext() {
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.trim().isEmpty()) {
+                        return decode(line);
+                    }
+                }
+                return null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
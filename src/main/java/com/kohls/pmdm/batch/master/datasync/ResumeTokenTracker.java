@@ -0,0 +1,180 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the change events of one collection that have been read but not fully handled yet. Every event gets a
+ * {@link Ticket} with one pending part for its version write; asynchronous work such as a Kafka send adds a part with
+ * {@link Ticket#retain()}. The resume token may only move to the last event of the longest prefix of completed
+ * tickets, so no event is skipped on restart while its write or send is still outstanding.
+ */
+public class ResumeTokenTracker {
+
+    private final ArrayDeque<Ticket> tickets = new ArrayDeque<>();
+    private BsonDocument completedToken;
+    private BsonTimestamp completedClusterTime;
+    private BsonDocument claimedToken;
+    private BsonTimestamp claimedClusterTime;
+    private int generation;
+    private volatile RuntimeException failure;
+
+    /**
+     * Registers a change event in read order.
+     */
+    public Ticket register(BsonDocument resumeToken) {
+        return register(resumeToken, null);
+    }
+
+    /**
+     * Registers a change event in read order together with its cluster time.
+     */
+    public synchronized Ticket register(BsonDocument resumeToken, BsonTimestamp clusterTime) {
+        Ticket ticket = new Ticket(resumeToken, clusterTime, generation);
+        tickets.addLast(ticket);
+        return ticket;
+    }
+
+    /**
+     * Returns the resume token of the last event of the completed prefix, or null if no event completed yet, and
+     * remembers it as claimed for checkpointing.
+     */
+    public synchronized BsonDocument claimCompletedResumeToken() {
+        advance();
+        claimedToken = completedToken;
+        claimedClusterTime = completedClusterTime;
+        return completedToken;
+    }
+
+    /**
+     * Returns the cluster time of the event of the last claimed resume token, null if it is not known.
+     */
+    public synchronized BsonTimestamp getClaimedClusterTime() {
+        return claimedClusterTime;
+    }
+
+    /**
+     * Returns whether events completed since the last claim, e.g. because sends were acknowledged after their
+     * batch was written.
+     */
+    public synchronized boolean hasUnclaimedProgress() {
+        advance();
+        return completedToken != claimedToken;
+    }
+
+    public synchronized int getPendingCount() {
+        return tickets.size();
+    }
+
+    /**
+     * Throws the failure reported by a ticket, if any.
+     */
+    public void checkFailure() {
+        RuntimeException exc = failure;
+        if (exc != null) {
+            throw new IllegalStateException("Change event processing failed", exc);
+        }
+    }
+
+    /**
+     * Forgets all pending events. Called when the change stream is reopened from the stored token; tickets handed
+     * out before are ignored from then on.
+     */
+    public synchronized void reset() {
+        tickets.clear();
+        completedToken = null;
+        completedClusterTime = null;
+        claimedToken = null;
+        claimedClusterTime = null;
+        failure = null;
+        generation++;
+    }
+
+    private void advance() {
+        while (!tickets.isEmpty() && tickets.peekFirst().isComplete()) {
+            Ticket ticket = tickets.pollFirst();
+            completedToken = ticket.resumeToken;
+            completedClusterTime = ticket.clusterTime;
+        }
+    }
+
+    private synchronized void fail(Ticket ticket, RuntimeException exc) {
+        if (ticket.generation == generation && failure == null) {
+            failure = exc;
+        }
+    }
+
+    public class Ticket {
+        private final BsonDocument resumeToken;
+        private final BsonTimestamp clusterTime;
+        private final int generation;
+        private final AtomicInteger pendingParts = new AtomicInteger(1);
+        private volatile boolean failed;
+        // Only created for a ticket someone waits on, the tickets of the change stream are polled.
+        private volatile CountDownLatch completion;
+
+        private Ticket(BsonDocument resumeToken, BsonTimestamp clusterTime, int generation) {
+            this.resumeToken = resumeToken;
+            this.clusterTime = clusterTime;
+            this.generation = generation;
+        }
+
+        public BsonDocument getResumeToken() {
+            return resumeToken;
+        }
+
+        /**
+         * Adds a pending part that has to be released before the event counts as complete.
+         */
+        public Ticket retain() {
+            pendingParts.incrementAndGet();
+            return this;
+        }
+
+        public void release() {
+            if (pendingParts.decrementAndGet() <= 0) {
+                signalCompletion();
+            }
+        }
+
+        /**
+         * Reports a part that cannot complete. The watcher reopens the change stream from the stored token.
+         */
+        public void fail(RuntimeException exc) {
+            ResumeTokenTracker.this.fail(this, exc);
+            failed = true;
+            signalCompletion();
+        }
+
+        boolean isComplete() {
+            return pendingParts.get() <= 0;
+        }
+
+        /**
+         * Waits until all parts are released or one failed. Returns false when the timeout passed first.
+         */
+        boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+            CountDownLatch latch;
+            synchronized (this) {
+                if (completion == null) {
+                    completion = new CountDownLatch(1);
+                }
+                latch = completion;
+            }
+            // Parts released before the latch existed did not signal it.
+            return isComplete() || failed || latch.await(timeout, unit);
+        }
+
+        private void signalCompletion() {
+            CountDownLatch latch = completion;
+            if (latch != null) {
+                latch.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges the Kafka payloads of successive updates of a document into one net change, so a burst of updates of the same
+ * document is converted and sent once per window. A payload is sent once it has waited for the window or merged the
+ * maximum number of updates, whichever comes first.
+ * <p>
+ * Payloads are merged per collection and document key. Later updates overwrite the fields of earlier ones, a field
+ * also replaces the nested fields set before under it, a nested field of a field set before is set inside of it, and
+ * a removed field is sent as null, or removed from inside the field set before it lies in. The tickets of all merged
+ * updates stay pending until the merged payload is acknowledged, so the resume token never moves past an update that
+ * was not sent.
+ * <p>
+ * The sends of a document are serial: an entry being sent stays in place until the sender returns, and adding to or
+ * flushing the same document waits for it, so a newer payload never overtakes an older one.
+ */
+public class UpdateConflator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UpdateConflator.class);
+
+    /**
+     * Converts and sends a merged payload, retaining the tickets until it is acknowledged.
+     */
+    public interface Sender {
+        void send(String collectionName, BsonDocument documentKey, Document payload,
+                  List<ResumeTokenTracker.Ticket> tickets);
+    }
+
+    private final long windowNanos;
+    private final int maxUpdates;
+    private final Sender sender;
+    private final Map<Map.Entry<String, BsonDocument>, Pending> pending = new LinkedHashMap<>();
+    private ScheduledExecutorService executor;
+
+    public UpdateConflator(long windowMillis, int maxUpdates, Sender sender) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxUpdates = maxUpdates;
+        this.sender = sender;
+    }
+
+    /**
+     * Merges the payload of an update into the pending payload of its document.
+     */
+    public void add(String collectionName, BsonDocument documentKey, Document payload, List<String> removedFields,
+                    ResumeTokenTracker.Ticket ticket) {
+        // Held until the merged payload is handed to the sender.
+        ticket.retain();
+        Pending full = null;
+        synchronized (this) {
+            startFlushing();
+            Map.Entry<String, BsonDocument> key = key(collectionName, documentKey);
+            Pending entry = awaitSent(key);
+            if (entry == null) {
+                entry = new Pending(collectionName, documentKey);
+                pending.put(key, entry);
+            }
+            entry.merge(payload, removedFields, ticket);
+            if (entry.tickets.size() >= maxUpdates) {
+                entry.sending = true;
+                full = entry;
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+    }
+
+    /**
+     * Sends the pending payload of a document right away, e.g. before an insert of the same document is sent, and
+     * returns once it and any send of the document in progress are handed to the sender.
+     */
+    public void flush(String collectionName, BsonDocument documentKey) {
+        Pending entry;
+        synchronized (this) {
+            entry = awaitSent(key(collectionName, documentKey));
+            if (entry == null) {
+                return;
+            }
+            entry.sending = true;
+        }
+        send(entry);
+    }
+
+    /**
+     * Sends the payloads that have waited for the window.
+     */
+    void flushDue() {
+        List<Pending> due = new ArrayList<>();
+        long now = System.nanoTime();
+        synchronized (this) {
+            // Entries are kept in the order of their first update, so the due ones come first.
+            for (Pending entry : pending.values()) {
+                if (now - entry.firstUpdateNanos < windowNanos) {
+                    break;
+                }
+                if (!entry.sending) {
+                    entry.sending = true;
+                    due.add(entry);
+                }
+            }
+        }
+        due.forEach(this::send);
+    }
+
+    /**
+     * Drops the pending payloads of a collection whose change stream is reopened. Their tickets belong to the closed
+     * stream and are never released, the events are read and merged again from the stored resume token.
+     */
+    public synchronized void discard(String collectionName) {
+        pending.values().removeIf(entry -> !entry.sending && entry.collectionName.equals(collectionName));
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Stops flushing and drops the pending payloads, which are read again from the stored resume tokens on restart.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        pending.values().removeIf(entry -> !entry.sending);
+    }
+
+    /**
+     * Waits until the entry of the key, if any, is not being sent anymore and returns the entry still pending.
+     */
+    private Pending awaitSent(Map.Entry<String, BsonDocument> key) {
+        Pending entry;
+        while ((entry = pending.get(key)) != null && entry.sending) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the send of " + key, e);
+            }
+        }
+        return entry;
+    }
+
+    private void startFlushing() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "cs-conflation");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long periodNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(10), windowNanos / 4);
+            executor.scheduleWithFixedDelay(() -> {
+                try {
+                    flushDue();
+                } catch (RuntimeException exc) {
+                    LOGGER.error("Error while sending conflated updates", exc);
+                }
+            }, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static Map.Entry<String, BsonDocument> key(String collectionName, BsonDocument documentKey) {
+        return new AbstractMap.SimpleImmutableEntry<>(collectionName, documentKey);
+    }
+
+    private void send(Pending entry) {
+        try {
+            sender.send(entry.collectionName, entry.documentKey, entry.payload, entry.tickets);
+        } finally {
+            entry.tickets.forEach(ResumeTokenTracker.Ticket::release);
+            synchronized (this) {
+                pending.remove(key(entry.collectionName, entry.documentKey), entry);
+                notifyAll();
+            }
+        }
+    }
+
+    private static class Pending {
+        private final String collectionName;
+        private final BsonDocument documentKey;
+        private final Document payload = new Document();
+        private final List<ResumeTokenTracker.Ticket> tickets = new ArrayList<>();
+        private final long firstUpdateNanos = System.nanoTime();
+        private boolean sending;
+
+        Pending(String collectionName, BsonDocument documentKey) {
+            this.collectionName = collectionName;
+            this.documentKey = documentKey;
+        }
+
+        void merge(Document update, List<String> removedFields, ResumeTokenTracker.Ticket ticket) {
+            for (Map.Entry<String, Object> field : update.entrySet()) {
+                removeNested(field.getKey());
+                String parent = getParent(field.getKey());
+                if (parent == null) {
+                    payload.put(field.getKey(), field.getValue());
+                } else {
+                    setInside(parent, field.getKey(), field.getValue());
+                }
+            }
+            if (removedFields != null) {
+                for (String removedField : removedFields) {
+                    removeNested(removedField);
+                    String parent = getParent(removedField);
+                    if (parent == null) {
+                        // Sent as null, so consumers drop the value they hold.
+                        payload.put(removedField, null);
+                    } else {
+                        removeInside(parent, removedField);
+                    }
+                }
+            }
+            tickets.add(ticket);
+        }
+
+        private void removeNested(String field) {
+            String prefix = field + ".";
+            payload.keySet().removeIf(key -> key.startsWith(prefix));
+        }
+
+        /**
+         * Returns the field of the payload the given dotted field lies under, null if there is none.
+         */
+        private String getParent(String field) {
+            for (int i = field.indexOf('.'); i > 0; i = field.indexOf('.', i + 1)) {
+                String prefix = field.substring(0, i);
+                if (payload.containsKey(prefix)) {
+                    return prefix;
+                }
+            }
+            return null;
+        }
+
+        private void setInside(String parent, String field, Object value) {
+            String[] parts = field.substring(parent.length() + 1).split("\\.");
+            Object container = payload.get(parent);
+            if (!isContainer(container)) {
+                container = new Document();
+                payload.put(parent, container);
+            }
+            for (int i = 0; i < parts.length - 1; i++) {
+                Object child = getChild(container, parts[i]);
+                if (!isContainer(child)) {
+                    child = new Document();
+                    setChild(container, parts[i], child);
+                }
+                container = child;
+            }
+            setChild(container, parts[parts.length - 1], value);
+        }
+
+        private void removeInside(String parent, String field) {
+            String[] parts = field.substring(parent.length() + 1).split("\\.");
+            Object container = payload.get(parent);
+            for (int i = 0; i < parts.length - 1 && container != null; i++) {
+                container = getChild(container, parts[i]);
+            }
+            if (container instanceof Document) {
+                ((Document) container).remove(parts[parts.length - 1]);
+            } else if (container instanceof List && isIndex(parts[parts.length - 1])) {
+                // $unset of an array element leaves a null in its place.
+                setChild(container, parts[parts.length - 1], null);
+            }
+        }
+
+        private static boolean isContainer(Object value) {
+            return value instanceof Document || value instanceof List;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Object getChild(Object container, String name) {
+            if (container instanceof Document) {
+                return ((Document) container).get(name);
+            }
+            if (container instanceof List && isIndex(name)) {
+                List<Object> list = (List<Object>) container;
+                int index = Integer.parseInt(name);
+                return index < list.size() ? list.get(index) : null;
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static void setChild(Object container, String name, Object value) {
+            if (container instanceof Document) {
+                ((Document) container).put(name, value);
+            } else if (container instanceof List && isIndex(name)) {
+                List<Object> list = (List<Object>) container;
+                int index = Integer.parseInt(name);
+                while (list.size() <= index) {
+                    list.add(null);
+                }
+                list.set(index, value);
+            }
+        }
+
+        private static boolean isIndex(String name) {
+            return !name.isEmpty() && name.chars().allMatch(Character::isDigit);
+        }
+    }
+}
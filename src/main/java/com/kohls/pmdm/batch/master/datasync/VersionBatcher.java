@@ -0,0 +1,112 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.VersionCodec;
+import com.kohls.pmdm.domain.Version;
+
+import org.bson.RawBsonDocument;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accumulates the version documents of one collection until the batch holds the maximum number of documents, the
+ * maximum number of bytes, or its oldest entry has waited for the maximum delay, whichever comes first. Versions are
+ * encoded when added, so the batch size is exact and the write only copies bytes. Processing lanes add to the batch
+ * concurrently.
+ */
+public class VersionBatcher {
+
+    private final VersionCodec versionCodec = new VersionCodec();
+    private final int maxDocuments;
+    private final long maxBytes;
+    private final long maxDelayNanos;
+
+    private List<RawBsonDocument> documents = new ArrayList<>();
+    private long bytes;
+    private long firstPositionNanos;
+    private List<ResumeTokenTracker.Ticket> tickets = new ArrayList<>();
+
+    public VersionBatcher(int maxDocuments, long maxBytes, long maxDelayMillis) {
+        this.maxDocuments = maxDocuments;
+        this.maxBytes = maxBytes;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+    }
+
+    /**
+     * Adds the version of a change event and returns whether the batch is full.
+     */
+    public synchronized boolean add(Version version, ResumeTokenTracker.Ticket ticket) {
+        RawBsonDocument document = new RawBsonDocument(version, versionCodec);
+        markPosition(ticket);
+        documents.add(document);
+        bytes += document.getByteBuffer().remaining();
+        return documents.size() >= maxDocuments || bytes >= maxBytes;
+    }
+
+    /**
+     * Records a change event that did not produce a version document, so that its ticket is released with the next
+     * flush.
+     */
+    public synchronized void markPosition(ResumeTokenTracker.Ticket ticket) {
+        if (tickets.isEmpty()) {
+            firstPositionNanos = System.nanoTime();
+        }
+        tickets.add(ticket);
+    }
+
+    /**
+     * Returns whether the oldest pending position has waited for the maximum delay.
+     */
+    public synchronized boolean isDue() {
+        return !tickets.isEmpty() && System.nanoTime() - firstPositionNanos >= maxDelayNanos;
+    }
+
+    public synchronized boolean isEmpty() {
+        return tickets.isEmpty();
+    }
+
+    public synchronized int size() {
+        return documents.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Hands out the pending batch and starts a new one.
+     */
+    public synchronized Batch drain() {
+        Batch batch = new Batch(documents, tickets);
+        clear();
+        return batch;
+    }
+
+    public synchronized void clear() {
+        documents = new ArrayList<>();
+        bytes = 0;
+        tickets = new ArrayList<>();
+    }
+
+    public static class Batch {
+        private final List<RawBsonDocument> documents;
+        private final List<ResumeTokenTracker.Ticket> tickets;
+
+        Batch(List<RawBsonDocument> documents, List<ResumeTokenTracker.Ticket> tickets) {
+            this.documents = documents;
+            this.tickets = tickets;
+        }
+
+        public List<RawBsonDocument> getDocuments() {
+            return documents;
+        }
+
+        /**
+         * Tickets of the events covered by the batch, in read order.
+         */
+        public List<ResumeTokenTracker.Ticket> getTickets() {
+            return tickets;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.CommonProperties;
+import com.kohls.pmdm.batch.master.common.VersionCodec;
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Indexes;
+
+import org.bson.BsonTimestamp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Names and creates the version collections of a watched collection. With bucketing enabled the versions of each
+ * month, by the cluster time of their event, go to their own collection such as {@code sku_coll_2026_10}, so the
+ * collection and indexes written to stay small however long the history grows. Otherwise all versions go to the
+ * {@code <collection>_coll} collection, which is also still read as the oldest bucket once bucketing is turned on.
+ */
+public class VersionBuckets {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VersionBuckets.class);
+    private static final int NAMESPACE_EXISTS = 48;
+    private static final Pattern BUCKET_MONTH = Pattern.compile("_(\\d{4})_(\\d{2})$");
+
+    //@Autowired
+    CommonProperties commonProperties = new CommonProperties();
+
+    private final MongoDatabase mongoDatabase;
+    private final Set<String> createdBuckets = ConcurrentHashMap.newKeySet();
+
+    public VersionBuckets(MongoDatabase mongoDatabase) {
+        this.mongoDatabase = mongoDatabase;
+    }
+
+    /**
+     * Returns the version collection the version of an event at the given cluster time is written to, the current
+     * month when the cluster time is not known.
+     */
+    public String getBucket(String collectionName, BsonTimestamp clusterTime) {
+        String versionCollection = collectionName + commonProperties.getCollectionSuffix();
+        if (!commonProperties.isVersionBucketingEnabled(collectionName)) {
+            return versionCollection;
+        }
+        YearMonth month = clusterTime == null ? YearMonth.now(ZoneOffset.UTC) : getMonth(clusterTime);
+        return String.format("%s_%04d_%02d", versionCollection, month.getYear(), month.getMonthValue());
+    }
+
+    /**
+     * Creates the version collection and its index unless this instance already did. Collections cannot be created
+     * inside a transaction, so writers call this before starting one.
+     */
+    public void ensureBucket(String bucket) {
+        if (createdBuckets.contains(bucket)) {
+            return;
+        }
+        try {
+            mongoDatabase.createCollection(bucket);
+            LOGGER.info("Created a new Collection : {}", bucket);
+        } catch (MongoCommandException exc) {
+            if (exc.getErrorCode() != NAMESPACE_EXISTS) {
+                throw exc;
+            }
+        }
+        mongoDatabase.getCollection(bucket).createIndex(Indexes.ascending(VersionCodec.ID_DOCUMENT,
+                VersionCodec.CLUSTER_TIME));
+        createdBuckets.add(bucket);
+    }
+
+    /**
+     * Returns the existing version collections of a collection from the oldest to the newest, the unbucketed
+     * {@code <collection>_coll} first.
+     */
+    public List<String> getBuckets(String collectionName) {
+        String versionCollection = collectionName + commonProperties.getCollectionSuffix();
+        boolean unbucketed = false;
+        TreeMap<YearMonth, String> buckets = new TreeMap<>();
+        for (String name : mongoDatabase.listCollectionNames()) {
+            if (name.equals(versionCollection)) {
+                unbucketed = true;
+            } else if (name.startsWith(versionCollection)) {
+                YearMonth month = getMonth(versionCollection, name);
+                if (month != null) {
+                    buckets.put(month, name);
+                }
+            }
+        }
+        List<String> result = new ArrayList<>();
+        if (unbucketed) {
+            result.add(versionCollection);
+        }
+        result.addAll(buckets.values());
+        return result;
+    }
+
+    /**
+     * Returns the month of a bucket of the given version collection, null for the unbucketed collection.
+     */
+    public static YearMonth getMonth(String versionCollection, String bucket) {
+        if (bucket.length() != versionCollection.length() + 8 || !bucket.startsWith(versionCollection)) {
+            return null;
+        }
+        Matcher matcher = BUCKET_MONTH.matcher(bucket);
+        if (!matcher.find()) {
+            return null;
+        }
+        return YearMonth.of(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)));
+    }
+
+    /**
+     * Returns the month of a cluster time, in UTC.
+     */
+    public static YearMonth getMonth(BsonTimestamp clusterTime) {
+        return YearMonth.from(Instant.ofEpochSecond(clusterTime.getTime()).atOffset(ZoneOffset.UTC));
+    }
+
+    void forget(String bucket) {
+        createdBuckets.remove(bucket);
+    }
+}
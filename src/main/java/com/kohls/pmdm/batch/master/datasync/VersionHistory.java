@@ -0,0 +1,315 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.CommonProperties;
+import com.kohls.pmdm.batch.master.common.VersionCodec;
+import com.kohls.pmdm.domain.Version;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
+import org.bson.conversions.Bson;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rebuilds a document as it was at a point in time, or at a version number, from the deltas of its version
+ * collections, reading the monthly buckets of {@link VersionBuckets} as one history. Versions are replayed in cluster
+ * time order, 1 being the first version of a document; versions written before the cluster time was stored are not
+ * part of the history.
+ * <p>
+ * A rebuild starts from the latest snapshot of the document before the requested point and stores a snapshot in
+ * {@code <collection>_snapshot} at every multiple of {@code versionSnapshotInterval} versions it replays, so later
+ * rebuilds of any point replay fewer than that many versions however long the history of a document grows.
+ */
+public class VersionHistory {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VersionHistory.class);
+    private static final String SNAPSHOT_SUFFIX = "_snapshot";
+    private static final String VERSION = "version";
+    private static final String DOCUMENT = "document";
+
+    //@Autowired
+    CommonProperties commonProperties = new CommonProperties();
+
+    private final MongoDatabase mongoDatabase;
+    private final VersionBuckets versionBuckets;
+    private final Set<String> indexedCollections = ConcurrentHashMap.newKeySet();
+
+    public VersionHistory(MongoDatabase mongoDatabase) {
+        this.mongoDatabase = mongoDatabase;
+        this.versionBuckets = new VersionBuckets(mongoDatabase);
+    }
+
+    /**
+     * Returns the document as of the given time, null if it did not exist yet.
+     */
+    public BsonDocument asOf(String collectionName, BsonDocument idDocument, Date time) {
+        // The highest increment covers every event of that second.
+        return asOf(collectionName, idDocument, new BsonTimestamp((int) (time.getTime() / 1000), -1));
+    }
+
+    /**
+     * Returns the document as of the given cluster time, null if it did not exist yet.
+     */
+    public BsonDocument asOf(String collectionName, BsonDocument idDocument, BsonTimestamp clusterTime) {
+        return rebuild(collectionName, idDocument, clusterTime, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns the document after the given number of versions, or after its last version if it has fewer.
+     */
+    public BsonDocument atVersion(String collectionName, BsonDocument idDocument, long version) {
+        return rebuild(collectionName, idDocument, null, version);
+    }
+
+    private BsonDocument rebuild(String collectionName, BsonDocument idDocument, BsonTimestamp until,
+                                 long maxVersion) {
+        MongoCollection<BsonDocument> snapshots = getSnapshotCollection(collectionName);
+        BsonDocument snapshot = snapshots.find(getSnapshotFilter(idDocument, until, maxVersion))
+                .sort(Sorts.descending(VERSION)).first();
+
+        Replay replay = new Replay(null, 0);
+        BsonTimestamp from = null;
+        List<Bson> filters = new ArrayList<>();
+        filters.add(Filters.eq(VersionCodec.ID_DOCUMENT, idDocument));
+        filters.add(Filters.exists(VersionCodec.CLUSTER_TIME));
+        if (snapshot != null) {
+            replay = new Replay(snapshot.getDocument(DOCUMENT), snapshot.getInt64(VERSION).getValue());
+            from = snapshot.getTimestamp(VersionCodec.CLUSTER_TIME);
+            // Events of one transaction share their cluster time, the resume token orders them.
+            filters.add(Filters.or(Filters.gt(VersionCodec.CLUSTER_TIME, from),
+                    Filters.and(Filters.eq(VersionCodec.CLUSTER_TIME, from),
+                            Filters.gt(VersionCodec.ID, snapshot.get(VersionCodec.ID)))));
+        }
+        if (until != null) {
+            filters.add(Filters.lte(VersionCodec.CLUSTER_TIME, until));
+        }
+        Bson filter = Filters.and(filters);
+
+        int snapshotInterval = commonProperties.getVersionSnapshotInterval();
+        // Buckets hold consecutive months, reading them in order replays the versions in cluster time order.
+        for (String bucket : getBuckets(collectionName, from, until)) {
+            if (replay.version >= maxVersion) {
+                break;
+            }
+            FindIterable<Version> versions = getVersionCollection(bucket).find(filter)
+                    .sort(Sorts.ascending(VersionCodec.CLUSTER_TIME, VersionCodec.ID));
+            if (maxVersion != Long.MAX_VALUE) {
+                versions.limit((int) Math.min(Integer.MAX_VALUE, maxVersion - replay.version));
+            }
+            replay.apply(versions, maxVersion, snapshotInterval,
+                    (last, version, document) -> storeSnapshot(snapshots, idDocument, last, version, document));
+        }
+        return replay.document;
+    }
+
+    /**
+     * Selects the snapshots at or before the requested point, by cluster time, or by version number when no cluster
+     * time is given. The rebuild starts from the one with the highest version.
+     */
+    static Bson getSnapshotFilter(BsonDocument idDocument, BsonTimestamp until, long maxVersion) {
+        return Filters.and(Filters.eq(VersionCodec.ID_DOCUMENT, idDocument),
+                until != null ? Filters.lte(VersionCodec.CLUSTER_TIME, until) : Filters.lte(VERSION, maxVersion));
+    }
+
+    /**
+     * Returns the version collections that may hold versions between the given cluster times, either may be null.
+     */
+    private List<String> getBuckets(String collectionName, BsonTimestamp from, BsonTimestamp until) {
+        String versionCollection = collectionName + commonProperties.getCollectionSuffix();
+        YearMonth fromMonth = from == null ? null : VersionBuckets.getMonth(from);
+        YearMonth untilMonth = until == null ? null : VersionBuckets.getMonth(until);
+        List<String> buckets = new ArrayList<>();
+        for (String bucket : versionBuckets.getBuckets(collectionName)) {
+            YearMonth month = VersionBuckets.getMonth(versionCollection, bucket);
+            if (month == null || !((fromMonth != null && month.isBefore(fromMonth))
+                    || (untilMonth != null && month.isAfter(untilMonth)))) {
+                buckets.add(bucket);
+            }
+        }
+        return buckets;
+    }
+
+    private void storeSnapshot(MongoCollection<BsonDocument> snapshots, BsonDocument idDocument, Version last,
+                               long version, BsonDocument document) {
+        // Keyed by the resume token of the last version, rebuilding the same point again stores the same snapshot.
+        BsonDocument snapshot = new BsonDocument(VersionCodec.ID, last.getId())
+                .append(VersionCodec.ID_DOCUMENT, idDocument)
+                .append(VersionCodec.CLUSTER_TIME, last.getClusterTime())
+                .append(VERSION, new BsonInt64(version))
+                .append(DOCUMENT, document);
+        snapshots.replaceOne(Filters.eq(VersionCodec.ID, last.getId()), snapshot, new ReplaceOptions().upsert(true));
+        LOGGER.debug("Stored snapshot of {} at version {}", idDocument, version);
+    }
+
+    /**
+     * Stores the snapshot of a document at a version.
+     */
+    interface SnapshotListener {
+        void snapshot(Version last, long version, BsonDocument document);
+    }
+
+    /**
+     * A document being rebuilt and the number of its versions applied so far.
+     */
+    static class Replay {
+        private BsonDocument document;
+        private long version;
+
+        Replay(BsonDocument document, long version) {
+            this.document = document;
+            this.version = version;
+        }
+
+        /**
+         * Applies the versions in order until {@code maxVersion} is reached, handing a copy of the document at every
+         * multiple of the snapshot interval to the listener.
+         */
+        void apply(Iterable<Version> versions, long maxVersion, int snapshotInterval, SnapshotListener listener) {
+            for (Version next : versions) {
+                if (version >= maxVersion) {
+                    break;
+                }
+                document = VersionHistory.apply(document, next);
+                version++;
+                if (snapshotInterval > 0 && version % snapshotInterval == 0) {
+                    listener.snapshot(next, version, document.clone());
+                }
+            }
+        }
+
+        BsonDocument getDocument() {
+            return document;
+        }
+
+        long getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * Applies a version to the document it follows: an insert replaces the document, an update sets its updated
+     * fields and unsets its removed fields, both given as dotted paths.
+     */
+    static BsonDocument apply(BsonDocument document, Version version) {
+        if (version.getInsertedFields() != null) {
+            return version.getInsertedFields().clone();
+        }
+        return applyUpdate(document, version.getUpdatedFields(), version.getRemovedFields());
+    }
+
+    /**
+     * Sets the updated fields and unsets the removed fields of an update on the document, both may be null.
+     */
+    static BsonDocument applyUpdate(BsonDocument document, BsonDocument updatedFields, List<String> removedFields) {
+        BsonDocument result = document == null ? new BsonDocument() : document;
+        if (updatedFields != null) {
+            for (Map.Entry<String, BsonValue> field : updatedFields.entrySet()) {
+                setPath(result, field.getKey(), field.getValue());
+            }
+        }
+        if (removedFields != null) {
+            for (String removedField : removedFields) {
+                removePath(result, removedField);
+            }
+        }
+        return result;
+    }
+
+    private static void setPath(BsonDocument document, String path, BsonValue value) {
+        List<String> parts = Arrays.asList(path.split("\\."));
+        BsonValue container = document;
+        for (int i = 0; i < parts.size() - 1; i++) {
+            BsonValue child = getChild(container, parts.get(i));
+            if (child == null || !(child.isDocument() || child.isArray())) {
+                child = new BsonDocument();
+                setChild(container, parts.get(i), child);
+            }
+            container = child;
+        }
+        setChild(container, parts.get(parts.size() - 1), value);
+    }
+
+    private static void removePath(BsonDocument document, String path) {
+        List<String> parts = Arrays.asList(path.split("\\."));
+        BsonValue container = document;
+        for (int i = 0; i < parts.size() - 1 && container != null; i++) {
+            container = getChild(container, parts.get(i));
+        }
+        if (container != null && container.isDocument()) {
+            container.asDocument().remove(parts.get(parts.size() - 1));
+        } else if (container != null && container.isArray() && isIndex(parts.get(parts.size() - 1))) {
+            // $unset of an array element leaves a null in its place.
+            int index = Integer.parseInt(parts.get(parts.size() - 1));
+            BsonArray array = container.asArray();
+            if (index < array.size()) {
+                array.set(index, BsonNull.VALUE);
+            }
+        }
+    }
+
+    private static BsonValue getChild(BsonValue container, String name) {
+        if (container.isDocument()) {
+            return container.asDocument().get(name);
+        }
+        if (container.isArray() && isIndex(name)) {
+            int index = Integer.parseInt(name);
+            return index < container.asArray().size() ? container.asArray().get(index) : null;
+        }
+        return null;
+    }
+
+    private static void setChild(BsonValue container, String name, BsonValue value) {
+        if (container.isDocument()) {
+            container.asDocument().put(name, value);
+        } else if (container.isArray() && isIndex(name)) {
+            BsonArray array = container.asArray();
+            int index = Integer.parseInt(name);
+            while (array.size() <= index) {
+                array.add(BsonNull.VALUE);
+            }
+            array.set(index, value);
+        }
+    }
+
+    private static boolean isIndex(String name) {
+        return !name.isEmpty() && name.chars().allMatch(Character::isDigit);
+    }
+
+    private MongoCollection<Version> getVersionCollection(String bucket) {
+        return mongoDatabase.withCodecRegistry(VersionCodec.VERSION_CODEC_REGISTRY)
+                .getCollection(bucket, Version.class);
+    }
+
+    private MongoCollection<BsonDocument> getSnapshotCollection(String collectionName) {
+        MongoCollection<BsonDocument> snapshots = mongoDatabase.getCollection(collectionName + SNAPSHOT_SUFFIX,
+                BsonDocument.class);
+        if (indexedCollections.add(collectionName)) {
+            snapshots.createIndexes(Arrays.asList(
+                    new IndexModel(Indexes.ascending(VersionCodec.ID_DOCUMENT, VersionCodec.CLUSTER_TIME)),
+                    new IndexModel(Indexes.ascending(VersionCodec.ID_DOCUMENT, VERSION))));
+        }
+        return snapshots;
+    }
+}
@@ -0,0 +1,165 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.CommonProperties;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+
+import org.bson.RawBsonDocument;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Expires the monthly version collections older than {@code versionRetentionMonths}. Each expired bucket is first
+ * archived to {@code <archive directory>/<database>.<bucket>.bson.gz}, its documents as concatenated BSON like a
+ * mongodump file, and only dropped once the archive is complete. An archive is written to a temporary file of its own
+ * and moved in place, so an interrupted run or two instances expiring the same bucket leave no partial archive behind.
+ * With lease coordination an instance only expires the buckets of the collections it holds the lease of.
+ */
+@Component
+public class VersionRetention {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VersionRetention.class);
+
+    //@Autowired
+    CommonProperties commonProperties = new CommonProperties();
+
+    private final LeaseCoordinator leaseCoordinator;
+    private MongoDatabase mongoDatabase;
+    private VersionBuckets versionBuckets;
+    private ScheduledExecutorService executor;
+
+    public VersionRetention(LeaseCoordinator leaseCoordinator) {
+        this.leaseCoordinator = leaseCoordinator;
+    }
+
+    public void setMongoDatabase(MongoDatabase mongoDatabase, VersionBuckets versionBuckets) {
+        this.mongoDatabase = mongoDatabase;
+        this.versionBuckets = versionBuckets;
+    }
+
+    /**
+     * Expires the buckets of the given collections now and then every {@code versionRetentionIntervalMillis}.
+     */
+    public synchronized void start(List<String> collectionNames) {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cs-retention");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            for (String collectionName : collectionNames) {
+                try {
+                    expire(collectionName);
+                } catch (RuntimeException exc) {
+                    LOGGER.error("Error while expiring the versions of collection {}", collectionName, exc);
+                }
+            }
+        }, 0, commonProperties.getVersionRetentionIntervalMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Archives and drops the buckets of a collection that are past the retention.
+     */
+    void expire(String collectionName) {
+        if (!commonProperties.isVersionBucketingEnabled(collectionName)) {
+            return;
+        }
+        String versionCollection = collectionName + commonProperties.getCollectionSuffix();
+        YearMonth oldestKept = YearMonth.now(ZoneOffset.UTC)
+                .minusMonths(commonProperties.getVersionRetentionMonths() - 1);
+        for (String bucket : versionBuckets.getBuckets(collectionName)) {
+            YearMonth month = VersionBuckets.getMonth(versionCollection, bucket);
+            if (month == null || !month.isBefore(oldestKept)) {
+                continue;
+            }
+            if (commonProperties.isLeaseCoordinationEnabled() && !leaseCoordinator.holdsLease(collectionName)) {
+                // Checked per bucket, an archive may take longer than the lease is held.
+                LOGGER.debug("Not expiring bucket {}, collection {} is not leased", bucket, collectionName);
+                return;
+            }
+            String archiveDirectory = commonProperties.getVersionArchiveDirectory();
+            MongoCollection<RawBsonDocument> versions = mongoDatabase.getCollection(bucket, RawBsonDocument.class);
+            if (archiveDirectory != null) {
+                long count = archive(versions, Paths.get(archiveDirectory,
+                        mongoDatabase.getName() + "." + bucket + ".bson.gz"));
+                LOGGER.info("Archived {} versions of bucket {} to {}", count, bucket, archiveDirectory);
+            }
+            versions.drop();
+            versionBuckets.forget(bucket);
+            LOGGER.info("Dropped expired version bucket {}", bucket);
+        }
+    }
+
+    private long archive(MongoCollection<RawBsonDocument> versions, Path archive) {
+        long count = 0;
+        Path temporary = null;
+        try {
+            Files.createDirectories(archive.getParent());
+            temporary = Files.createTempFile(archive.getParent(), archive.getFileName() + ".", ".tmp");
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temporary), 64 * 1024);
+                 MongoCursor<RawBsonDocument> cursor = versions.find().iterator()) {
+                byte[] buffer = new byte[16 * 1024];
+                while (cursor.hasNext()) {
+                    ByteBuffer bytes = cursor.next().getByteBuffer().asNIO();
+                    // Raw documents hold their encoded bytes, they are copied without decoding.
+                    while (bytes.hasRemaining()) {
+                        int length = Math.min(buffer.length, bytes.remaining());
+                        bytes.get(buffer, 0, length);
+                        out.write(buffer, 0, length);
+                    }
+                    count++;
+                }
+            }
+            Files.move(temporary, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temporary = null;
+        } catch (IOException exc) {
+            throw new UncheckedIOException("Could not archive " + versions.getNamespace() + " to " + archive, exc);
+        } finally {
+            deleteQuietly(temporary);
+        }
+        return count;
+    }
+
+    private static void deleteQuietly(Path temporary) {
+        if (temporary == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(temporary);
+        } catch (IOException exc) {
+            LOGGER.warn("Could not delete the partial archive {}", temporary, exc);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.mongodb.client.ClientSession;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writer stage of a collection's change stream. Batches handed over by the {@link ChangeStreamWatcher} are queued in
+ * a bounded queue and written in order on the shared writer pool, so the watcher can fetch the next events while the
+ * previous batch is persisted. Written batches release their {@link ResumeTokenTracker} tickets, and the resume
+ * token is only checkpointed up to the last event whose write and sends are all acknowledged.
+ * <p>
+ * When a write fails the writer stops taking batches and reports the failure to the watcher, which reopens the change
+ * stream from the last stored resume token.
+ */
+public class VersionWriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VersionWriter.class);
+
+    private final String collectionName;
+    private final ChangeStreamService changeStreamService;
+    private final ResumeTokenTracker tracker;
+    private final ExecutorService executor;
+    private final int capacity;
+    private final BlockingQueue<VersionBatcher.Batch> queue;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final Object writeLock = new Object();
+
+    private volatile RuntimeException failure;
+    private ClientSession session;
+
+    VersionWriter(String collectionName, ChangeStreamService changeStreamService, ResumeTokenTracker tracker,
+                  ExecutorService executor, int capacity) {
+        this.collectionName = collectionName;
+        this.changeStreamService = changeStreamService;
+        this.tracker = tracker;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.queue = new LinkedBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Returns whether the queue is full. The watcher stops reading the cursor until the writer catches up.
+     */
+    public boolean isSaturated() {
+        return queue.size() >= capacity;
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Throws the exception of a failed write, if any.
+     */
+    public void checkFailure() {
+        RuntimeException exc = failure;
+        if (exc != null) {
+            throw new IllegalStateException("Writing versions of " + collectionName + " failed", exc);
+        }
+    }
+
+    /**
+     * Queues a batch for writing. The watcher stops reading events when the queue is full, but batches flushed by
+     * processing lanes that are still running wait here for room.
+     */
+    public void submit(VersionBatcher.Batch batch) {
+        checkFailure();
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing versions of " + collectionName, e);
+        }
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Drops the queued batches and waits for a write in progress. Called when the change stream is reopened, which
+     * reads the dropped events again.
+     */
+    public void reset() {
+        queue.clear();
+        synchronized (writeLock) {
+            failure = null;
+            if (session != null) {
+                session.close();
+                session = null;
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            VersionBatcher.Batch batch;
+            while (failure == null && (batch = queue.poll()) != null) {
+                synchronized (writeLock) {
+                    if (session == null) {
+                        session = changeStreamService.startSession();
+                    }
+                    changeStreamService.writeVersionBatch(collectionName, batch, tracker, session);
+                }
+            }
+        } catch (RuntimeException exc) {
+            LOGGER.error("Error while writing versions of collection {}", collectionName, exc);
+            failure = exc;
+            queue.clear();
+        } finally {
+            draining.set(false);
+        }
+        // A batch may have been queued after the last poll but before draining was reset.
+        if (failure == null && !queue.isEmpty() && draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+}
@@ -1,19 +1,46 @@
 package com.kohls.pmdm.domain;
 
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+
+import java.util.Date;
+
 public class Sequence {
 
     public String id;
-    public String bsonToken;
+    public BsonDocument bsonToken;
+    public BsonTimestamp clusterTime;
+    public Date modifiedDateTime;
 
     public void set_id(String id) {
         this.id = id;
     }
 
-    public void setBsonToken(String bsonToken) {
+    public String get_id() {
+        return this.id;
+    }
+
+    public void setBsonToken(BsonDocument bsonToken) {
          this.bsonToken = bsonToken;
     }
 
-    public String getBsonToken() {
+    public BsonDocument getBsonToken() {
         return this.bsonToken;
     }
+
+    public void setClusterTime(BsonTimestamp clusterTime) {
+        this.clusterTime = clusterTime;
+    }
+
+    public BsonTimestamp getClusterTime() {
+        return this.clusterTime;
+    }
+
+    public void setModifiedDateTime(Date modifiedDateTime) {
+        this.modifiedDateTime = modifiedDateTime;
+    }
+
+    public Date getModifiedDateTime() {
+        return this.modifiedDateTime;
+    }
 }
@@ -1,27 +1,64 @@
 package com.kohls.pmdm.domain;
 
 import org.bson.BsonDocument;
-import org.bson.Document;
+import org.bson.BsonTimestamp;
 
 import java.util.List;
 
 public class Version {
-    public void setIdDocument(Document parse) {
+
+    private BsonDocument id;
+    private BsonDocument idDocument;
+    private BsonDocument insertedFields;
+    private BsonDocument updatedFields;
+    private List<String> removedFields;
+    private BsonTimestamp clusterTime;
+
+    public BsonDocument getId() {
+        return id;
     }
 
-    public void setInsertedFields(Document fullDocument) {
+    public void setId(BsonDocument id) {
+        this.id = id;
+    }
 
+    public BsonDocument getIdDocument() {
+        return idDocument;
     }
 
-    public void setUpdatedFields(Document parse) {
+    public void setIdDocument(BsonDocument idDocument) {
+        this.idDocument = idDocument;
+    }
 
+    public BsonDocument getInsertedFields() {
+        return insertedFields;
+    }
+
+    public void setInsertedFields(BsonDocument insertedFields) {
+        this.insertedFields = insertedFields;
     }
 
     public BsonDocument getUpdatedFields() {
-        return null;
+        return updatedFields;
+    }
+
+    public void setUpdatedFields(BsonDocument updatedFields) {
+        this.updatedFields = updatedFields;
+    }
+
+    public List<String> getRemovedFields() {
+        return removedFields;
     }
 
     public void setRemovedFields(List<String> removedFields) {
+        this.removedFields = removedFields;
+    }
+
+    public BsonTimestamp getClusterTime() {
+        return clusterTime;
+    }
 
+    public void setClusterTime(BsonTimestamp clusterTime) {
+        this.clusterTime = clusterTime;
     }
 }
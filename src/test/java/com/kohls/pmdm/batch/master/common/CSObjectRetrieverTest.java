@@ -0,0 +1,126 @@
+package com.kohls.pmdm.batch.master.common;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.MongoIterable;
+
+import org.bson.BsonArray;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static com.kohls.pmdm.batch.master.datasync.DriverStubs.cursorOf;
+import static com.kohls.pmdm.batch.master.datasync.DriverStubs.render;
+import static com.kohls.pmdm.batch.master.datasync.DriverStubs.stub;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CSObjectRetrieverTest {
+
+    private final Map<String, List<Document>> collections = new HashMap<>();
+    private final List<BsonValue> queried = new ArrayList<>();
+    private final AtomicInteger listings = new AtomicInteger();
+    private final CSObjectRetriever retriever = new CSObjectRetriever();
+
+    @Before
+    public void setUp() {
+        Map<String, Function<Object[], Object>> namesAnswers = new HashMap<>();
+        namesAnswers.put("iterator", args -> {
+            listings.incrementAndGet();
+            return cursorOf(new ArrayList<>(collections.keySet()).iterator());
+        });
+        MongoIterable<String> names = stub(MongoIterable.class, namesAnswers);
+        Map<String, Function<Object[], Object>> databaseAnswers = new HashMap<>();
+        databaseAnswers.put("listCollectionNames", args -> names);
+        databaseAnswers.put("getCollection", args -> collection(collections.get(args[0])));
+        retriever.setMongoDatabase(stub(MongoDatabase.class, databaseAnswers));
+        retriever.commonProperties = new CommonProperties() {
+            @Override
+            public long getCsCollectionNamesRefreshMillis() {
+                return 0;
+            }
+        };
+    }
+
+    @Test
+    public void resolvesIdsOfEveryType() {
+        ObjectId objectId = new ObjectId();
+        collections.put("Brand", Arrays.asList(new Document("_id", objectId), new Document("_id", 42),
+                new Document("_id", "abc")));
+
+        Map<String, Object> entities = retriever.getCSUpdatedEntities(Arrays.asList(
+                new String[]{"brand", objectId.toHexString()}, new String[]{"brand", "42"},
+                new String[]{"brand", "abc"}, new String[]{"brand", "7"}));
+
+        assertEquals(new HashSet<>(Arrays.asList("brand-" + objectId.toHexString(), "brand-42", "brand-abc")),
+                entities.keySet());
+        assertEquals(42, ((Document) entities.get("brand-42")).get("_id"));
+        // Each id is queried as a string as well as in the type it parses to.
+        Set<BsonValue> expected = new HashSet<>(Arrays.asList(render(new Document("v", objectId)).get("v"),
+                render(new Document("v", 42L)).get("v"), render(new Document("v", "42")).get("v")));
+        assertTrue(new HashSet<>(queried).containsAll(expected));
+    }
+
+    @Test
+    public void readsTheCollectionNamesAgainOnAMiss() {
+        collections.put("Brand", Arrays.asList(new Document("_id", 1)));
+        assertEquals(1, retriever.getCSUpdatedEntities(Arrays.<String[]>asList(new String[]{"brand", "1"})).size());
+        assertEquals(0, retriever.getCSUpdatedEntities(Arrays.<String[]>asList(new String[]{"color", "1"})).size());
+
+        collections.put("Color", Arrays.asList(new Document("_id", 1)));
+        assertEquals(1, retriever.getCSUpdatedEntities(Arrays.<String[]>asList(new String[]{"color", "1"})).size());
+        int read = listings.get();
+        retriever.getCSUpdatedEntities(Arrays.<String[]>asList(new String[]{"brand", "1"}));
+        assertEquals(read, listings.get());
+    }
+
+    /**
+     * A collection answering {@code _id: {$in: [...]}} filters.
+     */
+    private MongoCollection<Document> collection(List<Document> documents) {
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("find", args -> {
+            BsonArray in = render((Bson) args[0]).getDocument("_id").getArray("$in");
+            queried.addAll(in);
+            List<Document> found = new ArrayList<>();
+            for (Document document : documents) {
+                for (BsonValue value : in) {
+                    if (CSObjectRetriever.normalize(document.get("_id")).equals(CSObjectRetriever.normalize(
+                            toJava(value)))) {
+                        found.add(document);
+                        break;
+                    }
+                }
+            }
+            Map<String, Function<Object[], Object>> findAnswers = new HashMap<>();
+            findAnswers.put("iterator", a -> cursorOf(found.iterator()));
+            FindIterable<Document> iterable = stub(FindIterable.class, findAnswers);
+            return iterable;
+        });
+        return stub(MongoCollection.class, answers);
+    }
+
+    private static Object toJava(BsonValue value) {
+        if (value.isObjectId()) {
+            return value.asObjectId().getValue();
+        }
+        if (value.isNumber()) {
+            return value.asNumber().longValue();
+        }
+        return value.asString().getValue();
+    }
+}
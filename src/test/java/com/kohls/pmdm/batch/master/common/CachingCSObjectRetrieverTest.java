@@ -0,0 +1,131 @@
+package com.kohls.pmdm.batch.master.common;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CachingCSObjectRetrieverTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedAndInvalidatesByType() {
+        CountingRetriever delegate = new CountingRetriever();
+        CachingCSObjectRetriever cache = new CachingCSObjectRetriever(delegate, 2, 60000);
+
+        cache.getCSUpdatedEntity(new String[]{"brand", "1"});
+        cache.getCSUpdatedEntity(new String[]{"color", "1"});
+        cache.getCSUpdatedEntity(new String[]{"brand", "1"});
+        cache.getCSUpdatedEntity(new String[]{"size", "1"});
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getEvictions());
+
+        cache.getCSUpdatedEntity(new String[]{"brand", "1"});
+        assertEquals(3, delegate.calls.get());
+
+        cache.invalidateType("Brand");
+        cache.getCSUpdatedEntity(new String[]{"brand", "1"});
+        assertEquals(4, delegate.calls.get());
+        assertEquals(1, cache.getInvalidations());
+    }
+
+    @Test
+    public void expiresEntriesAndCachesMissingEntities() throws InterruptedException {
+        CSObjectRetriever delegate = new CSObjectRetriever();
+        CachingCSObjectRetriever cache = new CachingCSObjectRetriever(delegate, 10, 20);
+
+        assertNull(cache.getCSUpdatedEntity(new String[]{"brand", "1"}));
+        assertNull(cache.getCSUpdatedEntity(new String[]{"brand", "1"}));
+        assertEquals(1, cache.getHits());
+        Thread.sleep(40);
+        cache.getCSUpdatedEntity(new String[]{"brand", "1"});
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void coalescesConcurrentMisses() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountingRetriever delegate = new CountingRetriever() {
+            @Override
+            public Object getCSUpdatedEntity(String[] keyValueString) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.getCSUpdatedEntity(keyValueString);
+            }
+        };
+        CachingCSObjectRetriever cache = new CachingCSObjectRetriever(delegate, 10, 60000);
+        List<Future<Object>> lookups = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            lookups.add(executor.submit(() -> cache.getCSUpdatedEntity(new String[]{"brand", "1"})));
+        }
+        Thread.sleep(50);
+        release.countDown();
+        for (Future<Object> lookup : lookups) {
+            assertEquals("brand-1", lookup.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, delegate.calls.get());
+    }
+
+    @Test
+    public void resolvesMissingCsIdsInOneBulkLookup() {
+        CountingRetriever delegate = new CountingRetriever();
+        CachingCSObjectRetriever cache = new CachingCSObjectRetriever(delegate, 10, 60000);
+        cache.getCSUpdatedEntity(new String[]{"brand", "1"});
+
+        Map<String, Object> entities = cache.getCSUpdatedEntities(Arrays.asList(new String[]{"brand", "1"},
+                new String[]{"brand", "2"}, new String[]{"color", "7"}, new String[]{"brand", "2"}));
+        assertEquals(3, entities.size());
+        assertEquals(1, delegate.bulkCalls.get());
+        assertEquals(Arrays.asList("brand-2", "color-7"), delegate.lastBulk);
+
+        cache.getCSUpdatedEntity(new String[]{"color", "7"});
+        assertEquals(1, delegate.calls.get());
+    }
+
+    private static class CountingRetriever extends CSObjectRetriever {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger bulkCalls = new AtomicInteger();
+        List<String> lastBulk;
+
+        @Override
+        public Object getCSUpdatedEntity(String[] keyValueString) {
+            calls.incrementAndGet();
+            return String.join("-", keyValueString);
+        }
+
+        @Override
+        public Map<String, Object> getCSUpdatedEntities(Collection<String[]> keyValueStrings) {
+            bulkCalls.incrementAndGet();
+            Map<String, Object> entities = new HashMap<>();
+            lastBulk = new ArrayList<>();
+            for (String[] keyValueString : keyValueStrings) {
+                lastBulk.add(String.join("-", keyValueString));
+                entities.put(String.join("-", keyValueString), String.join("-", keyValueString));
+            }
+            return entities;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.kohls.pmdm.batch.master.common;
+
+import com.mongodb.client.model.changestream.OperationType;
+
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static com.kohls.pmdm.batch.master.datasync.DriverStubs.render;
+import static org.junit.Assert.assertEquals;
+
+public class ChangeStreamFilterTest {
+
+    private final CommonProperties commonProperties = new CommonProperties();
+
+    @Test
+    public void dropsReplaceAndInvalidateEvents() {
+        List<Bson> pipeline = commonProperties.getChangeStreamFilter("sku").toPipeline();
+
+        assertEquals(1, pipeline.size());
+        assertEquals(BsonDocument.parse("{$match: {operationType: {$in: ['insert', 'update']}}}"),
+                render(pipeline.get(0)));
+    }
+
+    @Test
+    public void keepsDeletesOfReferenceCollections() {
+        assertEquals(BsonDocument.parse("{$match: {operationType: {$in: ['insert', 'update', 'delete']}}}"),
+                render(commonProperties.getChangeStreamFilter("brand").toPipeline().get(0)));
+    }
+
+    @Test
+    public void restrictsOnlyUpdatesToTheUpdatedFields() {
+        List<Bson> pipeline = ChangeStreamFilter.builder()
+                .operationTypes(OperationType.INSERT, OperationType.UPDATE)
+                .updatedFieldsPresent("skuPackageShippingDimensionList")
+                .build().toPipeline();
+
+        assertEquals(BsonDocument.parse("{$match: {operationType: {$in: ['insert', 'update']},"
+                + " $or: [{operationType: {$ne: 'update'}},"
+                + " {'updateDescription.updatedFields.skuPackageShippingDimensionList': {$exists: true}}]}}"),
+                render(pipeline.get(0)));
+    }
+
+    @Test
+    public void reducesTheLookedUpDocumentOfUpdatesToTheGivenFields() {
+        List<Bson> pipeline = ChangeStreamFilter.builder()
+                .operationTypes(OperationType.INSERT, OperationType.UPDATE)
+                .projectedFields("operationType", "documentKey", "fullDocument")
+                .fullDocumentLookup(ChangeStreamFilter.FullDocumentLookup.STREAM, "skuStatus")
+                .build().toPipeline();
+
+        assertEquals(2, pipeline.size());
+        // Inserts and documents deleted before the lookup keep their fullDocument as is.
+        assertEquals(BsonDocument.parse("{$project: {operationType: 1, documentKey: 1, _id: 1,"
+                + " fullDocument: {$cond: [{$and: [{$eq: ['$operationType', 'update']},"
+                + " {$eq: [{$type: '$fullDocument'}, 'object']}]},"
+                + " {_id: '$fullDocument._id', skuStatus: '$fullDocument.skuStatus'}, '$fullDocument']}}}"),
+                render(pipeline.get(1)));
+    }
+
+    @Test
+    public void keepsWholeLookedUpDocumentsWithoutFields() {
+        List<Bson> pipeline = ChangeStreamFilter.builder()
+                .operationTypes(OperationType.UPDATE)
+                .fullDocumentLookup(ChangeStreamFilter.FullDocumentLookup.STREAM)
+                .build().toPipeline();
+
+        assertEquals(1, pipeline.size());
+    }
+
+    @Test
+    public void matchesEachCollectionOfADatabaseStream() {
+        List<Bson> pipeline = ChangeStreamFilter.toDatabasePipeline(Collections.singletonMap("sku",
+                commonProperties.getChangeStreamFilter("sku")));
+
+        assertEquals(BsonDocument.parse("{$match: {'ns.coll': 'sku', operationType: {$in: ['insert', 'update']}}}"),
+                render(pipeline.get(0)));
+    }
+}
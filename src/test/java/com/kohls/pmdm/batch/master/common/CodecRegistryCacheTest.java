@@ -0,0 +1,38 @@
+package com.kohls.pmdm.batch.master.common;
+
+import com.kohls.pmdm.domain.Product;
+import com.kohls.pmdm.domain.SKU;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+public class CodecRegistryCacheTest {
+
+    private final CodecRegistryCache cache = new CodecRegistryCache();
+
+    @Test
+    public void mapsProductAndConsumerProductToTheProductClass() {
+        assertEquals(Product.class, CodecRegistryCache.getDomainClass("product"));
+        assertEquals(Product.class, CodecRegistryCache.getDomainClass("ConsumerProduct"));
+        // Both collections share the registry of their domain class.
+        assertSame(cache.get("product"), cache.get("consumerproduct"));
+        assertNotNull(cache.get("consumerproduct").get(Product.class));
+    }
+
+    @Test
+    public void buildsOneRegistryPerDomainClass() {
+        cache.init(Arrays.asList("SKU", "sku"));
+        assertSame(cache.get("Sku"), cache.get("sku"));
+        assertNotNull(cache.get("sku").get(SKU.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCollectionsWithoutDomainClass() {
+        cache.init(Arrays.asList("sku", "skuHistory"));
+    }
+}
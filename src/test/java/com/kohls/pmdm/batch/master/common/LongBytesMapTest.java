@@ -0,0 +1,78 @@
+package com.kohls.pmdm.batch.master.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LongBytesMapTest {
+
+    @Test
+    public void growsPastExpectedSize() {
+        LongBytesMap map = new LongBytesMap(4);
+        for (long key = 0; key < 10000; key++) {
+            map.put(key * 1000003, new byte[]{(byte) key});
+        }
+        assertEquals(10000, map.size());
+        for (long key = 0; key < 10000; key++) {
+            assertArrayEquals(new byte[]{(byte) key}, map.get(key * 1000003));
+        }
+        assertNull(map.get(7));
+    }
+
+    @Test
+    public void replacesValues() {
+        LongBytesMap map = new LongBytesMap(16);
+        map.put(Long.MIN_VALUE, new byte[10]);
+        map.put(Long.MIN_VALUE, new byte[3]);
+        assertEquals(1, map.size());
+        assertEquals(3, map.get(Long.MIN_VALUE).length);
+        // 32 slots of 12 bytes and one array of 16 + 3 bytes.
+        assertEquals(32 * 12 + 16 + 3, map.getMemoryBytes());
+    }
+
+    @Test
+    public void removesWithoutBreakingProbes() {
+        LongBytesMap map = new LongBytesMap(4);
+        for (long key = 0; key < 1000; key++) {
+            map.put(key, new byte[]{(byte) key});
+        }
+        for (long key = 0; key < 1000; key += 3) {
+            assertArrayEquals(new byte[]{(byte) key}, map.remove(key));
+        }
+        assertNull(map.remove(0));
+        assertEquals(666, map.size());
+        for (long key = 0; key < 1000; key++) {
+            if (key % 3 == 0) {
+                assertNull(map.get(key));
+            } else {
+                assertArrayEquals(new byte[]{(byte) key}, map.get(key));
+            }
+        }
+        map.put(3, new byte[2]);
+        assertEquals(2, map.get(3).length);
+        assertEquals(667, map.size());
+    }
+
+    @Test
+    public void mapsLongsToLongs() {
+        LongLongMap map = new LongLongMap(4);
+        for (long key = -5000; key < 5000; key++) {
+            map.put(key, key * 2);
+        }
+        assertEquals(10000, map.size());
+        assertEquals(-10000, map.get(-5000, 0));
+        assertEquals(-1, map.get(5000, -1));
+
+        for (long key = -5000; key < 5000; key += 2) {
+            assertEquals(key * 2, map.remove(key, 0));
+        }
+        assertEquals(-1, map.remove(-5000, -1));
+        assertEquals(5000, map.size());
+        for (long key = -4999; key < 5000; key += 2) {
+            assertEquals(key * 2, map.get(key, 0));
+            assertEquals(-1, map.get(key - 1, -1));
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.kohls.pmdm.batch.master.common;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.gson.Gson;
+import com.kohls.pmdm.domain.Version;
+
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the JSON round trips previously used to build version documents with the {@link VersionCodec} path.
+ * Run with the gc profiler (the default of the benchmark profile) to see the allocation per event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VersionCodecBenchmark {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final VersionCodec versionCodec = new VersionCodec();
+
+    private BsonDocument documentKey;
+    private RawBsonDocument fullDocument;
+    private BsonDocument updatedFields;
+
+    @Setup
+    public void setUp() {
+        documentKey = new BsonDocument("_id", new BsonString("5b3f8e1c9d1e2a0001a1b2c3"));
+        BsonDocument sku = new BsonDocument("_id", documentKey.get("_id"))
+                .append("skuNumber", new BsonString("12345678"))
+                .append("skuStatus", new BsonString("ACTIVE"))
+                .append("colorCode", new BsonInt32(410))
+                .append("sizeCode", new BsonInt32(12));
+        BsonDocument dimension = new BsonDocument("depthQuantity", new BsonInt32(10))
+                .append("heightQuantity", new BsonInt32(4))
+                .append("widthQuantity", new BsonInt32(7))
+                .append("weightUnitOfMeasure", new BsonDocument("referenceValueShortDescription",
+                        new BsonString("LB")));
+        sku.append("skuPackageShippingDimension", dimension);
+        fullDocument = new RawBsonDocument(sku, new org.bson.codecs.BsonDocumentCodec());
+        updatedFields = new BsonDocument("skuStatus", new BsonString("INACTIVE"))
+                .append("brand.csId", new BsonString("brand-1001"));
+    }
+
+    @Benchmark
+    public Document insertJsonRoundTrip() throws Exception {
+        LegacyVersion version = new LegacyVersion();
+        version.idDocument = Document.parse(documentKey.toJson());
+        version.insertedFields = Document.parse(fullDocument.toJson());
+        return Document.parse(mapper.writeValueAsString(version));
+    }
+
+    @Benchmark
+    public Document updateJsonRoundTrip() throws Exception {
+        LegacyVersion version = new LegacyVersion();
+        version.idDocument = Document.parse(documentKey.toJson());
+        version.updatedFields = Document.parse(updatedFields.toJson());
+        Document document = Document.parse(mapper.writeValueAsString(version));
+        new Gson().fromJson(documentKey.toJson(), Document.class);
+        return document;
+    }
+
+    @Benchmark
+    public BasicOutputBuffer insertCodec() {
+        Version version = new Version();
+        version.setIdDocument(documentKey);
+        version.setInsertedFields(fullDocument);
+        return encode(version);
+    }
+
+    @Benchmark
+    public BasicOutputBuffer updateCodec() {
+        Version version = new Version();
+        version.setIdDocument(documentKey);
+        version.setUpdatedFields(updatedFields);
+        return encode(version);
+    }
+
+    /**
+     * The JSON benchmarks stop at the Document the driver still has to encode, so the codec benchmarks include the
+     * encoding to make the comparison conservative.
+     */
+    private BasicOutputBuffer encode(Version version) {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        versionCodec.encode(new BsonBinaryWriter(buffer), version, EncoderContext.builder().build());
+        return buffer;
+    }
+
+    public static class LegacyVersion {
+        public Document idDocument;
+        public Document insertedFields;
+        public Document updatedFields;
+    }
+}
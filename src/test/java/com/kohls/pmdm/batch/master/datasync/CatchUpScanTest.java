@@ -0,0 +1,169 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.CommonProperties;
+import com.kohls.pmdm.domain.Sequence;
+import com.mongodb.MongoException;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.RawBsonDocument;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import static com.kohls.pmdm.batch.master.datasync.DriverStubs.cursorOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Opens the change stream of a collection whose resume token and cluster time are no longer in the oplog, against
+ * stubs of the driver interfaces.
+ */
+public class CatchUpScanTest {
+
+    private static final BsonDocument TOKEN = BsonDocument.parse("{_data: '825B'}");
+    private static final BsonTimestamp CHECKPOINT_TIME = new BsonTimestamp(1790000000, 1);
+    private static final BsonTimestamp ATTACH_AT = new BsonTimestamp(1790090000, 1);
+
+    private final List<String> calls = new CopyOnWriteArrayList<>();
+    private final ChangeStreamService service = new ChangeStreamService();
+    private Sequence sequence;
+
+    @Before
+    public void setUp() {
+        RawBsonDocument document = RawBsonDocument.parse("{_id: 1, skuStatus: 'ACTIVE'}");
+        AtomicBoolean handedOut = new AtomicBoolean();
+        Map<String, Function<Object[], Object>> findAnswers = new HashMap<>();
+        // One slice finds the document, the others find nothing.
+        findAnswers.put("iterator", args -> cursorOf(handedOut.getAndSet(true)
+                ? Collections.<RawBsonDocument>emptyIterator() : Collections.singletonList(document).iterator()));
+        FindIterable<RawBsonDocument> found = stub(FindIterable.class, findAnswers);
+
+        Map<String, Function<Object[], Object>> rawCollectionAnswers = new HashMap<>();
+        rawCollectionAnswers.put("getNamespace", args -> new MongoNamespace("pmdm", "sku"));
+        rawCollectionAnswers.put("find", args -> found);
+        MongoCollection<RawBsonDocument> rawCollection = stub(MongoCollection.class, rawCollectionAnswers);
+
+        Map<String, Function<Object[], Object>> attachedAnswers = new HashMap<>();
+        attachedAnswers.put("iterator", args -> cursorOf(Collections.emptyIterator()));
+        ChangeStreamIterable<RawBsonDocument> attached = stub(ChangeStreamIterable.class, attachedAnswers);
+
+        Map<String, Function<Object[], Object>> changeStreamAnswers = new HashMap<>();
+        ChangeStreamIterable<RawBsonDocument> changeStream = stub(ChangeStreamIterable.class, changeStreamAnswers);
+        changeStreamAnswers.put("maxAwaitTime", args -> changeStream);
+        changeStreamAnswers.put("resumeAfter", args -> {
+            throw new MongoException(286, "Resume token no longer in the oplog");
+        });
+        changeStreamAnswers.put("startAtOperationTime", args -> {
+            calls.add("startAtOperationTime " + args[0]);
+            if (ATTACH_AT.equals(args[0])) {
+                return attached;
+            }
+            throw new MongoException(286, "Cluster time no longer in the oplog");
+        });
+
+        Map<String, Function<Object[], Object>> collectionAnswers = new HashMap<>();
+        MongoCollection<?> collection = stub(MongoCollection.class, collectionAnswers);
+        collectionAnswers.put("withReadConcern", args -> collection);
+        collectionAnswers.put("getNamespace", args -> new MongoNamespace("pmdm", "sku"));
+        collectionAnswers.put("watch", args -> changeStream);
+        collectionAnswers.put("withDocumentClass", args -> rawCollection);
+
+        Map<String, Function<Object[], Object>> databaseAnswers = new HashMap<>();
+        MongoDatabase database = stub(MongoDatabase.class, databaseAnswers);
+        databaseAnswers.put("withCodecRegistry", args -> database);
+        databaseAnswers.put("getCollection", args -> collection);
+        databaseAnswers.put("runCommand", args -> new BsonDocument("operationTime", ATTACH_AT));
+
+        service.mongoDatabase = database;
+        service.checkpointManager = new CheckpointManager(service.getMetrics()) {
+            @Override
+            public Sequence loadSequence(String collectionName, ClientSession session) {
+                return sequence;
+            }
+        };
+        service.commonProperties = new CommonProperties() {
+            @Override
+            public int getCatchUpParallelism() {
+                return 1;
+            }
+        };
+    }
+
+    @Test
+    public void fallsBackFromResumeTokenToClusterTimeToCatchUpScan() {
+        sequence = new Sequence();
+        sequence.setBsonToken(TOKEN);
+        sequence.setClusterTime(CHECKPOINT_TIME);
+
+        MongoCursor<ChangeStreamDocument<RawBsonDocument>> cursor = service.getCursor("sku", null);
+        assertTrue(calls.contains("resumeAfter"));
+        assertTrue(calls.contains("startAtOperationTime " + CHECKPOINT_TIME));
+
+        ChangeStreamDocument<RawBsonDocument> event = next(cursor);
+        assertEquals(OperationType.INSERT, event.getOperationType());
+        assertEquals(BsonDocument.parse("{_id: 1}"), event.getDocumentKey());
+        assertTrue(CatchUpScan.isCatchUpToken(event.getResumeToken()));
+        assertEquals(ATTACH_AT, event.getClusterTime());
+        // Checkpoints taken during the scan keep the cluster time it started from.
+        assertEquals(CHECKPOINT_TIME, CatchUpScan.getCheckpointClusterTime(event));
+
+        // Once the scan is drained the change stream attaches at the cluster time the scan began.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!calls.contains("startAtOperationTime " + ATTACH_AT)) {
+            assertTrue("Change stream not attached in time", System.nanoTime() < deadline);
+            cursor.tryNext();
+        }
+        cursor.close();
+    }
+
+    @Test
+    public void restartDuringScanScansAgain() {
+        ChangeStreamDocument<RawBsonDocument> scanned = new ChangeStreamDocument<>(
+                new BsonDocument("catchUp", ATTACH_AT).append("checkpoint", CHECKPOINT_TIME).append("_id", TOKEN),
+                (BsonDocument) null, null, null, ATTACH_AT, OperationType.INSERT, null);
+        sequence = new Sequence();
+        sequence.setBsonToken(scanned.getResumeToken());
+        sequence.setClusterTime(CatchUpScan.getCheckpointClusterTime(scanned));
+
+        MongoCursor<ChangeStreamDocument<RawBsonDocument>> cursor = service.getCursor("sku", null);
+        // A catch-up token cannot be resumed after, the stream tries the cluster time before the scan.
+        assertFalse(calls.contains("resumeAfter"));
+        assertTrue(calls.contains("startAtOperationTime " + CHECKPOINT_TIME));
+        assertEquals(BsonDocument.parse("{_id: 1}"), next(cursor).getDocumentKey());
+        cursor.close();
+    }
+
+    private static ChangeStreamDocument<RawBsonDocument> next(
+            MongoCursor<ChangeStreamDocument<RawBsonDocument>> cursor) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        ChangeStreamDocument<RawBsonDocument> event;
+        while ((event = cursor.tryNext()) == null) {
+            assertTrue("No event scanned in time", System.nanoTime() < deadline);
+        }
+        return event;
+    }
+
+    private <T> T stub(Class<?> type, Map<String, Function<Object[], Object>> answers) {
+        return DriverStubs.stub(type, answers, calls);
+    }
+}
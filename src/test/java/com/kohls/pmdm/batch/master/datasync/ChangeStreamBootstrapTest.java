@@ -0,0 +1,119 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.Constants;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.MongoIterable;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+import static com.kohls.pmdm.batch.master.datasync.DriverStubs.cursorOf;
+import static com.kohls.pmdm.batch.master.datasync.DriverStubs.stub;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bootstraps collections against a stub database recording the order of the requests.
+ */
+public class ChangeStreamBootstrapTest {
+
+    private static final List<String> COLLECTIONS = Arrays.asList("sku", "kohlsstyle", "brand");
+
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private final Map<String, BsonDocument> ready = new ConcurrentHashMap<>();
+    private final Map<String, String> readyThreads = new ConcurrentHashMap<>();
+    private final List<BsonDocument> inserted = new ArrayList<>();
+    private MongoDatabase database;
+
+    @Before
+    public void setUp() {
+        // sku already has a checkpoint, kohlsstyle is inserted by another instance at the same time.
+        BsonDocument skuSequence = new BsonDocument(Constants.ID, new BsonString("sku" + Constants.TOKEN))
+                .append(Constants.TOKEN, new BsonDocument("_data", new BsonString("1")));
+        Map<String, Function<Object[], Object>> findAnswers = new HashMap<>();
+        findAnswers.put("iterator", args -> cursorOf(Collections.singletonList(skuSequence).iterator()));
+        FindIterable<BsonDocument> found = stub(FindIterable.class, findAnswers);
+        Map<String, Function<Object[], Object>> sequenceAnswers = new HashMap<>();
+        sequenceAnswers.put("find", args -> found);
+        sequenceAnswers.put("insertMany", args -> {
+            requests.add("insertMany");
+            @SuppressWarnings("unchecked")
+            List<BsonDocument> documents = (List<BsonDocument>) args[0];
+            inserted.addAll(documents);
+            int index = 0;
+            while (!documents.get(index).getString(Constants.ID).getValue().startsWith("kohlsstyle")) {
+                index++;
+            }
+            BulkWriteError duplicate = new BulkWriteError(11000, "E11000 duplicate key", new BsonDocument(), index);
+            throw new MongoBulkWriteException(BulkWriteResult.acknowledged(documents.size() - 1, 0, 0, 0,
+                    Collections.emptyList()), Collections.singletonList(duplicate), null, new ServerAddress());
+        });
+        MongoCollection<BsonDocument> sequences = stub(MongoCollection.class, sequenceAnswers);
+
+        Map<String, Function<Object[], Object>> namesAnswers = new HashMap<>();
+        namesAnswers.put("into", args -> args[0]);
+        MongoIterable<String> names = stub(MongoIterable.class, namesAnswers);
+        Map<String, Function<Object[], Object>> databaseAnswers = new HashMap<>();
+        databaseAnswers.put("listCollectionNames", args -> names);
+        databaseAnswers.put("createCollection", args -> requests.add("createCollection " + args[0]));
+        databaseAnswers.put("getCollection", args -> Constants.SEQUENCE.equals(args[0]) ? sequences
+                : versions((String) args[0]));
+        database = stub(MongoDatabase.class, databaseAnswers);
+    }
+
+    @Test
+    public void handsOverEachCollectionOnceItsVersionCollectionIsReady() {
+        new ChangeStreamBootstrap(database, new VersionBuckets(database), 2).run(COLLECTIONS,
+                (collectionName, sequence) -> {
+                    requests.add("ready " + collectionName);
+                    if (sequence != null) {
+                        ready.put(collectionName, sequence);
+                    }
+                    readyThreads.put(collectionName, Thread.currentThread().getName());
+                });
+
+        // The sequence collection and the missing sequence documents come first, in one batch.
+        assertEquals(Arrays.asList("createCollection " + Constants.SEQUENCE, "insertMany"), requests.subList(0, 2));
+        assertEquals(2, inserted.size());
+        for (String collectionName : COLLECTIONS) {
+            String versions = collectionName + "_coll";
+            int created = requests.indexOf("createCollection " + versions);
+            int indexed = requests.indexOf("createIndex " + versions);
+            int handedOver = requests.indexOf("ready " + collectionName);
+            assertTrue(requests.toString(), 1 < created && created < indexed && indexed < handedOver);
+            assertTrue(readyThreads.get(collectionName).matches("cs-bootstrap-[12]"));
+        }
+        assertEquals(new BsonString("1"), ready.get("sku").getDocument(Constants.TOKEN).get("_data"));
+        assertEquals(new BsonDocument(Constants.ID, new BsonString("brand" + Constants.TOKEN)), ready.get("brand"));
+        // Read from the document of the other instance once the cursor opens.
+        assertNull(ready.get("kohlsstyle"));
+    }
+
+    private MongoCollection<BsonDocument> versions(String collectionName) {
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("createIndex", args -> {
+            requests.add("createIndex " + collectionName);
+            return "index";
+        });
+        return stub(MongoCollection.class, answers);
+    }
+}
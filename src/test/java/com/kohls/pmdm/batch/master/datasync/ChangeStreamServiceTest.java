@@ -0,0 +1,121 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.ChangeStreamFilter;
+import com.mongodb.MongoException;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import com.mongodb.client.model.changestream.UpdateDescription;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import static com.kohls.pmdm.batch.master.datasync.DriverStubs.cursorOf;
+import static com.kohls.pmdm.batch.master.datasync.DriverStubs.render;
+import static com.kohls.pmdm.batch.master.datasync.DriverStubs.stub;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Looks up the documents of the update events of a round against a stub collection.
+ */
+public class ChangeStreamServiceTest {
+
+    private static final ChangeStreamFilter FILTER = ChangeStreamFilter.builder()
+            .operationTypes(OperationType.INSERT, OperationType.UPDATE)
+            .fullDocumentLookup(ChangeStreamFilter.FullDocumentLookup.BATCH, "skuStatus")
+            .build();
+
+    private final List<BsonDocument> filters = new ArrayList<>();
+    private final List<BsonDocument> projections = new ArrayList<>();
+    private final AtomicBoolean failFind = new AtomicBoolean();
+    private final ChangeStreamService service = new ChangeStreamService();
+
+    @Before
+    public void setUp() {
+        List<RawBsonDocument> documents = Arrays.asList(RawBsonDocument.parse("{_id: 1, skuStatus: 'A'}"),
+                RawBsonDocument.parse("{_id: 2, skuStatus: 'I'}"));
+        Map<String, Function<Object[], Object>> findAnswers = new HashMap<>();
+        Map<String, Function<Object[], Object>> collectionAnswers = new HashMap<>();
+        FindIterable<RawBsonDocument> found = stub(FindIterable.class, findAnswers);
+        findAnswers.put("projection", args -> {
+            projections.add(render((Bson) args[0]));
+            return found;
+        });
+        findAnswers.put("iterator", args -> cursorOf(documents.iterator()));
+        collectionAnswers.put("find", args -> {
+            if (failFind.get()) {
+                throw new MongoException("Connection reset");
+            }
+            filters.add(render((Bson) args[0]));
+            return found;
+        });
+        MongoCollection<RawBsonDocument> collection = stub(MongoCollection.class, collectionAnswers);
+        Map<String, Function<Object[], Object>> databaseAnswers = new HashMap<>();
+        databaseAnswers.put("getCollection", args -> collection);
+        service.setMongoDatabase(stub(MongoDatabase.class, databaseAnswers));
+    }
+
+    @Test
+    public void looksUpEachDocumentOnceWithTheFullDocumentFields() {
+        ChangeStreamDocument<RawBsonDocument> insert = event(1, 3, OperationType.INSERT);
+        List<ChangeStreamDocument<RawBsonDocument>> events = service.lookupFullDocuments("sku", FILTER,
+                Arrays.asList(event(1, 1, OperationType.UPDATE), insert, event(2, 2, OperationType.UPDATE),
+                        event(3, 1, OperationType.UPDATE)));
+
+        // The two updates of document 1 share one lookup, the insert carries its own document.
+        assertEquals(Collections.singletonList(BsonDocument.parse("{_id: {$in: [1, 2]}}")), filters);
+        assertEquals(Collections.singletonList(BsonDocument.parse("{skuStatus: 1}")), projections);
+        assertEquals(new BsonString("A"), events.get(0).getFullDocument().get("skuStatus"));
+        assertSame(insert, events.get(1));
+        assertEquals(new BsonString("I"), events.get(2).getFullDocument().get("skuStatus"));
+        assertEquals(new BsonString("A"), events.get(3).getFullDocument().get("skuStatus"));
+        assertEquals(token(3), events.get(3).getResumeToken());
+        assertEquals(new BsonInt32(3), events.get(3).getUpdateDescription().getUpdatedFields().get("v"));
+    }
+
+    @Test
+    public void keepsTheUpdatedFieldsOfDocumentsNotFound() {
+        List<ChangeStreamDocument<RawBsonDocument>> events = service.lookupFullDocuments("sku", FILTER,
+                Collections.singletonList(event(1, 4, OperationType.UPDATE)));
+        assertNull(events.get(0).getFullDocument());
+
+        failFind.set(true);
+        List<ChangeStreamDocument<RawBsonDocument>> updates = Collections.singletonList(
+                event(1, 1, OperationType.UPDATE));
+        assertSame(updates, service.lookupFullDocuments("sku", FILTER, updates));
+    }
+
+    private static ChangeStreamDocument<RawBsonDocument> event(int i, int id, OperationType operationType) {
+        RawBsonDocument fullDocument = operationType == OperationType.INSERT
+                ? RawBsonDocument.parse("{_id: " + id + ", skuStatus: 'N'}") : null;
+        UpdateDescription updateDescription = operationType == OperationType.UPDATE
+                ? new UpdateDescription(null, new BsonDocument("v", new BsonInt32(i))) : null;
+        return new ChangeStreamDocument<>(token(i),
+                new BsonDocument("db", new BsonString("pmdm")).append("coll", new BsonString("sku")), fullDocument,
+                BsonDocument.parse("{_id: " + id + "}"), new BsonTimestamp(1790000000, i), operationType,
+                updateDescription);
+    }
+
+    private static BsonDocument token(int i) {
+        return new BsonDocument("_data", new BsonString(Integer.toString(i)));
+    }
+}
@@ -0,0 +1,173 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+import org.bson.RawBsonDocument;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static com.kohls.pmdm.batch.master.datasync.DriverStubs.stub;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the rounds of a watcher one at a time on a manual scheduler, against a service whose rounds fail on demand.
+ */
+public class ChangeStreamWatcherTest {
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Deque<Runnable> scheduled = new ArrayDeque<>();
+    private final List<Long> delays = new ArrayList<>();
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+    private final AtomicInteger failingRounds = new AtomicInteger();
+    private final AtomicInteger rounds = new AtomicInteger();
+    private final AtomicInteger openedCursors = new AtomicInteger();
+    private final AtomicInteger closedCursors = new AtomicInteger();
+    private final AtomicInteger closedSessions = new AtomicInteger();
+    private final AtomicInteger discards = new AtomicInteger();
+    private ChangeStreamWatcher watcher;
+
+    @Before
+    public void setUp() {
+        Map<String, Function<Object[], Object>> cursorAnswers = new HashMap<>();
+        cursorAnswers.put("close", args -> closedCursors.incrementAndGet());
+        MongoCursor<ChangeStreamDocument<RawBsonDocument>> cursor = stub(MongoCursor.class, cursorAnswers);
+        Map<String, Function<Object[], Object>> sessionAnswers = new HashMap<>();
+        sessionAnswers.put("isCausallyConsistent", args -> true);
+        sessionAnswers.put("close", args -> closedSessions.incrementAndGet());
+        ClientSession session = stub(ClientSession.class, sessionAnswers);
+        ChangeStreamService service = new ChangeStreamService() {
+            @Override
+            public ClientSession startSession() {
+                return session;
+            }
+
+            @Override
+            MongoCursor<ChangeStreamDocument<RawBsonDocument>> getCursor(String collectionName,
+                                                                        ClientSession session) {
+                openedCursors.incrementAndGet();
+                return cursor;
+            }
+
+            @Override
+            int updateVersionCollection(ChangeStreamWatcher watcher, int maxEvents) {
+                if (failingRounds.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                    throw new MongoException("Connection reset");
+                }
+                rounds.incrementAndGet();
+                return 0;
+            }
+
+            @Override
+            void discardConflatedUpdates(String collectionName) {
+                discards.incrementAndGet();
+            }
+
+            @Override
+            void resetCheckpoint(String collectionName) {
+            }
+        };
+
+        Map<String, Function<Object[], Object>> futureAnswers = new HashMap<>();
+        futureAnswers.put("cancel", args -> cancelled.compareAndSet(false, true));
+        ScheduledFuture<?> future = stub(ScheduledFuture.class, futureAnswers);
+        Map<String, Function<Object[], Object>> schedulerAnswers = new HashMap<>();
+        schedulerAnswers.put("schedule", args -> {
+            scheduled.add((Runnable) args[0]);
+            delays.add(((TimeUnit) args[2]).toMillis((Long) args[1]));
+            return future;
+        });
+        ScheduledExecutorService scheduler = stub(ScheduledExecutorService.class, schedulerAnswers);
+
+        ResumeTokenTracker tracker = new ResumeTokenTracker();
+        watcher = new ChangeStreamWatcher("sku", service, scheduler, new ExponentialBackoff(10, 40), tracker,
+                new ProcessingLanes("sku", executor, 1, 10), new VersionBatcher(10, Long.MAX_VALUE, 1000),
+                new VersionWriter("sku", service, tracker, executor, 4), 100, 5);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void reopensTheStreamAfterAnError() {
+        failingRounds.set(1);
+        watcher.start();
+        runScheduled();
+        assertEquals(1, watcher.getConsecutiveFailures());
+        assertEquals(1, closedCursors.get());
+        assertEquals(1, closedSessions.get());
+        assertEquals(1, discards.get());
+
+        runScheduled();
+        assertEquals(2, openedCursors.get());
+        assertEquals(1, rounds.get());
+        assertEquals(0, watcher.getConsecutiveFailures());
+        // The stream is kept open between successful rounds.
+        runScheduled();
+        assertEquals(2, openedCursors.get());
+        assertEquals(1, closedCursors.get());
+    }
+
+    @Test
+    public void backsOffExponentiallyUpToTheMaximum() {
+        failingRounds.set(4);
+        watcher.start();
+        for (int i = 0; i < 5; i++) {
+            runScheduled();
+        }
+
+        assertEquals(0L, (long) delays.get(0));
+        // Each delay is jittered between half and all of 10, 20, 40 and 40 ms.
+        List<Long> maxDelays = Arrays.asList(10L, 20L, 40L, 40L);
+        for (int i = 0; i < maxDelays.size(); i++) {
+            long delay = delays.get(i + 1);
+            assertTrue("Delay " + delay, delay >= maxDelays.get(i) / 2 && delay <= maxDelays.get(i));
+        }
+        assertEquals(0L, (long) delays.get(5));
+        assertEquals(0, watcher.getConsecutiveFailures());
+    }
+
+    @Test
+    public void stopsRunningRounds() {
+        watcher.start();
+        runScheduled();
+        assertEquals(1, rounds.get());
+
+        watcher.stop();
+        assertFalse(watcher.isRunning());
+        assertTrue(cancelled.get());
+        assertEquals(1, closedCursors.get());
+
+        // A round that was already due does nothing and is not rescheduled.
+        runScheduled();
+        assertEquals(1, rounds.get());
+        assertTrue(scheduled.isEmpty());
+    }
+
+    private void runScheduled() {
+        scheduled.poll().run();
+    }
+}
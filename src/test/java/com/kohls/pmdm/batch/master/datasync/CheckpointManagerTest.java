@@ -0,0 +1,177 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.CommonProperties;
+import com.kohls.pmdm.batch.master.common.Constants;
+import com.mongodb.MongoException;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static com.kohls.pmdm.batch.master.datasync.DriverStubs.render;
+import static com.kohls.pmdm.batch.master.datasync.DriverStubs.stub;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Commits batches and checkpoints against a stub replica set.
+ */
+public class CheckpointManagerTest {
+
+    private final List<BsonDocument> storedSequences = new ArrayList<>();
+    private final List<BsonDocument> sequenceFilters = new ArrayList<>();
+    private final List<BsonDocument> notified = new ArrayList<>();
+    private final List<String> sessionCalls = new ArrayList<>();
+    private final AtomicInteger writtenVersions = new AtomicInteger();
+    private final AtomicInteger isMasterChecks = new AtomicInteger();
+    private final AtomicBoolean failCommit = new AtomicBoolean();
+    private final AtomicBoolean takenOver = new AtomicBoolean();
+    private CheckpointManager manager;
+    private ClientSession session;
+
+    @Before
+    public void setUp() {
+        Map<String, Function<Object[], Object>> sequenceAnswers = new HashMap<>();
+        sequenceAnswers.put("replaceOne", args -> {
+            sequenceFilters.add(render((Bson) args[1]));
+            if (takenOver.get()) {
+                throw new MongoException(11000, "E11000 duplicate key error");
+            }
+            storedSequences.add((BsonDocument) args[2]);
+            return null;
+        });
+        MongoCollection<BsonDocument> sequences = stub(MongoCollection.class, sequenceAnswers);
+        Map<String, Function<Object[], Object>> versionAnswers = new HashMap<>();
+        versionAnswers.put("bulkWrite", args -> {
+            writtenVersions.addAndGet(((List<?>) args[1]).size());
+            return null;
+        });
+        MongoCollection<RawBsonDocument> versions = stub(MongoCollection.class, versionAnswers);
+        Map<String, Function<Object[], Object>> databaseAnswers = new HashMap<>();
+        databaseAnswers.put("getCollection", args -> Constants.SEQUENCE.equals(args[0]) ? sequences : versions);
+        databaseAnswers.put("runCommand", args -> {
+            isMasterChecks.incrementAndGet();
+            return new Document("setName", "rs0").append("maxWireVersion", 7);
+        });
+
+        AtomicBoolean inTransaction = new AtomicBoolean();
+        Map<String, Function<Object[], Object>> sessionAnswers = new HashMap<>();
+        sessionAnswers.put("startTransaction", args -> {
+            inTransaction.set(true);
+            return null;
+        });
+        sessionAnswers.put("commitTransaction", args -> {
+            if (failCommit.get()) {
+                throw new MongoException(251, "Transaction has been aborted");
+            }
+            inTransaction.set(false);
+            return null;
+        });
+        sessionAnswers.put("abortTransaction", args -> {
+            inTransaction.set(false);
+            return null;
+        });
+        sessionAnswers.put("hasActiveTransaction", args -> inTransaction.get());
+        session = stub(ClientSession.class, sessionAnswers, sessionCalls);
+
+        manager = new CheckpointManager(new ChangeStreamMetrics(new SimpleMeterRegistry()));
+        manager.commonProperties = new CommonProperties() {
+            @Override
+            public int getCheckpointMaxBatches() {
+                return 3;
+            }
+
+            @Override
+            public long getCheckpointMaxDelayMillis() {
+                return 60000;
+            }
+        };
+        manager.setMongoDatabase(stub(MongoDatabase.class, databaseAnswers));
+        manager.setCheckpointListener((collectionName, resumeToken) -> notified.add(resumeToken));
+    }
+
+    @Test
+    public void coalescesTheCheckpointsOfBatches() {
+        for (int i = 1; i <= 3; i++) {
+            manager.commit("sku", versions(i), token(i), null, session);
+        }
+
+        assertEquals(3, writtenVersions.get());
+        assertEquals(1, storedSequences.size());
+        assertEquals(token(3), storedSequences.get(0).getDocument(Constants.TOKEN));
+        // The last batch and the checkpoint went into one transaction.
+        assertEquals(1, Collections.frequency(sessionCalls, "commitTransaction"));
+        assertEquals(Collections.singletonList(token(3)), notified);
+    }
+
+    @Test
+    public void storesTheCheckpointAgainOnceItsTransactionRolledBack() {
+        manager.commit("sku", versions(1), token(1), null, session);
+        manager.commit("sku", versions(2), token(2), null, session);
+        failCommit.set(true);
+        try {
+            manager.commit("sku", versions(3), token(3), null, session);
+            fail("Commit should fail");
+        } catch (MongoException expected) {
+            // The writer reopens the change stream.
+        }
+        assertTrue(sessionCalls.contains("abortTransaction"));
+        assertTrue(notified.isEmpty());
+
+        // Still pending, the next commit stores it, and the support for transactions is checked again.
+        failCommit.set(false);
+        manager.commit("sku", versions(4), null, null, session);
+        assertEquals(token(3), storedSequences.get(storedSequences.size() - 1).getDocument(Constants.TOKEN));
+        assertEquals(Collections.singletonList(token(3)), notified);
+        assertEquals(2, isMasterChecks.get());
+    }
+
+    @Test
+    public void refusesTheCheckpointOfALeaseTakenOver() {
+        manager.setLeaseToken("sku", 4L);
+        takenOver.set(true);
+        manager.commit("sku", versions(1), token(1), null, session);
+        manager.commit("sku", versions(2), token(2), null, session);
+        try {
+            manager.commit("sku", versions(3), token(3), null, session);
+            fail("Checkpoint should be fenced");
+        } catch (IllegalStateException expected) {
+            assertTrue(expected.getMessage().contains("taken over"));
+        }
+
+        BsonDocument filter = sequenceFilters.get(0);
+        assertEquals(new BsonInt64(4), filter.getArray("$or").get(1).asDocument().getDocument(Constants.LEASE_TOKEN)
+                .get("$lte"));
+        assertTrue(sessionCalls.contains("abortTransaction"));
+        assertTrue(storedSequences.isEmpty());
+        assertTrue(notified.isEmpty());
+    }
+
+    private static List<RawBsonDocument> versions(int i) {
+        return Collections.singletonList(RawBsonDocument.parse("{_id: {_data: '" + i + "'}, v: " + i + "}"));
+    }
+
+    private static BsonDocument token(int i) {
+        return new BsonDocument("_data", new BsonString(Integer.toString(i)));
+    }
+}
@@ -0,0 +1,253 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.CommonProperties;
+import com.kohls.pmdm.batch.master.common.Constants;
+import com.mongodb.MongoException;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.RawBsonDocument;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import static com.kohls.pmdm.batch.master.datasync.DriverStubs.cursorOf;
+import static com.kohls.pmdm.batch.master.datasync.DriverStubs.stub;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fans a database change stream out to the collections, against a stub database whose stream replays an in-memory
+ * oplog.
+ */
+public class DatabaseChangeEventSourceTest {
+
+    private static final BsonTimestamp ATTACH_AT = new BsonTimestamp(1790090000, 1);
+
+    private final List<ChangeStreamDocument<RawBsonDocument>> oplog = new CopyOnWriteArrayList<>();
+    private final List<String> opened = new CopyOnWriteArrayList<>();
+    private final AtomicReference<BsonDocument> storedSequence = new AtomicReference<>();
+    private final AtomicBoolean rolledOff = new AtomicBoolean();
+    private final AtomicInteger failures = new AtomicInteger();
+    private DatabaseChangeEventSource source;
+
+    @Before
+    public void setUp() {
+        Map<String, Function<Object[], Object>> sequenceFindAnswers = new HashMap<>();
+        sequenceFindAnswers.put("first", args -> storedSequence.get());
+        FindIterable<BsonDocument> sequenceFind = stub(FindIterable.class, sequenceFindAnswers);
+        Map<String, Function<Object[], Object>> sequenceAnswers = new HashMap<>();
+        sequenceAnswers.put("find", args -> sequenceFind);
+        sequenceAnswers.put("replaceOne", args -> {
+            storedSequence.set((BsonDocument) args[1]);
+            return null;
+        });
+        MongoCollection<BsonDocument> sequences = stub(MongoCollection.class, sequenceAnswers);
+
+        Map<String, Function<Object[], Object>> databaseAnswers = new HashMap<>();
+        MongoDatabase database = stub(MongoDatabase.class, databaseAnswers);
+        databaseAnswers.put("getName", args -> "pmdm");
+        databaseAnswers.put("withReadConcern", args -> database);
+        databaseAnswers.put("watch", args -> changeStream());
+        databaseAnswers.put("runCommand", args -> new BsonDocument("operationTime", ATTACH_AT));
+        databaseAnswers.put("getCollection", args -> Constants.SEQUENCE.equals(args[0]) ? sequences
+                : scannedCollection((String) args[0]));
+
+        source = new DatabaseChangeEventSource(database, Arrays.asList("sku", "kohlsstyle"), new CommonProperties() {
+            @Override
+            public long getWatcherMaxAwaitMillis() {
+                return 20;
+            }
+
+            @Override
+            public long getWatcherBackoffInitialMillis() {
+                return 1;
+            }
+
+            @Override
+            public long getWatcherBackoffMaxMillis() {
+                return 10;
+            }
+
+            @Override
+            public int getCatchUpParallelism() {
+                return 1;
+            }
+        });
+    }
+
+    @Test
+    public void replaysOnlyTheCollectionReopened() {
+        oplog.addAll(Arrays.asList(event(1, "sku"), event(2, "kohlsstyle"), event(3, "sku")));
+        MongoCursor<ChangeStreamDocument<RawBsonDocument>> sku = source.open("sku", null);
+        MongoCursor<ChangeStreamDocument<RawBsonDocument>> style = source.open("kohlsstyle", null);
+        assertEquals(Arrays.asList(token(1), token(3)), tokens(sku, 2));
+        assertEquals(Collections.singletonList(token(2)), tokens(style, 1));
+
+        // The watcher of sku failed before checkpointing, its events are handed out again.
+        sku = source.open("sku", null);
+        assertEquals(Arrays.asList(token(1), token(3)), tokens(sku, 2));
+        assertEquals(2, opened.size());
+        assertNull(style.tryNext());
+    }
+
+    @Test
+    public void movesTheGlobalTokenPastEventsCheckpointedByAllCollections() {
+        oplog.addAll(Arrays.asList(event(1, "sku"), event(2, "kohlsstyle"), event(3, "sku")));
+        MongoCursor<ChangeStreamDocument<RawBsonDocument>> sku = source.open("sku", null);
+        MongoCursor<ChangeStreamDocument<RawBsonDocument>> style = source.open("kohlsstyle", null);
+        tokens(sku, 2);
+        tokens(style, 1);
+
+        source.checkpointed("sku", token(3));
+        assertEquals(token(1), storedSequence.get().getDocument(Constants.TOKEN));
+        source.checkpointed("kohlsstyle", token(2));
+        assertEquals(token(3), storedSequence.get().getDocument(Constants.TOKEN));
+        assertEquals(new BsonTimestamp(1790000000, 3), storedSequence.get().getTimestamp(Constants.CLUSTER_TIME));
+    }
+
+    @Test
+    public void reopensTheStreamOnceItFails() {
+        oplog.addAll(Arrays.asList(event(1, "sku"), event(2, "sku")));
+        failures.set(1);
+        MongoCursor<ChangeStreamDocument<RawBsonDocument>> sku = source.open("sku", null);
+        MongoCursor<ChangeStreamDocument<RawBsonDocument>> style = source.open("kohlsstyle", null);
+
+        // The cursors of the collections carry on, the events read before the failure are not handed out again.
+        assertEquals(Arrays.asList(token(1), token(2)), tokens(sku, 2));
+        assertNull(sku.tryNext());
+        assertNull(style.tryNext());
+        assertEquals(2, opened.size());
+    }
+
+    @Test
+    public void scansTheCollectionsWhenTheClusterTimeIsGone() {
+        storedSequence.set(new BsonDocument(Constants.TOKEN, token(0))
+                .append(Constants.CLUSTER_TIME, new BsonTimestamp(1790000000, 0)));
+        rolledOff.set(true);
+        oplog.add(event(4, "sku"));
+
+        MongoCursor<ChangeStreamDocument<RawBsonDocument>> sku = source.open("sku", null);
+        ChangeStreamDocument<RawBsonDocument> scanned = next(sku);
+        assertTrue(CatchUpScan.isCatchUpToken(scanned.getResumeToken()));
+        assertEquals(BsonDocument.parse("{_id: 'sku-1'}"), scanned.getDocumentKey());
+        assertEquals(Collections.singletonList(token(4)), tokens(sku, 1));
+        assertTrue(opened.contains("resumeAfter " + token(0)));
+        assertTrue(opened.contains("startAtOperationTime " + ATTACH_AT));
+    }
+
+    /**
+     * Opens a stream over the oplog, from the start, after a resume token or at a cluster time. Fails to resume or
+     * start once the oplog has rolled off, and fails reading as often as {@link #failures} says.
+     */
+    private ChangeStreamIterable<RawBsonDocument> changeStream() {
+        AtomicInteger position = new AtomicInteger();
+        AtomicReference<String> openedBy = new AtomicReference<>("watch");
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        ChangeStreamIterable<RawBsonDocument> changeStream = stub(ChangeStreamIterable.class, answers);
+        answers.put("maxAwaitTime", args -> changeStream);
+        answers.put("resumeAfter", args -> {
+            opened.add("resumeAfter " + args[0]);
+            if (rolledOff.get()) {
+                throw new MongoException(286, "Resume token no longer in the oplog");
+            }
+            for (int i = 0; i < oplog.size(); i++) {
+                if (oplog.get(i).getResumeToken().equals(args[0])) {
+                    position.set(i + 1);
+                }
+            }
+            openedBy.set(null);
+            return changeStream;
+        });
+        answers.put("startAtOperationTime", args -> {
+            opened.add("startAtOperationTime " + args[0]);
+            if (rolledOff.get() && !ATTACH_AT.equals(args[0])) {
+                throw new MongoException(286, "Cluster time no longer in the oplog");
+            }
+            openedBy.set(null);
+            return changeStream;
+        });
+        answers.put("iterator", args -> {
+            if (openedBy.get() != null) {
+                opened.add(openedBy.get());
+            }
+            Map<String, Function<Object[], Object>> cursorAnswers = new HashMap<>();
+            cursorAnswers.put("tryNext", a -> {
+                if (position.get() > 0 && failures.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                    throw new MongoException("Connection reset");
+                }
+                return position.get() < oplog.size() ? oplog.get(position.getAndIncrement()) : null;
+            });
+            cursorAnswers.put("close", a -> null);
+            return stub(MongoCursor.class, cursorAnswers);
+        });
+        return changeStream;
+    }
+
+    /**
+     * A collection holding one document modified since the checkpoint per collection.
+     */
+    private MongoCollection<RawBsonDocument> scannedCollection(String collectionName) {
+        AtomicBoolean handedOut = new AtomicBoolean();
+        Map<String, Function<Object[], Object>> findAnswers = new HashMap<>();
+        findAnswers.put("iterator", args -> cursorOf(handedOut.getAndSet(true)
+                ? Collections.<RawBsonDocument>emptyIterator()
+                : Collections.singletonList(RawBsonDocument.parse("{_id: '" + collectionName + "-1'}")).iterator()));
+        FindIterable<RawBsonDocument> found = stub(FindIterable.class, findAnswers);
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getNamespace", args -> new MongoNamespace("pmdm", collectionName));
+        answers.put("find", args -> found);
+        return stub(MongoCollection.class, answers);
+    }
+
+    private static List<BsonDocument> tokens(MongoCursor<ChangeStreamDocument<RawBsonDocument>> cursor, int count) {
+        List<BsonDocument> tokens = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            tokens.add(next(cursor).getResumeToken());
+        }
+        return tokens;
+    }
+
+    private static ChangeStreamDocument<RawBsonDocument> next(
+            MongoCursor<ChangeStreamDocument<RawBsonDocument>> cursor) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        ChangeStreamDocument<RawBsonDocument> event;
+        while ((event = cursor.tryNext()) == null) {
+            assertTrue("No event routed in time", System.nanoTime() < deadline);
+        }
+        return event;
+    }
+
+    private static ChangeStreamDocument<RawBsonDocument> event(int i, String collectionName) {
+        return new ChangeStreamDocument<>(token(i),
+                new BsonDocument("db", new BsonString("pmdm")).append("coll", new BsonString(collectionName)),
+                RawBsonDocument.parse("{_id: " + i + "}"), BsonDocument.parse("{_id: " + i + "}"),
+                new BsonTimestamp(1790000000, i), OperationType.INSERT, null);
+    }
+
+    private static BsonDocument token(int i) {
+        return new BsonDocument("_data", new BsonString(Integer.toString(i)));
+    }
+}
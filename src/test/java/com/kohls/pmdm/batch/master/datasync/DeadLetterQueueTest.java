@@ -0,0 +1,155 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.CommonProperties;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import com.mongodb.client.model.changestream.UpdateDescription;
+
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import static com.kohls.pmdm.batch.master.datasync.DriverStubs.cursorOf;
+import static com.kohls.pmdm.batch.master.datasync.DriverStubs.render;
+import static com.kohls.pmdm.batch.master.datasync.DriverStubs.stub;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeadLetterQueueTest {
+
+    @Test
+    public void storesEventsAsRawBson() {
+        ChangeStreamDocument<RawBsonDocument> event = new ChangeStreamDocument<>(
+                BsonDocument.parse("{_data: '825B'}"), BsonDocument.parse("{db: 'pmdm', coll: 'sku'}"),
+                RawBsonDocument.parse("{_id: 1, skuStatus: 'ACTIVE'}"), BsonDocument.parse("{_id: 1}"),
+                new BsonTimestamp(1790000000, 3), OperationType.UPDATE,
+                new UpdateDescription(Collections.singletonList("colorCode"),
+                        BsonDocument.parse("{skuStatus: 'ACTIVE', 'brand.csId': 'brand-1'}")));
+
+        BsonDocument deadLetter = new BsonDocument(DeadLetterQueue.EVENT, DeadLetterQueue.encode(event));
+        ChangeStreamDocument<RawBsonDocument> decoded = DeadLetterQueue.getEvent(deadLetter);
+        assertEquals(event.getResumeToken(), decoded.getResumeToken());
+        assertEquals(event.getDocumentKey(), decoded.getDocumentKey());
+        assertEquals(event.getClusterTime(), decoded.getClusterTime());
+        assertEquals(event.getFullDocument(), decoded.getFullDocument());
+        assertEquals(event.getUpdateDescription(), decoded.getUpdateDescription());
+        assertEquals(OperationType.UPDATE, decoded.getOperationType());
+    }
+
+    @Test
+    public void deletesRetriedAndBacksOffUntilFailed() {
+        List<BsonDocument> due = Arrays.asList(deadLetter(1, 0), deadLetter(2, 0), deadLetter(3, 2));
+        Map<Object, BsonDocument> deleted = new ConcurrentHashMap<>();
+        Map<Object, BsonDocument> updated = new ConcurrentHashMap<>();
+
+        Map<String, Function<Object[], Object>> findAnswers = new HashMap<>();
+        FindIterable<BsonDocument> found = stub(FindIterable.class, findAnswers);
+        findAnswers.put("sort", args -> found);
+        findAnswers.put("limit", args -> found);
+        findAnswers.put("iterator", args -> cursorOf(due.iterator()));
+        Map<String, Function<Object[], Object>> collectionAnswers = new HashMap<>();
+        collectionAnswers.put("createIndex", args -> "index");
+        collectionAnswers.put("find", args -> found);
+        collectionAnswers.put("deleteOne", args -> deleted.put(render((Bson) args[0]).get("_id"), new BsonDocument()));
+        collectionAnswers.put("updateOne", args -> updated.put(render((Bson) args[0]).get("_id"),
+                render((Bson) args[1]).getDocument("$set")));
+        MongoCollection<BsonDocument> collection = stub(MongoCollection.class, collectionAnswers);
+        MongoDatabase database = stub(MongoDatabase.class,
+                Collections.<String, Function<Object[], Object>>singletonMap("getCollection", args -> collection));
+
+        DeadLetterQueue queue = new DeadLetterQueue(new ChangeStreamMetrics(new SimpleMeterRegistry()),
+                (collectionName, deadLetter) -> {
+                    if (deadLetter.getInt32("_id").getValue() != 1) {
+                        throw new IllegalStateException("Still failing");
+                    }
+                });
+        queue.commonProperties = new CommonProperties() {
+            @Override
+            public long getDeadLetterRetryIntervalMillis() {
+                return 1000;
+            }
+
+            @Override
+            public long getDeadLetterBackoffMaxMillis() {
+                return 60000;
+            }
+
+            @Override
+            public int getDeadLetterMaxAttempts() {
+                return 3;
+            }
+        };
+        queue.setMongoDatabase(database);
+        queue.start(Collections.<String>emptyList());
+        long before = System.currentTimeMillis();
+        try {
+            queue.retryDue("sku");
+        } finally {
+            queue.shutdown();
+        }
+
+        assertEquals(Collections.singleton(new BsonInt32(1)), deleted.keySet());
+        BsonDocument retried = updated.get(new BsonInt32(2));
+        assertEquals(1, retried.getInt32(DeadLetterQueue.ATTEMPTS).getValue());
+        assertEquals(DeadLetterQueue.PENDING, retried.getString(DeadLetterQueue.STATUS).getValue());
+        // Backs off exponentially from the retry interval.
+        long nextAttemptAt = retried.getDateTime(DeadLetterQueue.NEXT_ATTEMPT_AT).getValue();
+        assertTrue(nextAttemptAt >= before + 2000 && nextAttemptAt <= System.currentTimeMillis() + 2000);
+        BsonDocument failed = updated.get(new BsonInt32(3));
+        assertEquals(3, failed.getInt32(DeadLetterQueue.ATTEMPTS).getValue());
+        assertEquals(DeadLetterQueue.FAILED, failed.getString(DeadLetterQueue.STATUS).getValue());
+        assertEquals(2, updated.size());
+    }
+
+    @Test
+    public void retriedEventLeavesTheFlattenedSkuStoreAlone() throws Exception {
+        ChangeStreamService service = new ChangeStreamService();
+        service.flattenedSkuStore = new FlattenedSkuStore();
+        service.checkpointManager = new CheckpointManager(service.getMetrics()) {
+            @Override
+            public void writeVersions(String collectionName, List<RawBsonDocument> documents) {
+            }
+        };
+        BsonDocument skuKey = BsonDocument.parse("{_id: {$oid: '" + new ObjectId().toHexString() + "'}}");
+        service.flattenedSkuStore.put("sku", skuKey,
+                BsonDocument.parse("{skuNumber: '12345678', skuStatus: 'INACTIVE'}"));
+
+        // Quarantined before the update that made the SKU inactive.
+        ChangeStreamDocument<RawBsonDocument> event = new ChangeStreamDocument<>(
+                BsonDocument.parse("{_data: '825B'}"), BsonDocument.parse("{db: 'pmdm', coll: 'sku'}"),
+                null, skuKey, new BsonTimestamp(1790000000, 3), OperationType.UPDATE,
+                new UpdateDescription(Collections.<String>emptyList(), BsonDocument.parse("{skuStatus: 'ACTIVE'}")));
+        BsonDocument deadLetter = new BsonDocument(DeadLetterQueue.STAGE, new BsonString(DeadLetterQueue.STAGE_EVENT))
+                .append(DeadLetterQueue.EVENT, DeadLetterQueue.encode(event));
+        service.retryDeadLetter("sku", deadLetter);
+
+        assertEquals(BsonDocument.parse("{skuNumber: '12345678', skuStatus: 'INACTIVE'}"),
+                service.flattenedSkuStore.getFlattenedRecord("sku", skuKey));
+    }
+
+    private static BsonDocument deadLetter(int id, int attempts) {
+        return new BsonDocument("_id", new BsonInt32(id))
+                .append(DeadLetterQueue.ATTEMPTS, new BsonInt32(attempts))
+                .append(DeadLetterQueue.NEXT_ATTEMPT_AT, new BsonDateTime(0))
+                .append(DeadLetterQueue.STATUS, new BsonString(DeadLetterQueue.PENDING));
+    }
+}
@@ -0,0 +1,67 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCursor;
+
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Stubs of the MongoDB driver interfaces for unit tests, answering calls by method name.
+ */
+public final class DriverStubs {
+
+    private DriverStubs() {
+    }
+
+    public static <T> T stub(Class<?> type, Map<String, Function<Object[], Object>> answers) {
+        return stub(type, answers, null);
+    }
+
+    /**
+     * Implements a driver interface with the given answers by method name, recording the name of every call in
+     * {@code calls} unless it is null. Methods without an answer throw.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T stub(Class<?> type, Map<String, Function<Object[], Object>> answers, List<String> calls) {
+        return (T) Proxy.newProxyInstance(DriverStubs.class.getClassLoader(), new Class<?>[] {type},
+                (proxy, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        return method.getName().equals("equals") ? proxy == args[0]
+                                : method.getName().equals("hashCode") ? System.identityHashCode(proxy)
+                                : type.getSimpleName();
+                    }
+                    if (calls != null) {
+                        calls.add(method.getName());
+                    }
+                    Function<Object[], Object> answer = answers.get(method.getName());
+                    if (answer == null) {
+                        throw new UnsupportedOperationException(type.getSimpleName() + "." + method.getName());
+                    }
+                    return answer.apply(args);
+                });
+    }
+
+    public static <T> MongoCursor<T> cursorOf(Iterator<T> iterator) {
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("hasNext", args -> iterator.hasNext());
+        answers.put("next", args -> iterator.next());
+        answers.put("tryNext", args -> iterator.hasNext() ? iterator.next() : null);
+        answers.put("close", args -> null);
+        return stub(MongoCursor.class, answers);
+    }
+
+    /**
+     * Renders a filter or update built with the driver helpers.
+     */
+    public static BsonDocument render(Bson bson) {
+        return bson.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+    }
+}
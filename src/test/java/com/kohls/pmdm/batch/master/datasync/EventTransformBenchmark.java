@@ -0,0 +1,196 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.kohls.pmdm.batch.master.common.CSObjectRetriever;
+import com.kohls.pmdm.batch.master.common.CachingCSObjectRetriever;
+import com.kohls.pmdm.batch.master.common.CommonProperties;
+import com.kohls.pmdm.batch.master.common.KafkaProducer;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import com.mongodb.client.model.changestream.UpdateDescription;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.bson.BsonArray;
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the per-event transform behind updateVersionCollection, of sendToKafkaTopics and of
+ * getFormattedSkuPkg, for synthetic insert, plain update, csId update and skuPackageShippingDimensionList update
+ * events. Kafka sends go to a {@link MockProducer} and csIds resolve from a warm cache, so only the CPU and allocation
+ * cost of the pipeline is measured. Run with the gc profiler (the default of the benchmark profile) to see the
+ * allocation per event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventTransformBenchmark {
+
+    private static final String INSERT = "insert";
+    private static final String UPDATE = "update";
+    private static final String CS_ID_UPDATE = "csIdUpdate";
+    private static final String PSD_UPDATE = "psdUpdate";
+
+    @Param({INSERT, UPDATE, CS_ID_UPDATE, PSD_UPDATE})
+    public String eventType;
+
+    private ChangeStreamService service;
+    private MockProducer<String, String> mockProducer;
+    private ChangeStreamWatcher watcher;
+    private ChangeStreamDocument<RawBsonDocument> event;
+    private Document kafkaDocument;
+    private Document skuPackageDocument;
+    private long sequence;
+
+    @Setup
+    public void setUp() {
+        // Outside of Spring Boot logback defaults to DEBUG on the console, which would dominate the measurement.
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.INFO);
+        service = new ChangeStreamService();
+        service.commonProperties = new CommonProperties() {
+            @Override
+            public boolean isEnableFSKUKafka() {
+                return true;
+            }
+        };
+        mockProducer = new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+        service.kafkaProducer = new KafkaProducer(mockProducer);
+        service.cSObjectRetriever = new CachingCSObjectRetriever(new BrandRetriever(), 1000, TimeUnit.HOURS.toMillis(1));
+
+        ResumeTokenTracker tracker = new ResumeTokenTracker();
+        VersionBatcher batcher = new VersionBatcher(Integer.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+        watcher = new ChangeStreamWatcher("sku", service, null, new ExponentialBackoff(100, 1000), tracker, null,
+                batcher, null, 500, 50);
+
+        event = newEvent(eventType);
+        BsonDocument payload = INSERT.equals(eventType) ? event.getFullDocument()
+                : event.getUpdateDescription().getUpdatedFields();
+        kafkaDocument = ChangeStreamService.toDocument(payload);
+        skuPackageDocument = ChangeStreamService.toDocument(newEvent(PSD_UPDATE).getUpdateDescription()
+                .getUpdatedFields());
+    }
+
+    @Benchmark
+    public int transform() {
+        ResumeTokenTracker.Ticket ticket = watcher.tracker.register(newResumeToken());
+        service.processEvent(watcher, event, ticket);
+        return complete();
+    }
+
+    @Benchmark
+    public int sendToKafkaTopics() {
+        ResumeTokenTracker.Ticket ticket = watcher.tracker.register(newResumeToken());
+        service.sendToKafkaTopics("sku", event.getDocumentKey(), kafkaDocument, PSD_UPDATE.equals(eventType), ticket);
+        ticket.release();
+        watcher.tracker.claimCompletedResumeToken();
+        int sent = mockProducer.history().size();
+        mockProducer.clear();
+        return sent;
+    }
+
+    @Benchmark
+    public Document formattedSkuPkg() {
+        return service.getFormattedSkuPkg(skuPackageDocument);
+    }
+
+    /**
+     * Stands in for the writer: takes the batched version, completes its ticket and drops the sent records.
+     */
+    private int complete() {
+        mockProducer.clear();
+        VersionBatcher.Batch batch = watcher.batcher.drain();
+        for (ResumeTokenTracker.Ticket ticket : batch.getTickets()) {
+            ticket.release();
+        }
+        watcher.tracker.claimCompletedResumeToken();
+        return batch.getDocuments().size();
+    }
+
+    private BsonDocument newResumeToken() {
+        return new BsonDocument("_data", new BsonString(Long.toHexString(++sequence)));
+    }
+
+    private static ChangeStreamDocument<RawBsonDocument> newEvent(String eventType) {
+        BsonDocument documentKey = new BsonDocument("_id", new BsonString("5b3f8e1c9d1e2a0001a1b2c3"));
+        BsonTimestamp clusterTime = new BsonTimestamp((int) (System.currentTimeMillis() / 1000), 1);
+        BsonDocument namespace = new BsonDocument("db", new BsonString("test")).append("coll", new BsonString("sku"));
+        BsonDocument resumeToken = new BsonDocument("_data", new BsonString("00"));
+        if (INSERT.equals(eventType)) {
+            BsonDocument sku = new BsonDocument("_id", documentKey.get("_id"))
+                    .append("skuNumber", new BsonString("12345678"))
+                    .append("skuStatus", new BsonString("ACTIVE"))
+                    .append("colorCode", new BsonInt32(410))
+                    .append("sizeCode", new BsonInt32(12))
+                    .append("skuPackageShippingDimensionList", new BsonArray(Collections.singletonList(
+                            newShippingDimension())));
+            return new ChangeStreamDocument<>(resumeToken, namespace, new RawBsonDocument(sku, new BsonDocumentCodec()),
+                    documentKey, clusterTime, OperationType.INSERT, null);
+        }
+        BsonDocument updatedFields;
+        if (UPDATE.equals(eventType)) {
+            updatedFields = new BsonDocument("skuStatus", new BsonString("INACTIVE"))
+                    .append("sizeCode", new BsonInt32(14));
+        } else if (CS_ID_UPDATE.equals(eventType)) {
+            updatedFields = new BsonDocument("brand.csId", new BsonString("brand-1001"));
+        } else {
+            updatedFields = new BsonDocument("skuPackageShippingDimensionList",
+                    new BsonArray(Collections.singletonList(newShippingDimension())));
+        }
+        return new ChangeStreamDocument<>(resumeToken, namespace, null, documentKey, clusterTime,
+                OperationType.UPDATE, new UpdateDescription(Collections.<String>emptyList(), updatedFields));
+    }
+
+    private static BsonDocument newShippingDimension() {
+        return new BsonDocument("skuNumber", new BsonString("12345678"))
+                .append("depthQuantity", new BsonInt32(10))
+                .append("heightQuantity", new BsonInt32(4))
+                .append("widthQuantity", new BsonInt32(7))
+                .append("weightQuantity", new BsonInt32(2))
+                .append("modifiedDateTime", new BsonDateTime(System.currentTimeMillis()))
+                .append("heightWidthDepthUnitOfMeasure", new BsonDocument("referenceValueShortDescription",
+                        new BsonString("IN")))
+                .append("weightUnitOfMeasure", new BsonDocument("referenceValueShortDescription",
+                        new BsonString("LB")));
+    }
+
+    private static class BrandRetriever extends CSObjectRetriever {
+        @Override
+        public Map<String, Object> getCSUpdatedEntities(Collection<String[]> keyValueStrings) {
+            Map<String, Object> entities = new HashMap<>();
+            for (String[] keyValueString : keyValueStrings) {
+                entities.put(String.join("-", keyValueString), new Document("_id", keyValueString[1])
+                        .append("brandName", "Sonoma").append("brandStatus", "ACTIVE"));
+            }
+            return entities;
+        }
+    }
+}
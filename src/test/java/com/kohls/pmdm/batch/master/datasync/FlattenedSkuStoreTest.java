@@ -0,0 +1,99 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class FlattenedSkuStoreTest {
+
+    private final FlattenedSkuStore store = new FlattenedSkuStore();
+
+    @Test
+    public void joinsSkuWithStyleAndProduct() {
+        BsonDocument skuKey = key(new ObjectId());
+        store.put("sku", skuKey, BsonDocument.parse("{skuNumber: '12345678', styleNumber: 42, skuStatus: 'ACTIVE',"
+                + " colorCode: 410}"));
+        store.put("kohlsstyle", key(new ObjectId()), BsonDocument.parse("{styleNumber: 42, styleName: 'Tee'}"));
+        store.update("sku", skuKey, BsonDocument.parse("{skuStatus: 'INACTIVE'}"),
+                Collections.singletonList("colorCode"));
+
+        assertEquals(BsonDocument.parse("{skuNumber: '12345678', styleNumber: 42, skuStatus: 'INACTIVE',"
+                + " kohlsstyle: {styleNumber: 42, styleName: 'Tee'}}"), store.getFlattenedRecord("sku", skuKey));
+    }
+
+    @Test
+    public void skipsRecordsWithoutNumericKey() {
+        BsonDocument skuKey = key(new ObjectId());
+        store.put("sku", skuKey, BsonDocument.parse("{skuNumber: 'A-1', skuStatus: 'ACTIVE'}"));
+        // An update of a document that is not in the store does not create a partial record.
+        store.update("sku", key(new ObjectId()), BsonDocument.parse("{skuStatus: 'ACTIVE'}"), null);
+        assertNull(store.getFlattenedRecord("sku", skuKey));
+        assertFalse(store.isStored("brand"));
+    }
+
+    @Test
+    public void dropsTheRecordOfAChangedKey() {
+        BsonDocument skuKey = key(new ObjectId());
+        store.put("sku", skuKey, BsonDocument.parse("{skuNumber: '12345678', skuStatus: 'ACTIVE'}"));
+        store.update("sku", skuKey, BsonDocument.parse("{skuNumber: '12345679'}"), null);
+        assertEquals(1, store.size("sku"));
+        assertEquals(BsonDocument.parse("{skuNumber: '12345679', skuStatus: 'ACTIVE'}"),
+                store.getFlattenedRecord("sku", skuKey));
+
+        store.put("sku", skuKey, BsonDocument.parse("{skuNumber: 'A-1', skuStatus: 'ACTIVE'}"));
+        assertEquals(0, store.size("sku"));
+        assertNull(store.getFlattenedRecord("sku", skuKey));
+    }
+
+    @Test
+    public void dropsTheRecordOfADeletedDocument() {
+        BsonDocument skuKey = key(new ObjectId());
+        store.put("sku", skuKey, BsonDocument.parse("{skuNumber: '12345678', skuStatus: 'ACTIVE'}"));
+        store.remove("sku", skuKey);
+        assertEquals(0, store.size("sku"));
+        assertNull(store.getFlattenedRecord("sku", skuKey));
+
+        // A later update does not bring back a partial record.
+        store.update("sku", skuKey, BsonDocument.parse("{skuStatus: 'INACTIVE'}"), null);
+        assertNull(store.getFlattenedRecord("sku", skuKey));
+    }
+
+    @Test
+    public void keepsTheRecordOfTheKeyOwner() {
+        BsonDocument oldSku = key(new ObjectId());
+        BsonDocument newSku = key(new ObjectId());
+        store.put("sku", oldSku, BsonDocument.parse("{skuNumber: '12345678', skuStatus: 'INACTIVE'}"));
+        store.put("sku", newSku, BsonDocument.parse("{skuNumber: '12345678', skuStatus: 'ACTIVE'}"));
+        assertNull(store.getFlattenedRecord("sku", oldSku));
+
+        // Neither moving nor deleting the document that lost the key drops the record of its new owner.
+        store.put("sku", oldSku, BsonDocument.parse("{skuNumber: '12345670', skuStatus: 'INACTIVE'}"));
+        store.remove("sku", oldSku);
+        assertEquals(1, store.size("sku"));
+        assertEquals(BsonDocument.parse("{skuNumber: '12345678', skuStatus: 'ACTIVE'}"),
+                store.getFlattenedRecord("sku", newSku));
+    }
+
+    @Test
+    public void parsesKeysAndHashesIds() {
+        assertEquals(12345678L, FlattenedSkuStore.toKey(new BsonString("12345678")));
+        assertEquals(42L, FlattenedSkuStore.toKey(new BsonInt32(42)));
+        assertEquals(Long.MIN_VALUE, FlattenedSkuStore.toKey(new BsonString("12a")));
+        ObjectId id = new ObjectId();
+        assertEquals(FlattenedSkuStore.hashId(key(id).get("_id")), FlattenedSkuStore.hashId(key(id).get("_id")));
+        assertNotEquals(FlattenedSkuStore.hashId(new BsonString("a")), FlattenedSkuStore.hashId(new BsonString("b")));
+    }
+
+    private static BsonDocument key(ObjectId id) {
+        return BsonDocument.parse("{_id: {$oid: '" + id.toHexString() + "'}}");
+    }
+}
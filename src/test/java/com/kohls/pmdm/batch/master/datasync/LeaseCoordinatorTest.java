@@ -0,0 +1,256 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.CommonProperties;
+import com.kohls.pmdm.batch.master.common.Constants;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+import static com.kohls.pmdm.batch.master.datasync.DriverStubs.render;
+import static com.kohls.pmdm.batch.master.datasync.DriverStubs.stub;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Competes for the leases of the collections against an in-memory lease collection.
+ */
+public class LeaseCoordinatorTest {
+
+    private static final long TTL_MILLIS = 400;
+    private static final long SAFETY_MARGIN_MILLIS = 150;
+    private static final List<String> COLLECTIONS = Arrays.asList("sku", "kohlsstyle", "upc", "brand");
+
+    private final Map<String, Lease> leaseDocuments = new ConcurrentHashMap<>();
+    private final Map<String, Long> stoppedAt = new ConcurrentHashMap<>();
+    private final Map<String, Long> deadlines = new ConcurrentHashMap<>();
+    private final Set<String> watched = ConcurrentHashMap.newKeySet();
+    private final AtomicLong liveInstances = new AtomicLong(1);
+    private final AtomicBoolean unreachable = new AtomicBoolean();
+    private ChangeStreamScheduler scheduler;
+    private LeaseCoordinator coordinator;
+
+    @Before
+    public void setUp() {
+        ChangeStreamService service = new ChangeStreamService() {
+            @Override
+            public void setLeaseToken(String collectionName, Long leaseToken) {
+                if (leaseToken == null) {
+                    deadlines.remove(collectionName);
+                }
+            }
+
+            @Override
+            public void setLeaseDeadline(String collectionName, long deadline) {
+                deadlines.put(collectionName, deadline);
+            }
+        };
+        scheduler = new ChangeStreamScheduler(service) {
+            @Override
+            public void start(String collectionName) {
+                watched.add(collectionName);
+            }
+
+            @Override
+            public void stop(String collectionName) {
+                if (watched.remove(collectionName)) {
+                    stoppedAt.put(collectionName, System.currentTimeMillis());
+                }
+            }
+        };
+        coordinator = new LeaseCoordinator(scheduler, service);
+        coordinator.commonProperties = new CommonProperties() {
+            @Override
+            public long getLeaseTtlMillis() {
+                return TTL_MILLIS;
+            }
+
+            @Override
+            public long getLeaseHeartbeatMillis() {
+                return 50;
+            }
+
+            @Override
+            public long getLeaseSafetyMarginMillis() {
+                return SAFETY_MARGIN_MILLIS;
+            }
+
+            @Override
+            public long getLeaseCheckMillis() {
+                return 10;
+            }
+        };
+        Map<String, Function<Object[], Object>> databaseAnswers = new HashMap<>();
+        MongoCollection<Document> leaseCollection = leaseCollection();
+        databaseAnswers.put("getCollection", args -> leaseCollection);
+        coordinator.setMongoDatabase(stub(MongoDatabase.class, databaseAnswers));
+    }
+
+    @After
+    public void tearDown() {
+        unreachable.set(false);
+        coordinator.shutdown();
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void takesOverExpiredLeases() {
+        long now = System.currentTimeMillis();
+        leaseDocuments.put("sku", new Lease("other", now - 1, 4));
+        for (String collectionName : COLLECTIONS.subList(1, COLLECTIONS.size())) {
+            leaseDocuments.put(collectionName, new Lease("other", now + 60000, 1));
+        }
+        coordinator.start(COLLECTIONS);
+
+        await(() -> watched.contains("sku"), "sku taken over");
+        assertEquals(coordinator.getInstanceId(), leaseDocuments.get("sku").owner);
+        assertEquals(5, leaseDocuments.get("sku").token);
+        assertEquals(new HashSet<>(Arrays.asList("sku")), watched);
+    }
+
+    @Test
+    public void stopsWatchingALeaseTakenOver() {
+        coordinator.start(COLLECTIONS);
+        await(() -> watched.size() == COLLECTIONS.size(), "all collections leased");
+
+        Lease lease = leaseDocuments.get("sku");
+        leaseDocuments.put("sku", new Lease("other", System.currentTimeMillis() + 60000, lease.token + 1));
+
+        await(() -> !watched.contains("sku"), "sku given up");
+        assertEquals(COLLECTIONS.size() - 1, watched.size());
+        assertEquals("other", leaseDocuments.get("sku").owner);
+    }
+
+    @Test
+    public void stopsWatchingBeforeTheLeaseExpiresWithoutRenewal() {
+        coordinator.start(COLLECTIONS);
+        await(() -> watched.size() == COLLECTIONS.size(), "all collections leased");
+        for (String collectionName : COLLECTIONS) {
+            assertEquals(leaseDocuments.get(collectionName).expiresAt - SAFETY_MARGIN_MILLIS,
+                    (long) deadlines.get(collectionName));
+        }
+
+        unreachable.set(true);
+
+        await(watched::isEmpty, "leases given up");
+        for (String collectionName : COLLECTIONS) {
+            // No other instance could have taken the collection over while it was still watched here.
+            assertTrue(collectionName + " stopped too late",
+                    stoppedAt.get(collectionName) < leaseDocuments.get(collectionName).expiresAt);
+            assertNull(deadlines.get(collectionName));
+        }
+    }
+
+    @Test
+    public void handsOverLeasesAboveTheFairShare() {
+        coordinator.start(COLLECTIONS);
+        await(() -> watched.size() == COLLECTIONS.size(), "all collections leased");
+
+        liveInstances.set(2);
+
+        await(() -> watched.size() == 2, "two collections handed over");
+        long released = leaseDocuments.values().stream().filter(lease -> lease.owner == null).count();
+        assertEquals(2, released);
+    }
+
+    /**
+     * The lease collection, answering the requests of the coordinator. Every request fails while the server is
+     * unreachable.
+     */
+    private MongoCollection<Document> leaseCollection() {
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("updateOne", args -> {
+            checkReachable();
+            BsonDocument filter = render((Bson) args[0]);
+            BsonDocument update = render((Bson) args[1]);
+            if (args.length == 3) {
+                // The presence of the instance itself.
+                return UpdateResult.acknowledged(1, 1L, null);
+            }
+            String collectionName = filter.getString(Constants.ID).getValue();
+            Lease lease = leaseDocuments.get(collectionName);
+            if (lease == null || !filter.getString("owner").getValue().equals(lease.owner)
+                    || filter.getInt64(Constants.LEASE_TOKEN).getValue() != lease.token) {
+                return UpdateResult.acknowledged(0, 0L, null);
+            }
+            String owner = update.containsKey("$unset") ? null : lease.owner;
+            long expiresAt = update.getDocument("$set").getDateTime("expiresAt").getValue();
+            leaseDocuments.put(collectionName, new Lease(owner, expiresAt, lease.token));
+            return UpdateResult.acknowledged(1, 1L, null);
+        });
+        answers.put("countDocuments", args -> {
+            checkReachable();
+            return liveInstances.get();
+        });
+        answers.put("findOneAndUpdate", args -> {
+            checkReachable();
+            BsonDocument filter = render((Bson) args[0]);
+            BsonDocument set = render((Bson) args[1]).getDocument("$set");
+            String collectionName = filter.getString(Constants.ID).getValue();
+            String owner = set.getString("owner").getValue();
+            Lease lease = leaseDocuments.get(collectionName);
+            if (lease != null && lease.owner != null && !lease.owner.equals(owner)
+                    && lease.expiresAt >= System.currentTimeMillis()) {
+                throw new MongoException(11000, "E11000 duplicate key error");
+            }
+            Lease acquired = new Lease(owner, set.getDateTime("expiresAt").getValue(),
+                    lease == null ? 1 : lease.token + 1);
+            leaseDocuments.put(collectionName, acquired);
+            return new Document(Constants.LEASE_TOKEN, acquired.token);
+        });
+        answers.put("deleteOne", args -> DeleteResult.acknowledged(1));
+        return stub(MongoCollection.class, answers);
+    }
+
+    private void checkReachable() {
+        if (unreachable.get()) {
+            throw new MongoException("Timed out waiting for a server");
+        }
+    }
+
+    private static void await(BooleanSupplier condition, String message) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(message, System.nanoTime() < deadline);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static class Lease {
+        private final String owner;
+        private final long expiresAt;
+        private final long token;
+
+        Lease(String owner, long expiresAt, long token) {
+            this.owner = owner;
+            this.expiresAt = expiresAt;
+            this.token = token;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import com.mongodb.client.model.changestream.UpdateDescription;
+
+import org.bson.BsonArray;
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Emits change events at a target rate per collection for {@link LoadHarness}. Events are either synthetic, with a
+ * configurable mix of inserts, plain updates, csId updates and skuPackageShippingDimensionList updates, or replayed in a
+ * loop from a {@link RecordedChangeEventSource}. Every event gets a fresh resume token, and its emission time is kept
+ * so the harness can compute the end-to-end latency of its version document and Kafka send.
+ */
+class LoadGenerator implements ChangeEventSource {
+
+    private static final long MAX_AWAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int KEY_SPACE = 10000;
+
+    private final double eventsPerSecond;
+    private final long durationNanos;
+    private final double insertRatio;
+    private final double csIdRatio;
+    private final double psdRatio;
+    private final ChangeEventSource recordedSource;
+
+    private final Map<BsonValue, Long> versionEmissions = new ConcurrentHashMap<>();
+    private final Map<String, Queue<Long>> kafkaEmissions = new ConcurrentHashMap<>();
+    private final AtomicLong emitted = new AtomicLong();
+
+    LoadGenerator(double eventsPerSecond, long durationMillis, double insertRatio, double csIdRatio, double psdRatio,
+                  ChangeEventSource recordedSource) {
+        this.eventsPerSecond = eventsPerSecond;
+        this.durationNanos = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        this.insertRatio = insertRatio;
+        this.csIdRatio = csIdRatio;
+        this.psdRatio = psdRatio;
+        this.recordedSource = recordedSource;
+    }
+
+    @Override
+    public MongoCursor<ChangeStreamDocument<RawBsonDocument>> open(String collectionName, ClientSession session) {
+        List<ChangeStreamDocument<RawBsonDocument>> recorded = new ArrayList<>();
+        if (recordedSource != null) {
+            try (MongoCursor<ChangeStreamDocument<RawBsonDocument>> cursor = recordedSource.open(collectionName,
+                    session)) {
+                cursor.forEachRemaining(recorded::add);
+            }
+        }
+        return new PacedCursor(collectionName, recorded);
+    }
+
+    long getEmitted() {
+        return emitted.get();
+    }
+
+    /**
+     * Returns the emission time of the event whose version document has the given _id, in System.nanoTime().
+     */
+    Long takeVersionEmission(BsonValue resumeToken) {
+        return versionEmissions.remove(resumeToken);
+    }
+
+    /**
+     * Returns the emission time of the oldest pending Kafka send of a document, sends of a document keep their order.
+     */
+    Long takeKafkaEmission(String documentKey) {
+        Queue<Long> emissions = kafkaEmissions.get(documentKey);
+        return emissions == null ? null : emissions.poll();
+    }
+
+    private class PacedCursor implements MongoCursor<ChangeStreamDocument<RawBsonDocument>> {
+        private final String collectionName;
+        private final List<ChangeStreamDocument<RawBsonDocument>> recorded;
+        private final Random random = new Random();
+        private final long startNanos = System.nanoTime();
+        private long count;
+
+        PacedCursor(String collectionName, List<ChangeStreamDocument<RawBsonDocument>> recorded) {
+            this.collectionName = collectionName;
+            this.recorded = recorded;
+        }
+
+        @Override
+        public ChangeStreamDocument<RawBsonDocument> tryNext() {
+            long elapsed = System.nanoTime() - startNanos;
+            if (elapsed >= durationNanos || (recordedSource != null && recorded.isEmpty())) {
+                sleepNanos(MAX_AWAIT_NANOS);
+                return null;
+            }
+            long nextDueNanos = (long) (count * 1_000_000_000d / eventsPerSecond);
+            if (nextDueNanos > elapsed) {
+                // Waits like a change stream getMore with maxAwaitTime.
+                sleepNanos(Math.min(nextDueNanos - elapsed, MAX_AWAIT_NANOS));
+                if (nextDueNanos > System.nanoTime() - startNanos) {
+                    return null;
+                }
+            }
+            ChangeStreamDocument<RawBsonDocument> event = recordedSource != null
+                    ? restamp(recorded.get((int) (count % recorded.size()))) : newEvent();
+            count++;
+            emitted.incrementAndGet();
+            long now = System.nanoTime();
+            versionEmissions.put(event.getResumeToken(), now);
+            OperationType operationType = event.getOperationType();
+            if (operationType == OperationType.INSERT || operationType == OperationType.UPDATE) {
+                kafkaEmissions.computeIfAbsent(event.getDocumentKey().toJson(), key -> new ConcurrentLinkedQueue<>())
+                        .add(now);
+            }
+            return event;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return true;
+        }
+
+        @Override
+        public ChangeStreamDocument<RawBsonDocument> next() {
+            ChangeStreamDocument<RawBsonDocument> event;
+            while ((event = tryNext()) == null) {
+                sleepNanos(MAX_AWAIT_NANOS);
+            }
+            return event;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public ServerCursor getServerCursor() {
+            return null;
+        }
+
+        @Override
+        public ServerAddress getServerAddress() {
+            return null;
+        }
+
+        private ChangeStreamDocument<RawBsonDocument> restamp(ChangeStreamDocument<RawBsonDocument> event) {
+            return new ChangeStreamDocument<>(newResumeToken(), event.getNamespaceDocument(), event.getFullDocument(),
+                    event.getDocumentKey(), now(), event.getOperationType(), event.getUpdateDescription());
+        }
+
+        private ChangeStreamDocument<RawBsonDocument> newEvent() {
+            BsonDocument namespace = new BsonDocument("db", new BsonString("test"))
+                    .append("coll", new BsonString(collectionName));
+            BsonDocument documentKey = new BsonDocument("_id", new BsonString(collectionName + "-"
+                    + random.nextInt(KEY_SPACE)));
+            double draw = random.nextDouble();
+            if (draw < insertRatio) {
+                BsonDocument document = new BsonDocument("_id", documentKey.get("_id"))
+                        .append("skuNumber", new BsonString(Integer.toString(random.nextInt(100000000))))
+                        .append("skuStatus", new BsonString("ACTIVE"))
+                        .append("colorCode", new BsonInt32(random.nextInt(1000)))
+                        .append("sizeCode", new BsonInt32(random.nextInt(100)))
+                        .append("skuPackageShippingDimensionList", newShippingDimensions());
+                return new ChangeStreamDocument<>(newResumeToken(), namespace,
+                        new RawBsonDocument(document, new BsonDocumentCodec()), documentKey, now(),
+                        OperationType.INSERT, null);
+            }
+            BsonDocument updatedFields;
+            draw -= insertRatio;
+            if (draw < csIdRatio) {
+                updatedFields = new BsonDocument("brand.csId", new BsonString("brand-" + random.nextInt(100)));
+            } else if (draw < csIdRatio + psdRatio && "sku".equalsIgnoreCase(collectionName)) {
+                updatedFields = new BsonDocument("skuPackageShippingDimensionList", newShippingDimensions());
+            } else {
+                updatedFields = new BsonDocument("skuStatus", new BsonString(random.nextBoolean() ? "ACTIVE"
+                        : "INACTIVE")).append("sizeCode", new BsonInt32(random.nextInt(100)));
+            }
+            return new ChangeStreamDocument<>(newResumeToken(), namespace, null, documentKey, now(),
+                    OperationType.UPDATE, new UpdateDescription(Collections.<String>emptyList(), updatedFields));
+        }
+
+        private BsonArray newShippingDimensions() {
+            return new BsonArray(Collections.singletonList(new BsonDocument("skuNumber", new BsonString("12345678"))
+                    .append("depthQuantity", new BsonInt32(random.nextInt(50)))
+                    .append("heightQuantity", new BsonInt32(random.nextInt(50)))
+                    .append("widthQuantity", new BsonInt32(random.nextInt(50)))
+                    .append("weightQuantity", new BsonInt32(random.nextInt(20)))
+                    .append("modifiedDateTime", new BsonDateTime(System.currentTimeMillis()))
+                    .append("heightWidthDepthUnitOfMeasure", new BsonDocument("referenceValueShortDescription",
+                            new BsonString("IN")))
+                    .append("weightUnitOfMeasure", new BsonDocument("referenceValueShortDescription",
+                            new BsonString("LB")))));
+        }
+
+        private BsonDocument newResumeToken() {
+            return new BsonDocument("_data", new BsonString(collectionName + ":" + count));
+        }
+
+        private BsonTimestamp now() {
+            return new BsonTimestamp((int) (System.currentTimeMillis() / 1000), (int) count);
+        }
+    }
+
+    private static void sleepNanos(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
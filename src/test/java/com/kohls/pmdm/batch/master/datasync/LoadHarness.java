@@ -0,0 +1,233 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.kohls.pmdm.batch.master.common.CSObjectRetriever;
+import com.kohls.pmdm.batch.master.common.CachingCSObjectRetriever;
+import com.kohls.pmdm.batch.master.common.CommonProperties;
+import com.kohls.pmdm.batch.master.common.KafkaProducer;
+import com.kohls.pmdm.domain.Sequence;
+import com.mongodb.client.ClientSession;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives the change stream pipeline at a target rate without MongoDB or Kafka and reports the end-to-end latency from
+ * the emission of a change event to the write of its version document and to its Kafka send. Version documents and
+ * checkpoints are kept in memory, Kafka sends are acknowledged immediately and csIds resolve from an in-memory
+ * reference store.
+ * <p>
+ * Run with {@code mvn -Pload test -DskipTests "-Dload.args=..."}, arguments are {@code key=value}:
+ * <ul>
+ * <li>{@code collections} comma separated watched collections, default {@code sku,kohlsstyle,consumerproduct}</li>
+ * <li>{@code rate} events per second and collection, default 1000</li>
+ * <li>{@code seconds} duration of the load, default 30</li>
+ * <li>{@code insertRatio}, {@code csIdRatio}, {@code psdRatio} share of inserts, csId updates and
+ * skuPackageShippingDimensionList updates (sku only), the rest are plain updates; defaults 0.2, 0.1, 0.1</li>
+ * <li>{@code kafka} whether events are sent to Kafka, default true</li>
+ * <li>{@code replay} directory of recorded change events to replay instead of synthetic ones, see
+ * {@link RecordedChangeEventSource}</li>
+ * </ul>
+ */
+public class LoadHarness {
+
+    public static void main(String[] args) throws InterruptedException {
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "true");
+        }
+        List<String> collections = Arrays.asList(options.getOrDefault("collections", "sku,kohlsstyle,consumerproduct")
+                .split(","));
+        long seconds = Long.parseLong(options.getOrDefault("seconds", "30"));
+        boolean kafka = Boolean.parseBoolean(options.getOrDefault("kafka", "true"));
+        String replay = options.get("replay");
+        LoadGenerator generator = new LoadGenerator(Double.parseDouble(options.getOrDefault("rate", "1000")),
+                TimeUnit.SECONDS.toMillis(seconds),
+                Double.parseDouble(options.getOrDefault("insertRatio", "0.2")),
+                Double.parseDouble(options.getOrDefault("csIdRatio", "0.1")),
+                Double.parseDouble(options.getOrDefault("psdRatio", "0.1")),
+                replay == null ? null : new RecordedChangeEventSource(Paths.get(replay)));
+
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        Timer versionLatency = latencyTimer(registry, "load.version.latency");
+        Timer kafkaLatency = latencyTimer(registry, "load.kafka.latency");
+
+        ChangeStreamService service = new ChangeStreamService() {
+            @Override
+            public ClientSession startSession() {
+                return newSessionStub();
+            }
+        };
+        service.commonProperties = new CommonProperties() {
+            @Override
+            public boolean isEnableFSKUKafka() {
+                return kafka;
+            }
+        };
+        InMemoryCheckpointManager checkpointManager = new InMemoryCheckpointManager(service.getMetrics(), generator,
+                versionLatency);
+        service.checkpointManager = checkpointManager;
+        service.kafkaProducer = new InstantKafkaProducer(generator, kafkaLatency);
+        service.cSObjectRetriever = new CachingCSObjectRetriever(new InMemoryReferenceStore(), 10000,
+                TimeUnit.MINUTES.toMillis(10));
+        service.setChangeEventSource(generator);
+
+        ChangeStreamScheduler scheduler = new ChangeStreamScheduler(service);
+        long start = System.nanoTime();
+        collections.forEach(scheduler::start);
+        TimeUnit.SECONDS.sleep(seconds);
+        // Lets the pipeline drain the events emitted so far.
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (checkpointManager.getVersions() < generator.getEmitted() && System.nanoTime() < drainDeadline) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        scheduler.shutdown();
+
+        System.out.printf("collections      %s%n", collections);
+        System.out.printf("events emitted   %d%n", generator.getEmitted());
+        System.out.printf("versions written %d (%.0f/s)%n", checkpointManager.getVersions(),
+                checkpointManager.getVersions() / elapsedSeconds);
+        System.out.printf("kafka sends      %d%n", kafkaLatency.count());
+        report("version latency", versionLatency);
+        report("kafka latency  ", kafkaLatency);
+    }
+
+    /**
+     * A session that is never used against a server: all methods do nothing and return false or null.
+     */
+    private static ClientSession newSessionStub() {
+        return (ClientSession) Proxy.newProxyInstance(LoadHarness.class.getClassLoader(),
+                new Class<?>[]{ClientSession.class},
+                (proxy, method, methodArgs) -> method.getReturnType() == boolean.class ? Boolean.FALSE : null);
+    }
+
+    private static Timer latencyTimer(SimpleMeterRegistry registry, String name) {
+        return Timer.builder(name).publishPercentiles(0.5, 0.95, 0.99).register(registry);
+    }
+
+    private static void report(String label, Timer timer) {
+        HistogramSnapshot snapshot = timer.takeSnapshot();
+        StringBuilder line = new StringBuilder(label);
+        for (ValueAtPercentile percentile : snapshot.percentileValues()) {
+            line.append(String.format("  p%.0f %.1f ms", percentile.percentile() * 100,
+                    percentile.value(TimeUnit.MILLISECONDS)));
+        }
+        line.append(String.format("  max %.1f ms", snapshot.max(TimeUnit.MILLISECONDS)));
+        System.out.println(line);
+    }
+
+    /**
+     * Keeps the version documents and checkpoints in memory and records the latency of every version document.
+     */
+    static class InMemoryCheckpointManager extends CheckpointManager {
+        private final LoadGenerator generator;
+        private final Timer versionLatency;
+        private final AtomicLong versions = new AtomicLong();
+        private final Map<String, BsonDocument> resumeTokens = new HashMap<>();
+
+        InMemoryCheckpointManager(ChangeStreamMetrics metrics, LoadGenerator generator, Timer versionLatency) {
+            super(metrics);
+            this.generator = generator;
+            this.versionLatency = versionLatency;
+        }
+
+        @Override
+        public void commit(String collectionName, List<RawBsonDocument> documents, BsonDocument resumeToken,
+                           BsonTimestamp clusterTime, ClientSession session) {
+            long now = System.nanoTime();
+            for (RawBsonDocument document : documents) {
+                Long emitted = generator.takeVersionEmission(document.get("_id"));
+                if (emitted != null) {
+                    versionLatency.record(now - emitted, TimeUnit.NANOSECONDS);
+                }
+            }
+            versions.addAndGet(documents.size());
+            if (resumeToken != null) {
+                synchronized (resumeTokens) {
+                    resumeTokens.put(collectionName, resumeToken);
+                }
+            }
+        }
+
+        @Override
+        public Sequence loadSequence(String collectionName, ClientSession session) {
+            return null;
+        }
+
+        @Override
+        public void clearResumeToken(String collectionName, ClientSession session) {
+            synchronized (resumeTokens) {
+                resumeTokens.remove(collectionName);
+            }
+        }
+
+        long getVersions() {
+            return versions.get();
+        }
+    }
+
+    /**
+     * Acknowledges every send at once and records its latency.
+     */
+    static class InstantKafkaProducer extends KafkaProducer {
+        private final LoadGenerator generator;
+        private final Timer kafkaLatency;
+
+        InstantKafkaProducer(LoadGenerator generator, Timer kafkaLatency) {
+            super(new MockProducer<>(true, new StringSerializer(), new StringSerializer()));
+            this.generator = generator;
+            this.kafkaLatency = kafkaLatency;
+        }
+
+        @Override
+        public void produce(String topic, String key, String payload, Callback callback) {
+            Long emitted = generator.takeKafkaEmission(key);
+            if (emitted != null) {
+                kafkaLatency.record(System.nanoTime() - emitted, TimeUnit.NANOSECONDS);
+            }
+            if (callback != null) {
+                callback.onCompletion(null, null);
+            }
+        }
+    }
+
+    /**
+     * Resolves every csId to a small reference entity.
+     */
+    static class InMemoryReferenceStore extends CSObjectRetriever {
+        @Override
+        public Map<String, Object> getCSUpdatedEntities(Collection<String[]> keyValueStrings) {
+            Map<String, Object> entities = new HashMap<>();
+            for (String[] keyValueString : keyValueStrings) {
+                entities.put(String.join("-", keyValueString), new Document("_id", keyValueString[1])
+                        .append("name", keyValueString[0] + " " + keyValueString[1]));
+            }
+            return entities;
+        }
+    }
+}
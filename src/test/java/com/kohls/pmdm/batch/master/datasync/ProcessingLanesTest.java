@@ -0,0 +1,75 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProcessingLanesTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void keepsOrderPerDocumentKey() throws InterruptedException {
+        ProcessingLanes lanes = new ProcessingLanes("sku", executor, 4, Integer.MAX_VALUE);
+        Map<Integer, List<Integer>> seen = Collections.synchronizedMap(new HashMap<>());
+        for (int sequence = 0; sequence < 1000; sequence++) {
+            int id = sequence % 10;
+            int value = sequence;
+            lanes.dispatch(new BsonDocument("_id", new BsonInt32(id)),
+                    () -> seen.computeIfAbsent(id, key -> Collections.synchronizedList(new ArrayList<>())).add(value));
+        }
+        waitUntilIdle(lanes);
+
+        assertEquals(10, seen.size());
+        seen.forEach((id, values) -> {
+            assertEquals(100, values.size());
+            for (int i = 1; i < values.size(); i++) {
+                assertTrue(values.get(i - 1) < values.get(i));
+            }
+        });
+    }
+
+    @Test
+    public void boundsEventsInFlight() throws InterruptedException {
+        ProcessingLanes lanes = new ProcessingLanes("sku", executor, 2, 2);
+        Object gate = new Object();
+        Runnable blocked = () -> {
+            synchronized (gate) {
+                // Waits for the test to release the gate.
+            }
+        };
+        synchronized (gate) {
+            lanes.dispatch(new BsonDocument("_id", new BsonInt32(1)), blocked);
+            assertFalse(lanes.isSaturated());
+            lanes.dispatch(new BsonDocument("_id", new BsonInt32(2)), blocked);
+            assertTrue(lanes.isSaturated());
+        }
+        waitUntilIdle(lanes);
+        assertFalse(lanes.isSaturated());
+    }
+
+    private static void waitUntilIdle(ProcessingLanes lanes) throws InterruptedException {
+        for (int i = 0; i < 500 && lanes.getInFlight() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, lanes.getInFlight());
+    }
+}
@@ -0,0 +1,110 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.KafkaProducer;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResumeTokenTrackerTest {
+
+    private final ResumeTokenTracker tracker = new ResumeTokenTracker();
+
+    @Test
+    public void advancesOverCompletedPrefixOnly() {
+        ResumeTokenTracker.Ticket first = tracker.register(token(1));
+        ResumeTokenTracker.Ticket second = tracker.register(token(2));
+        ResumeTokenTracker.Ticket third = tracker.register(token(3));
+
+        second.release();
+        assertNull(tracker.claimCompletedResumeToken());
+
+        first.release();
+        assertEquals(token(2), tracker.claimCompletedResumeToken());
+        assertEquals(1, tracker.getPendingCount());
+
+        third.release();
+        assertTrue(tracker.hasUnclaimedProgress());
+        assertEquals(token(3), tracker.claimCompletedResumeToken());
+        assertFalse(tracker.hasUnclaimedProgress());
+    }
+
+    @Test
+    public void claimsClusterTimeOfResumeToken() {
+        ResumeTokenTracker.Ticket first = tracker.register(token(1), new BsonTimestamp(100, 1));
+        ResumeTokenTracker.Ticket second = tracker.register(token(2), new BsonTimestamp(100, 2));
+
+        first.release();
+        tracker.claimCompletedResumeToken();
+        assertEquals(new BsonTimestamp(100, 1), tracker.getClaimedClusterTime());
+
+        second.release();
+        assertEquals(new BsonTimestamp(100, 1), tracker.getClaimedClusterTime());
+        tracker.claimCompletedResumeToken();
+        assertEquals(new BsonTimestamp(100, 2), tracker.getClaimedClusterTime());
+    }
+
+    @Test
+    public void waitsForKafkaAcknowledgement() {
+        MockProducer<String, String> mockProducer = new MockProducer<>(false, new StringSerializer(),
+                new StringSerializer());
+        KafkaProducer kafkaProducer = new KafkaProducer(mockProducer);
+
+        ResumeTokenTracker.Ticket ticket = tracker.register(token(1)).retain();
+        kafkaProducer.produce("flattenedsku_topic", "{\"_id\": 1}", "{}", (metadata, exc) -> ticket.release());
+        // The version write of the event is acknowledged first.
+        ticket.release();
+        assertNull(tracker.claimCompletedResumeToken());
+
+        mockProducer.completeNext();
+        assertEquals(token(1), tracker.claimCompletedResumeToken());
+        assertEquals("{\"_id\": 1}", mockProducer.history().get(0).key());
+    }
+
+    @Test
+    public void wakesAWaiterOnceTheTicketCompletesOrFails() throws Exception {
+        ResumeTokenTracker.Ticket ticket = tracker.register(token(1)).retain();
+        ticket.release();
+        assertFalse(ticket.awaitCompletion(10, TimeUnit.MILLISECONDS));
+
+        CompletableFuture.runAsync(ticket::release);
+        assertTrue(ticket.awaitCompletion(10, TimeUnit.SECONDS));
+
+        ResumeTokenTracker.Ticket failing = tracker.register(token(2));
+        CompletableFuture.runAsync(() -> failing.fail(new IllegalStateException("Send failed")));
+        assertTrue(failing.awaitCompletion(10, TimeUnit.SECONDS));
+        // Failed before anyone waited.
+        assertTrue(failing.awaitCompletion(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void reportsFailedSends() {
+        ResumeTokenTracker.Ticket ticket = tracker.register(token(1));
+        ticket.fail(new RuntimeException("broker unavailable"));
+        tracker.checkFailure();
+    }
+
+    @Test
+    public void ignoresTicketsOfEarlierStreams() {
+        ResumeTokenTracker.Ticket stale = tracker.register(token(1));
+        tracker.reset();
+        stale.fail(new RuntimeException("late callback"));
+        tracker.checkFailure();
+        assertEquals(0, tracker.getPendingCount());
+    }
+
+    private static BsonDocument token(int id) {
+        return new BsonDocument("_data", new BsonString("token-" + id));
+    }
+}
@@ -0,0 +1,177 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UpdateConflatorTest {
+
+    private final ResumeTokenTracker tracker = new ResumeTokenTracker();
+    private final List<String> sentCollections = new ArrayList<>();
+    private final List<Document> sent = new ArrayList<>();
+    private final List<ResumeTokenTracker.Ticket> sentTickets = new ArrayList<>();
+
+    @Test
+    public void mergesUpdatesOfADocument() throws InterruptedException {
+        UpdateConflator conflator = new UpdateConflator(10, 100, this::send);
+        conflator.add("sku", key("a"), new Document("skuStatus", "ACTIVE").append("brand.csId", "brand-1"),
+                null, ticket(1));
+        conflator.add("sku", key("a"), new Document("skuStatus", "INACTIVE").append("brand", new Document()),
+                Collections.singletonList("colorCode"), ticket(2));
+        conflator.add("sku", key("a"), new Document("colorCode", 410), Collections.singletonList("skuStatus"),
+                ticket(3));
+        assertEquals(0, sent.size());
+
+        Thread.sleep(20);
+        conflator.flushDue();
+        conflator.shutdown();
+        assertEquals(1, sent.size());
+        // The removed field is sent as null instead of dropping out of the payload.
+        assertEquals(new Document("skuStatus", null).append("brand", new Document()).append("colorCode", 410),
+                sent.get(0));
+        assertEquals(3, sentTickets.size());
+    }
+
+    @Test
+    public void holdsTicketsUntilSent() {
+        UpdateConflator conflator = new UpdateConflator(60000, 2, this::send);
+        ResumeTokenTracker.Ticket first = ticket(1);
+        conflator.add("sku", key("a"), new Document("sizeCode", 12), null, first);
+        // The version write of the update is done, its send is still conflated.
+        first.release();
+        assertNull(tracker.claimCompletedResumeToken());
+
+        ResumeTokenTracker.Ticket second = ticket(2);
+        conflator.add("sku", key("a"), new Document("sizeCode", 14), null, second);
+        second.release();
+        conflator.shutdown();
+        assertEquals(1, sent.size());
+        assertEquals(token(2), tracker.claimCompletedResumeToken());
+    }
+
+    @Test
+    public void flushesBeforeOtherSends() {
+        UpdateConflator conflator = new UpdateConflator(60000, 100, this::send);
+        conflator.add("sku", key("a"), new Document("sizeCode", 12), null, ticket(1));
+        conflator.add("sku", key("b"), new Document("sizeCode", 14), null, ticket(2));
+        conflator.flush("sku", key("a"));
+        assertEquals(Collections.singletonList(new Document("sizeCode", 12)), sent);
+        assertEquals(1, conflator.size());
+        assertFalse(sentTickets.isEmpty());
+        // Shutting down drops the payloads still pending, they are read again from the stored resume token.
+        conflator.shutdown();
+        assertEquals(0, conflator.size());
+    }
+
+    @Test
+    public void setsNestedFieldsInsideFieldsSetBefore() {
+        UpdateConflator conflator = new UpdateConflator(60000, 100, this::send);
+        conflator.add("sku", key("a"), new Document("brand", new Document("name", "Sonoma").append("code", 7)),
+                null, ticket(1));
+        conflator.add("sku", key("a"), new Document("brand.name", "Apt. 9").append("sizes", Arrays.asList("S", "M")),
+                Collections.singletonList("brand.code"), ticket(2));
+        conflator.add("sku", key("a"), new Document("sizes.1", "L"), null, ticket(3));
+        conflator.flush("sku", key("a"));
+        conflator.shutdown();
+        assertEquals(new Document("brand", new Document("name", "Apt. 9")).append("sizes", Arrays.asList("S", "L")),
+                sent.get(0));
+    }
+
+    @Test
+    public void keepsDocumentsOfCollectionsApart() {
+        UpdateConflator conflator = new UpdateConflator(60000, 100, this::send);
+        conflator.add("sku", key("a"), new Document("sizeCode", 12), null, ticket(1));
+        conflator.add("kohlsstyle", key("a"), new Document("styleName", "Tee"), null, ticket(2));
+        assertEquals(2, conflator.size());
+        conflator.flush("kohlsstyle", key("a"));
+        conflator.shutdown();
+        assertEquals(Collections.singletonList("kohlsstyle"), sentCollections);
+        assertEquals(Collections.singletonList(new Document("styleName", "Tee")), sent);
+    }
+
+    @Test
+    public void discardsPendingPayloadsOfAReopenedCollection() {
+        UpdateConflator conflator = new UpdateConflator(60000, 100, this::send);
+        conflator.add("sku", key("a"), new Document("sizeCode", 12), null, ticket(1));
+        conflator.add("kohlsstyle", key("a"), new Document("styleName", "Tee"), null, ticket(2));
+        conflator.discard("sku");
+        assertEquals(1, conflator.size());
+
+        // Replayed after the reopen, the update starts a fresh entry.
+        conflator.add("sku", key("a"), new Document("colorCode", 410), null, ticket(3));
+        conflator.flush("sku", key("a"));
+        conflator.shutdown();
+        assertEquals(Collections.singletonList(new Document("colorCode", 410)), sent);
+        assertEquals(0, conflator.size());
+    }
+
+    @Test
+    public void sendsADocumentSerially() throws Exception {
+        CountDownLatch firstSendStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstSend = new CountDownLatch(1);
+        List<Document> order = new CopyOnWriteArrayList<>();
+        UpdateConflator conflator = new UpdateConflator(1, 1, (collectionName, documentKey, payload, tickets) -> {
+            order.add(payload);
+            if (order.size() == 1) {
+                firstSendStarted.countDown();
+                try {
+                    releaseFirstSend.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Thread first = new Thread(() -> conflator.add("sku", key("a"), new Document("sizeCode", 12), null,
+                ticket(1)));
+        first.start();
+        assertTrue(firstSendStarted.await(10, TimeUnit.SECONDS));
+
+        // The next update of the document waits for the send in progress, the insert flush as well.
+        Thread second = new Thread(() -> conflator.add("sku", key("a"), new Document("sizeCode", 14), null,
+                ticket(2)));
+        second.start();
+        Thread.sleep(50);
+        assertEquals(1, order.size());
+        assertTrue(second.isAlive());
+
+        releaseFirstSend.countDown();
+        first.join(10000);
+        second.join(10000);
+        conflator.flush("sku", key("a"));
+        conflator.shutdown();
+        assertEquals(Arrays.asList(new Document("sizeCode", 12), new Document("sizeCode", 14)), order);
+    }
+
+    private void send(String collectionName, BsonDocument documentKey, Document payload,
+                      List<ResumeTokenTracker.Ticket> tickets) {
+        sentCollections.add(collectionName);
+        sent.add(payload);
+        sentTickets.addAll(tickets);
+    }
+
+    private ResumeTokenTracker.Ticket ticket(int i) {
+        return tracker.register(token(i));
+    }
+
+    private static BsonDocument key(String id) {
+        return new BsonDocument("_id", new BsonString(id));
+    }
+
+    private static BsonDocument token(int i) {
+        return new BsonDocument("_data", new BsonString(Integer.toString(i)));
+    }
+}
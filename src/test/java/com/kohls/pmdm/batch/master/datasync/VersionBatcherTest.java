@@ -0,0 +1,69 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.VersionCodec;
+import com.kohls.pmdm.domain.Version;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.RawBsonDocument;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VersionBatcherTest {
+
+    private final ResumeTokenTracker tracker = new ResumeTokenTracker();
+
+    @Test
+    public void flushesOnDocumentCount() {
+        VersionBatcher batcher = new VersionBatcher(2, Long.MAX_VALUE, 60000);
+        assertFalse(batcher.add(version(1), ticket(1)));
+        assertTrue(batcher.add(version(2), ticket(2)));
+
+        VersionBatcher.Batch batch = batcher.drain();
+        assertEquals(2, batch.getDocuments().size());
+        assertEquals(2, batch.getTickets().size());
+        assertEquals(token(2), batch.getTickets().get(1).getResumeToken());
+        assertTrue(batcher.isEmpty());
+    }
+
+    @Test
+    public void flushesOnBytes() {
+        long versionBytes = new RawBsonDocument(version(1), new VersionCodec()).getByteBuffer().remaining();
+        VersionBatcher batcher = new VersionBatcher(1000, versionBytes + 1, 60000);
+        assertFalse(batcher.add(version(1), ticket(1)));
+        assertTrue(batcher.add(version(2), ticket(2)));
+        assertEquals(2 * versionBytes, batcher.getBytes());
+    }
+
+    @Test
+    public void flushesOnDelay() throws InterruptedException {
+        VersionBatcher batcher = new VersionBatcher(1000, Long.MAX_VALUE, 10);
+        assertFalse(batcher.isDue());
+        batcher.markPosition(ticket(1));
+        Thread.sleep(20);
+        assertTrue(batcher.isDue());
+
+        VersionBatcher.Batch batch = batcher.drain();
+        assertTrue(batch.getDocuments().isEmpty());
+        assertEquals(token(1), batch.getTickets().get(0).getResumeToken());
+    }
+
+    private static Version version(int id) {
+        Version version = new Version();
+        version.setIdDocument(new BsonDocument("_id", new BsonInt32(id)));
+        version.setUpdatedFields(new BsonDocument("skuStatus", new BsonString("ACTIVE")));
+        return version;
+    }
+
+    private ResumeTokenTracker.Ticket ticket(int id) {
+        return tracker.register(token(id));
+    }
+
+    private static BsonDocument token(int id) {
+        return new BsonDocument("_data", new BsonString("token-" + id));
+    }
+}
@@ -0,0 +1,27 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import org.bson.BsonTimestamp;
+import org.junit.Test;
+
+import java.time.YearMonth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class VersionBucketsTest {
+
+    @Test
+    public void parsesMonthOfBucket() {
+        assertEquals(YearMonth.of(2026, 10), VersionBuckets.getMonth("sku_coll", "sku_coll_2026_10"));
+        assertNull(VersionBuckets.getMonth("sku_coll", "sku_coll"));
+        // Version collections of another collection sharing the prefix.
+        assertNull(VersionBuckets.getMonth("sku_coll", "sku_coll_archive_2026_10"));
+    }
+
+    @Test
+    public void bucketsClusterTimeByUtcMonth() {
+        // 2026-10-31T23:59:59Z and 2026-11-01T00:00:00Z
+        assertEquals(YearMonth.of(2026, 10), VersionBuckets.getMonth(new BsonTimestamp(1793491199, 1)));
+        assertEquals(YearMonth.of(2026, 11), VersionBuckets.getMonth(new BsonTimestamp(1793491200, 1)));
+    }
+}
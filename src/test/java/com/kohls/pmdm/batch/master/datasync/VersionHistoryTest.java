@@ -0,0 +1,105 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.domain.Version;
+import com.mongodb.MongoClient;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.conversions.Bson;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class VersionHistoryTest {
+
+    @Test
+    public void replaysInsertAndUpdates() {
+        Version insert = new Version();
+        insert.setInsertedFields(BsonDocument.parse("{_id: 1, skuStatus: 'ACTIVE', colorCode: 410,"
+                + " sizes: [{code: 'S'}, {code: 'M'}]}"));
+        Version update = new Version();
+        update.setUpdatedFields(new BsonDocument("skuStatus", new BsonString("INACTIVE"))
+                .append("sizes.1.code", new BsonString("L"))
+                .append("brand.name", new BsonString("Sonoma")));
+        update.setRemovedFields(Collections.singletonList("colorCode"));
+
+        BsonDocument document = VersionHistory.apply(null, insert);
+        document = VersionHistory.apply(document, update);
+        assertEquals(BsonDocument.parse("{_id: 1, skuStatus: 'INACTIVE', sizes: [{code: 'S'}, {code: 'L'}],"
+                + " brand: {name: 'Sonoma'}}"), document);
+        // The inserted fields of the version are not modified by later versions.
+        assertEquals(new BsonInt32(410), insert.getInsertedFields().get("colorCode"));
+    }
+
+    @Test
+    public void unsetsArrayElementsToNull() {
+        Version update = new Version();
+        update.setRemovedFields(Arrays.asList("sizes.0", "missing.field"));
+        BsonDocument document = VersionHistory.apply(BsonDocument.parse("{sizes: ['S', 'M']}"), update);
+        assertEquals(new BsonDocument("sizes", new BsonArray(Arrays.asList(BsonNull.VALUE, new BsonString("M")))),
+                document);
+    }
+
+    @Test
+    public void storesSnapshotsAtMultiplesOfTheInterval() {
+        List<Version> versions = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            Version update = new Version();
+            update.setUpdatedFields(new BsonDocument("n", new BsonInt32(i + 4)));
+            versions.add(update);
+        }
+        List<Long> snapshotVersions = new ArrayList<>();
+        List<BsonDocument> snapshots = new ArrayList<>();
+        VersionHistory.Replay replay = new VersionHistory.Replay(BsonDocument.parse("{n: 3}"), 3);
+        replay.apply(versions, 14, 5, (last, version, document) -> {
+            snapshotVersions.add(version);
+            snapshots.add(document);
+        });
+
+        // Replay stops at the requested version, the snapshot the rebuild started from is not stored again.
+        assertEquals(14, replay.getVersion());
+        assertEquals(BsonDocument.parse("{n: 14}"), replay.getDocument());
+        assertEquals(Arrays.asList(5L, 10L), snapshotVersions);
+        // Snapshots are copies, later versions do not modify them.
+        assertEquals(Arrays.asList(BsonDocument.parse("{n: 5}"), BsonDocument.parse("{n: 10}")), snapshots);
+    }
+
+    @Test
+    public void appliesNothingPastTheRequestedVersion() {
+        Version update = new Version();
+        update.setUpdatedFields(new BsonDocument("n", new BsonInt32(1)));
+        VersionHistory.Replay replay = new VersionHistory.Replay(null, 0);
+        replay.apply(Collections.singletonList(update), 0, 1, (last, version, document) -> {
+            throw new AssertionError("No version applied");
+        });
+        assertEquals(0, replay.getVersion());
+        assertNull(replay.getDocument());
+    }
+
+    @Test
+    public void selectsSnapshotsAtOrBeforeTheRequestedPoint() {
+        BsonDocument idDocument = BsonDocument.parse("{_id: 1}");
+        BsonTimestamp until = new BsonTimestamp(100, 2);
+        assertEquals(new BsonDocument("idDocument", idDocument)
+                        .append("clusterTime", new BsonDocument("$lte", until)),
+                render(VersionHistory.getSnapshotFilter(idDocument, until, Long.MAX_VALUE)));
+        assertEquals(new BsonDocument("idDocument", idDocument)
+                        .append("version", new BsonDocument("$lte", new BsonInt64(7))),
+                render(VersionHistory.getSnapshotFilter(idDocument, null, 7)));
+    }
+
+    private static BsonDocument render(Bson filter) {
+        return filter.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+    }
+}
@@ -0,0 +1,198 @@
+package com.kohls.pmdm.batch.master.datasync;
+
+import com.kohls.pmdm.batch.master.common.CommonProperties;
+import com.mongodb.MongoException;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.MongoIterable;
+
+import org.bson.RawBsonDocument;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static com.kohls.pmdm.batch.master.datasync.DriverStubs.cursorOf;
+import static com.kohls.pmdm.batch.master.datasync.DriverStubs.stub;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class VersionRetentionTest {
+
+    private static final YearMonth NOW = YearMonth.now(ZoneOffset.UTC);
+    private static final String CURRENT = bucket(NOW);
+    private static final String EXPIRED = bucket(NOW.minusMonths(2));
+    private static final List<RawBsonDocument> VERSIONS = Arrays.asList(RawBsonDocument.parse("{_id: 1, v: 'a'}"),
+            RawBsonDocument.parse("{_id: 2, v: 'b'}"));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> dropped = new CopyOnWriteArrayList<>();
+    private boolean leaseCoordinationEnabled;
+    private boolean failReading;
+    private VersionRetention retention;
+
+    @Before
+    public void setUp() {
+        Map<String, Function<Object[], Object>> namesAnswers = new HashMap<>();
+        namesAnswers.put("iterator", args -> cursorOf(Arrays.asList("sku_coll", CURRENT, EXPIRED).iterator()));
+        MongoIterable<String> names = stub(MongoIterable.class, namesAnswers);
+        Map<String, Function<Object[], Object>> databaseAnswers = new HashMap<>();
+        databaseAnswers.put("getName", args -> "pmdm");
+        databaseAnswers.put("listCollectionNames", args -> names);
+        databaseAnswers.put("getCollection", args -> versions((String) args[0]));
+        MongoDatabase database = stub(MongoDatabase.class, databaseAnswers);
+
+        CommonProperties commonProperties = new CommonProperties() {
+            @Override
+            public boolean isVersionBucketingEnabled(String collectionName) {
+                return true;
+            }
+
+            @Override
+            public int getVersionRetentionMonths() {
+                return 2;
+            }
+
+            @Override
+            public String getVersionArchiveDirectory() {
+                return folder.getRoot().getPath();
+            }
+
+            @Override
+            public boolean isLeaseCoordinationEnabled() {
+                return leaseCoordinationEnabled;
+            }
+        };
+        VersionBuckets versionBuckets = new VersionBuckets(database);
+        versionBuckets.commonProperties = commonProperties;
+        retention = new VersionRetention(new LeaseCoordinator(null, null));
+        retention.commonProperties = commonProperties;
+        retention.setMongoDatabase(database, versionBuckets);
+    }
+
+    @Test
+    public void archivesAndDropsExpiredBuckets() throws IOException {
+        retention.expire("sku");
+
+        assertEquals(Collections.singletonList(EXPIRED), dropped);
+        assertEquals(Collections.singletonList("pmdm." + EXPIRED + ".bson.gz"), files());
+        assertEquals(VERSIONS, readArchive(folder.getRoot().toPath().resolve("pmdm." + EXPIRED + ".bson.gz")));
+    }
+
+    @Test
+    public void keepsABucketWhoseArchiveFailed() throws IOException {
+        failReading = true;
+        try {
+            retention.expire("sku");
+            fail("Archive should fail");
+        } catch (MongoException expected) {
+            // The bucket is expired again on the next run.
+        }
+
+        assertTrue(dropped.isEmpty());
+        // Neither a partial archive nor its temporary file is left behind.
+        assertEquals(Collections.emptyList(), files());
+    }
+
+    @Test
+    public void expiresOnlyLeasedCollections() throws IOException {
+        leaseCoordinationEnabled = true;
+
+        retention.expire("sku");
+
+        assertTrue(dropped.isEmpty());
+        assertEquals(Collections.emptyList(), files());
+    }
+
+    private MongoCollection<RawBsonDocument> versions(String bucket) {
+        Map<String, Function<Object[], Object>> findAnswers = new HashMap<>();
+        findAnswers.put("iterator", args -> cursorOf(failReading ? failingAfterFirst() : VERSIONS.iterator()));
+        FindIterable<RawBsonDocument> found = stub(FindIterable.class, findAnswers);
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getNamespace", args -> new MongoNamespace("pmdm", bucket));
+        answers.put("find", args -> found);
+        answers.put("drop", args -> dropped.add(bucket));
+        return stub(MongoCollection.class, answers);
+    }
+
+    private static Iterator<RawBsonDocument> failingAfterFirst() {
+        Iterator<RawBsonDocument> versions = VERSIONS.iterator();
+        return new Iterator<RawBsonDocument>() {
+            private boolean first = true;
+
+            @Override
+            public boolean hasNext() {
+                return versions.hasNext();
+            }
+
+            @Override
+            public RawBsonDocument next() {
+                if (!first) {
+                    throw new MongoException("Cursor killed");
+                }
+                first = false;
+                return versions.next();
+            }
+        };
+    }
+
+    private List<String> files() throws IOException {
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            return files.map(file -> file.getFileName().toString()).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Reads back the concatenated BSON documents of an archive.
+     */
+    private static List<RawBsonDocument> readArchive(Path archive) throws IOException {
+        List<RawBsonDocument> documents = new ArrayList<>();
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(archive))) {
+            DataInputStream data = new DataInputStream(in);
+            byte[] length = new byte[4];
+            while (true) {
+                try {
+                    data.readFully(length);
+                } catch (EOFException end) {
+                    return documents;
+                }
+                byte[] bytes = new byte[ByteBuffer.wrap(length).order(ByteOrder.LITTLE_ENDIAN).getInt()];
+                System.arraycopy(length, 0, bytes, 0, 4);
+                data.readFully(bytes, 4, bytes.length - 4);
+                documents.add(new RawBsonDocument(bytes));
+            }
+        }
+    }
+
+    private static String bucket(YearMonth month) {
+        return String.format("sku_coll_%04d_%02d", month.getYear(), month.getMonthValue());
+    }
+}